@@ -0,0 +1,172 @@
+package uk.sky.cqlmigrate;
+
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
+import com.datastax.oss.driver.api.core.cql.Statement;
+import com.datastax.oss.driver.api.core.time.TimestampGenerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Executes DML statements asynchronously with at most a fixed number in flight, for files of data where executing
+ * one statement at a time leaves the session's connections mostly idle.
+ * <p>
+ * Every statement is given a client side timestamp from the session's timestamp generator, the one that timestamps the
+ * statements the session executes synchronously, so writes to the same cells are resolved in the order they were issued
+ * whatever order they arrive in, including writes executed synchronously just before. Statements whose
+ * outcome depends on the writes before them, such as those with an {@code IF} condition, and any statement other than
+ * DML, must only be executed after a {@link #barrier()}.
+ * <p>
+ * Once a statement fails no more are issued: the statements still in flight are waited for and the first failure is
+ * thrown, from the call issuing the next statement or from the next barrier.
+ */
+class AsyncDmlExecutor {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncDmlExecutor.class);
+
+    private final CqlSession session;
+    private final TimestampGenerator timestampGenerator;
+    private final int maxInFlight;
+    private final Semaphore permits;
+    private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+
+    /**
+     * @param maxInFlight most statements to have executing at once
+     */
+    AsyncDmlExecutor(CqlSession session, int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("At least one statement must be allowed in flight, not " + maxInFlight);
+        }
+        this.session = session;
+        this.timestampGenerator = session.getContext().getTimestampGenerator();
+        this.maxInFlight = maxInFlight;
+        this.permits = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * @return whether the statement can be executed without waiting for the writes before it to complete: DML without
+     * an {@code IF} condition
+     */
+    static boolean canExecuteAsync(CqlStatement statement) {
+        if (statement.getKind() != CqlStatement.Kind.DML) {
+            return false;
+        }
+        List<CqlTokenizer.Token> tokens;
+        try {
+            tokens = CqlTokenizer.tokenize(statement.getCql());
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        int depth = 0;
+        for (CqlTokenizer.Token token : tokens) {
+            if (token.is('(') || token.is('[') || token.is('{')) {
+                depth++;
+            } else if (token.is(')') || token.is(']') || token.is('}')) {
+                depth--;
+            } else if (depth == 0 && token.is("IF")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Starts executing the statement once fewer than the maximum are in flight.
+     *
+     * @param description what to log the statement as if it fails
+     * @throws RuntimeException      the first failure of a statement executed before, once none are in flight,
+     *                               or the failure to start executing this one
+     * @throws IllegalStateException if interrupted waiting for a statement to complete
+     */
+    void execute(Statement<?> statement, Object description) {
+        execute(statement, null, description);
+    }
+
+    /**
+     * As {@link #execute(Statement, Object)}, executing the fallback in its place, with the same timestamp, if the
+     * statement fails with an {@link IllegalStateException}, as the driver does when it cannot prepare the query of a
+     * bound statement again.
+     *
+     * @param fallback statement to execute instead, or null to fail
+     */
+    void execute(Statement<?> statement, Supplier<? extends Statement<?>> fallback, Object description) {
+        throwIfFailed();
+        acquire(1);
+        if (failure.get() != null) {
+            permits.release();
+            throwIfFailed();
+        }
+        long timestamp = timestampGenerator.next();
+        CompletionStage<AsyncResultSet> result;
+        try {
+            CompletionStage<AsyncResultSet> executed = session.executeAsync(statement.setQueryTimestamp(timestamp));
+            result = fallback == null ? executed : executed
+                    .handle((resultSet, throwable) -> throwable != null && unwrap(throwable) instanceof IllegalStateException
+                            ? session.executeAsync(fallback.get().setQueryTimestamp(timestamp))
+                            : executed)
+                    .thenCompose(stage -> stage);
+        } catch (RuntimeException e) {
+            LOGGER.error("Failed to execute cql statement {}: {}", description, e.getMessage());
+            failure.compareAndSet(null, e);
+            permits.release();
+            throw e;
+        }
+        result.whenComplete((resultSet, throwable) -> {
+            if (throwable != null) {
+                RuntimeException e = unwrap(throwable);
+                LOGGER.error("Failed to execute cql statement {}: {}", description, e.getMessage());
+                failure.compareAndSet(null, e);
+            }
+            permits.release();
+        });
+    }
+
+    /**
+     * Waits for every statement in flight to complete.
+     *
+     * @throws RuntimeException      the first failure of a statement executed since this was created
+     * @throws IllegalStateException if interrupted waiting for a statement to complete
+     */
+    void barrier() {
+        drain();
+        RuntimeException e = failure.get();
+        if (e != null) {
+            throw e;
+        }
+    }
+
+    /**
+     * Waits for every statement in flight to complete, ignoring any failure, for when execution is stopping for another reason.
+     */
+    void drain() {
+        acquire(maxInFlight);
+        permits.release(maxInFlight);
+    }
+
+    private void throwIfFailed() {
+        if (failure.get() != null) {
+            barrier();
+        }
+    }
+
+    private void acquire(int count) {
+        try {
+            permits.acquire(count);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for cql statements to complete", e);
+        }
+    }
+
+    private static RuntimeException unwrap(Throwable throwable) {
+        Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+        return cause instanceof RuntimeException ? (RuntimeException) cause : new CompletionException(cause);
+    }
+}
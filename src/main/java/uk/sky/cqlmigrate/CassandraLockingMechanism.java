@@ -6,7 +6,6 @@ import com.datastax.oss.driver.api.core.DriverException;
 import com.datastax.oss.driver.api.core.cql.PreparedStatement;
 import com.datastax.oss.driver.api.core.cql.ResultSet;
 import com.datastax.oss.driver.api.core.cql.Row;
-import com.datastax.oss.driver.api.core.cql.SimpleStatement;
 import com.datastax.oss.driver.api.core.servererrors.WriteTimeoutException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,7 +35,7 @@ class CassandraLockingMechanism extends LockingMechanism {
     }
 
     /**
-     * Prepares queries for acquiring and releasing lock.
+     * Prepares queries for acquiring and releasing lock, reusing any already prepared on this session.
      *
      * @throws CannotAcquireLockException if any DriverException thrown while executing queries.
      */
@@ -49,9 +48,9 @@ class CassandraLockingMechanism extends LockingMechanism {
             String insertQuery = format("INSERT INTO %s.locks (name, client) VALUES (?, ?) IF NOT EXISTS", lockKeyspace);
             String deleteQuery = format("DELETE FROM %s.locks WHERE name = ? IF client = ?", lockKeyspace);
 
-            selectLockQuery = session.prepare(SimpleStatement.newInstance(selectQuery).setConsistencyLevel(consistencyLevel));
-            insertLockQuery = session.prepare(SimpleStatement.newInstance(insertQuery).setConsistencyLevel(consistencyLevel));
-            deleteLockQuery = session.prepare(SimpleStatement.newInstance(deleteQuery).setConsistencyLevel(consistencyLevel));
+            selectLockQuery = PreparedStatementRegistry.prepare(session, selectQuery);
+            insertLockQuery = PreparedStatementRegistry.prepare(session, insertQuery);
+            deleteLockQuery = PreparedStatementRegistry.prepare(session, deleteQuery);
         } catch (DriverException e) {
             throw new CannotAcquireLockException("Query to prepare locks queries failed", e);
         }
@@ -70,7 +69,7 @@ class CassandraLockingMechanism extends LockingMechanism {
     public boolean acquire(String clientId) throws CannotAcquireLockException {
         try {
             verifyClusterIsHealthy();
-            ResultSet resultSet = session.execute(insertLockQuery.bind(lockName, clientId));
+            ResultSet resultSet = session.execute(insertLockQuery.bind(lockName, clientId).setConsistencyLevel(consistencyLevel));
             Row currentLock = resultSet.one();
             // we could already hold the lock and not be aware if a previous acquire had a writetimeout as a timeout is not a failure in cassandra
             // also since we use a conditional insertion (IF NOT EXISTS) the resultSet is never null, same with resultSet.one()
@@ -94,7 +93,7 @@ class CassandraLockingMechanism extends LockingMechanism {
      * @throws DriverException propagated from the session.execute() call.
      */
     private void verifyClusterIsHealthy() {
-        session.execute(selectLockQuery.bind());
+        session.execute(selectLockQuery.bind().setConsistencyLevel(consistencyLevel));
     }
 
     /**
@@ -109,7 +108,7 @@ class CassandraLockingMechanism extends LockingMechanism {
     @Override
     public boolean release(String clientId) throws CannotReleaseLockException {
         try {
-            ResultSet resultSet = session.execute(deleteLockQuery.bind(lockName, clientId));
+            ResultSet resultSet = session.execute(deleteLockQuery.bind(lockName, clientId).setConsistencyLevel(consistencyLevel));
             Row result = resultSet.one();
 
             // if a row doesn't exist then cassandra doesn't send back any columns
@@ -0,0 +1,48 @@
+package uk.sky.cqlmigrate;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Algorithm used to checksum cql files so changes to applied files can be detected.
+ * <p>
+ * Checksums are recorded as {@code <id>:<hex>}, apart from {@link #SHA_1} ones which are recorded as bare hex as they
+ * always have been. Each recorded checksum is verified with the algorithm that recorded it, so the configured algorithm
+ * can be changed at any time and only applies to files applied from then on.
+ */
+public interface ChecksumAlgorithm {
+
+    /**
+     * The default, matching every checksum recorded before algorithms could be chosen.
+     */
+    ChecksumAlgorithm SHA_1 = new MessageDigestChecksumAlgorithm("sha1", "SHA-1");
+
+    ChecksumAlgorithm SHA_256 = new MessageDigestChecksumAlgorithm("sha256", "SHA-256");
+
+    /**
+     * A much cheaper checksum for large files. It detects accidental changes but, unlike the others, not deliberate ones.
+     */
+    ChecksumAlgorithm CRC32 = new Crc32ChecksumAlgorithm();
+
+    /**
+     * @return id recorded ahead of each checksum, which must not contain {@code ':'}
+     */
+    String getId();
+
+    /**
+     * @return a new digest to feed the contents of one file through
+     */
+    Digest newDigest();
+
+    interface Digest {
+
+        /**
+         * Consumes the remaining bytes of the buffer.
+         */
+        void update(ByteBuffer buffer);
+
+        /**
+         * @return the checksum of everything consumed
+         */
+        byte[] digest();
+    }
+}
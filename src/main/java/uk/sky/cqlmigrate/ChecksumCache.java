@@ -0,0 +1,159 @@
+package uk.sky.cqlmigrate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the checksums of each cql file, so a file is only read and hashed again once its size or modification
+ * time has changed. Entries are keyed by absolute path and replaced when the file changes, so the cache holds at most
+ * one entry per file it has seen.
+ * <p>
+ * Files are parsed in the same pass as they are hashed with the configured algorithm, and the statements are kept with
+ * the checksum, so a file that turns out to need applying is not read again. The cache therefore holds roughly as much
+ * as the cql files themselves. Given a directory, statements are also kept on disk by a {@link ParsedStatementCache}
+ * for later runs.
+ * <p>
+ * A file rewritten with the same size within the resolution of the file system's modification times would keep its
+ * old checksum, so a cache should not outlive edits made that quickly, e.g. by being shared between tests rewriting files.
+ */
+class ChecksumCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChecksumCache.class);
+
+    private final ChecksumAlgorithm algorithm;
+    private final boolean memoryMapped;
+    private final ParsedStatementCache parsedStatementCache;
+    private final Map<Path, Entry> entries = new ConcurrentHashMap<>();
+
+    ChecksumCache() {
+        this(ChecksumAlgorithm.SHA_1);
+    }
+
+    /**
+     * @param algorithm algorithm to checksum files with, unless asked to match a checksum recorded with another
+     */
+    ChecksumCache(ChecksumAlgorithm algorithm) {
+        this(algorithm, false);
+    }
+
+    /**
+     * @param algorithm    algorithm to checksum files with, unless asked to match a checksum recorded with another
+     * @param memoryMapped whether to memory map files too large to keep the statements of
+     */
+    ChecksumCache(ChecksumAlgorithm algorithm, boolean memoryMapped) {
+        this(algorithm, memoryMapped, null);
+    }
+
+    /**
+     * @param algorithm                     algorithm to checksum files with, unless asked to match a checksum recorded with another
+     * @param memoryMapped                  whether to memory map files too large to keep the statements of
+     * @param parsedStatementCacheDirectory directory to keep parsed statements in across runs, or null not to
+     */
+    ChecksumCache(ChecksumAlgorithm algorithm, boolean memoryMapped, Path parsedStatementCacheDirectory) {
+        this.algorithm = algorithm;
+        this.memoryMapped = memoryMapped;
+        if (parsedStatementCacheDirectory != null && !ParsedStatementCache.canKeyBy(algorithm)) {
+            LOGGER.warn("Not caching parsed statements in {} as {} checksums are not collision resistant", parsedStatementCacheDirectory, algorithm.getId());
+            parsedStatementCacheDirectory = null;
+        }
+        this.parsedStatementCache = parsedStatementCacheDirectory != null ? new ParsedStatementCache(parsedStatementCacheDirectory) : null;
+    }
+
+    /**
+     * @param path cql file
+     * @return checksum of the file's contents with the configured algorithm
+     * @throws UncheckedIOException if the file's attributes cannot be read
+     * @throws RuntimeException     if the file cannot be read
+     */
+    String checksum(Path path) {
+        return parse(path).getChecksum();
+    }
+
+    /**
+     * @param path cql file
+     * @return the file's statements and its checksum with the configured algorithm, reading it only if it has changed
+     * @throws UncheckedIOException if the file's attributes cannot be read
+     * @throws RuntimeException     if the file cannot be read
+     */
+    ParsedMigration parse(Path path) {
+        Path key = path.toAbsolutePath().normalize();
+        Entry entry = entryFor(key);
+        ParsedMigration parsed = entry.parsed;
+        if (parsed == null) {
+            parsed = parsedStatementCache != null && !mapped(entry)
+                    ? parsedStatementCache.parse(key, algorithm, CqlFileParser.MAX_RETAINED_BYTES)
+                    : CqlFileParser.parse(key, algorithm, CqlFileParser.MAX_RETAINED_BYTES, memoryMapped);
+            LOGGER.debug("Read {} bytes of {} with checksum {}", parsed.getByteSize(), key, parsed.getChecksum());
+            entry.parsed = parsed;
+            entry.checksums.putIfAbsent(algorithm.getId(), parsed.getChecksum());
+        }
+        return parsed;
+    }
+
+    /**
+     * @param path             cql file
+     * @param recordedChecksum checksum recorded for the file when it was applied
+     * @return checksum of the file's contents with the algorithm the recorded checksum was calculated with
+     * @throws IllegalStateException if the recorded checksum's algorithm is not known
+     */
+    String checksumLike(Path path, String recordedChecksum) {
+        ChecksumAlgorithm checksumAlgorithm = ChecksumCalculator.algorithmOf(recordedChecksum, algorithm);
+        if (checksumAlgorithm.getId().equals(algorithm.getId())) {
+            return checksum(path);
+        }
+        Path key = path.toAbsolutePath().normalize();
+        return entryFor(key).checksums.computeIfAbsent(checksumAlgorithm.getId(), id -> {
+            String checksum = ChecksumCalculator.calculateChecksum(key, checksumAlgorithm);
+            LOGGER.debug("Calculated checksum {} of {}", checksum, key);
+            return checksum;
+        });
+    }
+
+    /**
+     * Mapped files are scanned without being lexed, so are not worth caching.
+     */
+    private boolean mapped(Entry entry) {
+        return memoryMapped && entry.size > CqlFileParser.MAX_RETAINED_BYTES && MappedCqlStatements.canMap(entry.size);
+    }
+
+    private Entry entryFor(Path key) {
+        BasicFileAttributes attributes = attributesOf(key);
+        long size = attributes.size();
+        long lastModifiedMillis = attributes.lastModifiedTime().toMillis();
+
+        Entry entry = entries.get(key);
+        if (entry == null || entry.size != size || entry.lastModifiedMillis != lastModifiedMillis) {
+            entry = new Entry(size, lastModifiedMillis);
+            entries.put(key, entry);
+        }
+        return entry;
+    }
+
+    private static BasicFileAttributes attributesOf(Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static class Entry {
+        private final long size;
+        private final long lastModifiedMillis;
+        private final Map<String, String> checksums = new ConcurrentHashMap<>();
+        private volatile ParsedMigration parsed;
+
+        private Entry(long size, long lastModifiedMillis) {
+            this.size = size;
+            this.lastModifiedMillis = lastModifiedMillis;
+        }
+    }
+}
@@ -1,19 +1,88 @@
 package uk.sky.cqlmigrate;
 
 import java.io.IOException;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 
 class ChecksumCalculator {
 
+    private static final char ALGORITHM_SEPARATOR = ':';
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
     static String calculateChecksum(Path path) {
+        return calculateChecksum(path, ChecksumAlgorithm.SHA_1);
+    }
+
+    /**
+     * Streams the file through the digest a buffer at a time, reusing one direct buffer per thread,
+     * so hashing allocates the same whatever the size of the file.
+     *
+     * @return the checksum as it is recorded, prefixed by the algorithm's id unless it is {@link ChecksumAlgorithm#SHA_1}
+     */
+    static String calculateChecksum(Path path, ChecksumAlgorithm algorithm) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final ChecksumAlgorithm.Digest digest = algorithm.newDigest();
+            final ByteBuffer buffer = BUFFER.get();
+            buffer.clear();
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+            return format(algorithm, digest.digest());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the digest as it is recorded, prefixed by the algorithm's id unless it is {@link ChecksumAlgorithm#SHA_1}
+     */
+    static String format(ChecksumAlgorithm algorithm, byte[] digest) {
+        String hex = bytesToHex(digest);
+        return algorithm.getId().equals(ChecksumAlgorithm.SHA_1.getId()) ? hex : algorithm.getId() + ALGORITHM_SEPARATOR + hex;
+    }
+
+    /**
+     * @param recordedChecksum checksum as it was recorded
+     * @param configured       the configured algorithm, which may not be one of the built in ones
+     * @return the algorithm the checksum was calculated with
+     * @throws IllegalStateException if the checksum was recorded by an algorithm that is not known
+     */
+    static ChecksumAlgorithm algorithmOf(String recordedChecksum, ChecksumAlgorithm configured) {
+        String id = idOf(recordedChecksum);
+        for (ChecksumAlgorithm algorithm : Arrays.asList(configured, ChecksumAlgorithm.SHA_1, ChecksumAlgorithm.SHA_256, ChecksumAlgorithm.CRC32)) {
+            if (algorithm.getId().equals(id)) {
+                return algorithm;
+            }
+        }
+        throw new IllegalStateException("Checksum " + recordedChecksum + " was recorded with unknown algorithm " + id);
+    }
+
+    /**
+     * @return whether both checksums were calculated with the same algorithm, and so can be compared directly
+     */
+    static boolean sameAlgorithm(String checksum, String otherChecksum) {
+        return idOf(checksum).equals(idOf(otherChecksum));
+    }
+
+    private static String idOf(String checksum) {
+        int separator = checksum.indexOf(ALGORITHM_SEPARATOR);
+        return separator < 0 ? ChecksumAlgorithm.SHA_1.getId() : checksum.substring(0, separator);
+    }
+
+    static String calculateChecksum(byte[] bytes) {
         try {
             final MessageDigest digest = MessageDigest.getInstance("SHA-1");
-            final byte[] hash = digest.digest(Files.readAllBytes(path));
+            final byte[] hash = digest.digest(bytes);
             return bytesToHex(hash);
-        } catch (IOException | NoSuchAlgorithmException e) {
+        } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException(e);
         }
     }
@@ -0,0 +1,128 @@
+package uk.sky.cqlmigrate;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.OptionalInt;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Directives for how a file is to be applied, written as line comments before its first statement, e.g.
+ * <pre>
+ * -- cqlmigrate: maxDmlInFlight=32
+ * </pre>
+ * The header is picked out of the file while it is read to be parsed, so applying the file needs no further read of it.
+ */
+class CqlFileHeader {
+
+    static final CqlFileHeader NONE = new CqlFileHeader(OptionalInt.empty());
+
+    private static final Pattern MAX_DML_IN_FLIGHT = Pattern.compile("(--|//)\\s*cqlmigrate:\\s*maxDmlInFlight\\s*=\\s*(\\d{1,9})\\s*");
+    private static final int DECODE_BUFFER_SIZE = 1024;
+
+    private final OptionalInt maxDmlInFlight;
+
+    private CqlFileHeader(OptionalInt maxDmlInFlight) {
+        this.maxDmlInFlight = maxDmlInFlight;
+    }
+
+    static CqlFileHeader of(OptionalInt maxDmlInFlight) {
+        return maxDmlInFlight.isPresent() ? new CqlFileHeader(maxDmlInFlight) : NONE;
+    }
+
+    /**
+     * Reads the header from the start of a file's contents, replacing bytes that are not valid UTF-8.
+     */
+    static CqlFileHeader read(ByteBuffer contents) {
+        Scanner scanner = new Scanner();
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        ByteBuffer bytes = contents.duplicate();
+        CharBuffer chars = CharBuffer.allocate(DECODE_BUFFER_SIZE);
+        CoderResult result;
+        do {
+            result = decoder.decode(bytes, chars, true);
+            chars.flip();
+            scanner.accept(chars);
+            chars.clear();
+        } while (result.isOverflow() && !scanner.isComplete());
+        return scanner.finish();
+    }
+
+    /**
+     * @return how many DML statements of the file to have executing at once, if the file's header says
+     */
+    OptionalInt getMaxDmlInFlight() {
+        return maxDmlInFlight;
+    }
+
+    /**
+     * Finds the header in the characters of a file as they are handed to it, up to the first line that is neither blank
+     * nor a line comment.
+     */
+    static class Scanner {
+        private final StringBuilder line = new StringBuilder();
+        private int firstNonWhitespace = -1;
+        private OptionalInt maxDmlInFlight = OptionalInt.empty();
+        private boolean complete;
+
+        /**
+         * Scans the remaining characters of the buffer, or as many as are needed to complete the header.
+         */
+        void accept(CharBuffer chars) {
+            while (!complete && chars.hasRemaining()) {
+                char c = chars.get();
+                if (c == '\n' || c == '\r') {
+                    endLine();
+                } else {
+                    if (firstNonWhitespace < 0 && !Character.isWhitespace(c)) {
+                        firstNonWhitespace = line.length();
+                    }
+                    line.append(c);
+                    complete = !couldBeComment();
+                }
+            }
+        }
+
+        boolean isComplete() {
+            return complete;
+        }
+
+        /**
+         * @return the header, once the characters up to its end or the end of the file have been scanned
+         */
+        CqlFileHeader finish() {
+            if (!complete) {
+                endLine();
+                complete = true;
+            }
+            return of(maxDmlInFlight);
+        }
+
+        private boolean couldBeComment() {
+            if (firstNonWhitespace < 0) {
+                return true;
+            }
+            char first = line.charAt(firstNonWhitespace);
+            if (first != '-' && first != '/') {
+                return false;
+            }
+            return line.length() == firstNonWhitespace + 1 || line.charAt(firstNonWhitespace + 1) == first;
+        }
+
+        private void endLine() {
+            Matcher matcher = MAX_DML_IN_FLIGHT.matcher(line.toString().trim());
+            if (matcher.matches()) {
+                maxDmlInFlight = OptionalInt.of(Integer.parseInt(matcher.group(2)));
+                complete = true;
+            }
+            line.setLength(0);
+            firstNonWhitespace = -1;
+        }
+    }
+}
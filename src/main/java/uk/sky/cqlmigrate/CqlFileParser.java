@@ -4,182 +4,135 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Scanner;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 class CqlFileParser {
     private static final Logger LOGGER = LoggerFactory.getLogger(CqlFileParser.class);
-    private static final Pattern EOL = Pattern.compile(".*\\R|.+\\z");
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final ThreadLocal<ByteBuffer> BYTES = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+    private static final ThreadLocal<CharBuffer> CHARS = ThreadLocal.withInitial(() -> CharBuffer.allocate(BUFFER_SIZE));
+
+    /**
+     * Files up to this size keep their statements once parsed, larger ones are streamed from disk again when applied.
+     */
+    static final long MAX_RETAINED_BYTES = 1024 * 1024;
 
     private CqlFileParser() {}
 
     static List<String> getCqlStatementsFrom(Path cqlPath) {
-        LineProcessor processor = new LineProcessor();
-
-        try (Scanner in = new Scanner(cqlPath, StandardCharsets.UTF_8.name())) {
-            String original;
-            while ((original = in.findWithinHorizon(EOL, 0)) != null) {
-                processor.process(original);
-            }
-        } catch (IOException | IllegalStateException e ) {
-            LOGGER.error("Failed to process cql script {}: {}", cqlPath.getFileName(), e.getMessage());
-            throw new RuntimeException(e);
-        }
-
-        processor.check();
-
-        return processor.getResult();
+        return parse(cqlPath, ChecksumAlgorithm.SHA_1, Long.MAX_VALUE).getStatements();
     }
 
-    private static class LineProcessor {
-        private static final char CQL_STATEMENT_STRING_DELIMITER = '\'';
-        private static final String CQL_STATEMENT_TERMINATOR = ";";
-        private static final String CQL_COMMENT_DOUBLE_HYPEN = "--";
-        private static final String CQL_COMMENT_DOUBLE_SLASH = "//";
-        private static final String CQL_MULTI_LINE_COMMENT_OPEN = "/*";
-        private static final String CQL_MULTI_LINE_COMMENT_CLOSE = "*/";
-        private static final Pattern CQL_MULTI_LINE_COMMENT_PATTERN = Pattern.compile("/\\*.*?\\*/", Pattern.DOTALL);
-        private static final String EMPTY_STR = "";
-
-        private enum State {
-            INIT,
-            FIND_EOS,
-            IS_MULTI_LINE_COMMENT,
-            IS_OPEN_STMT,
-            IS_OPEN_VALUE_EXP,
-            IS_CLOSE_STMT
-        }
-
-        private final List<String> statements = new ArrayList<>();
-        private State curState = State.INIT;
-        private StringBuilder curStmt;
-
-        void process(String original) throws IOException {
-            switch (curState) {
-                case INIT:
-                    init(original);
-
-                    break;
-
-                case FIND_EOS:
-                case IS_OPEN_STMT:
-                    findStatement(original);
-
-                    break;
-
-                case IS_OPEN_VALUE_EXP:
-                    findValueExpression(original);
-
-                    break;
-
-                case IS_MULTI_LINE_COMMENT:
-                    findMultilineComment(original);
-
-                    break;
-
-                case IS_CLOSE_STMT:
-                    closedStatement(original);
+    /**
+     * As {@link #parse(Path, ChecksumAlgorithm, long)}, keeping the statements of files up to {@link #MAX_RETAINED_BYTES}.
+     */
+    static ParsedMigration parse(Path cqlPath, ChecksumAlgorithm algorithm) {
+        return parse(cqlPath, algorithm, MAX_RETAINED_BYTES);
+    }
 
-                    break;
+    /**
+     * As {@link #parse(Path, ChecksumAlgorithm, long)}, memory mapping files too large to keep the statements of
+     * if asked to, so their statements are found and later handed over without being copied as they are lexed.
+     *
+     * @see MappedCqlStatements
+     */
+    static ParsedMigration parse(Path cqlPath, ChecksumAlgorithm algorithm, long maxRetainedBytes, boolean memoryMapped) {
+        if (memoryMapped) {
+            long size = sizeOf(cqlPath);
+            if (size > maxRetainedBytes && MappedCqlStatements.canMap(size)) {
+                return parseMapped(cqlPath, algorithm);
             }
         }
+        return parse(cqlPath, algorithm, maxRetainedBytes);
+    }
 
-        private void init(String original) throws IOException {
-            curState = State.FIND_EOS;
-            curStmt = new StringBuilder();
-            process(original);
-        }
-
-        private void findStatement(String original) throws IOException {
-            String line = original.trim();
-
-            if (line.startsWith(CQL_COMMENT_DOUBLE_HYPEN) || line.startsWith(CQL_COMMENT_DOUBLE_SLASH) || line.isEmpty()) {
-                return;
-            }
-
-            if (line.startsWith(CQL_MULTI_LINE_COMMENT_OPEN)) {
-                curState = State.IS_MULTI_LINE_COMMENT;
-                return;
-            }
-
-            if (line.endsWith(CQL_STATEMENT_TERMINATOR)) {
-                curStmt.append(" ").append(line, 0, line.length() - 1);
-                statements.add(curStmt.toString().trim());
-                curState = State.IS_CLOSE_STMT;
-                process(original);
-                return;
-            }
-
-            // A semicolon preceded by an odd number of single quotes must be within a string,
-            // and therefore is not a statement terminator
-            if (line.chars().filter(character -> character == CQL_STATEMENT_STRING_DELIMITER).count() % 2 != 0) {
-                curState = State.IS_OPEN_VALUE_EXP;
-                curStmt.append(" ").append(trimLeadingWhitespace(original));
-                return;
-            }
-
-            int pos = line.indexOf(CQL_COMMENT_DOUBLE_HYPEN);
-            if (pos != -1) {
-                curStmt.append(line, 0, pos);
-                return;
-            }
-
-            Matcher matcher = CQL_MULTI_LINE_COMMENT_PATTERN.matcher(line);
-            if (matcher.find()) {
-                curStmt.append(matcher.replaceAll(EMPTY_STR));
-                return;
+    /**
+     * Reads the file once, feeding each buffer of bytes through the checksum and then decoding it into the
+     * {@link CqlLexer}, so checksumming and parsing a file never read it twice.
+     *
+     * @param cqlPath          cql file
+     * @param algorithm        algorithm to checksum the file with
+     * @param maxRetainedBytes size of the largest file to keep the statements of, larger files are only counted
+     * @return the file's checksum and statements, or the reason it could not be parsed
+     * @throws RuntimeException if the file cannot be read
+     */
+    static ParsedMigration parse(Path cqlPath, ChecksumAlgorithm algorithm, long maxRetainedBytes) {
+        try (CqlStatementIterator statements = new CqlStatementIterator(cqlPath, algorithm, BYTES.get(), CHARS.get())) {
+            List<CqlStatement> retained = statements.size() <= maxRetainedBytes ? new ArrayList<>() : null;
+            int statementCount = 0;
+            RuntimeException failure = null;
+            try {
+                while (statements.hasNext()) {
+                    String statement = statements.next();
+                    statementCount++;
+                    if (retained != null) {
+                        retained.add(CqlStatement.of(statement));
+                    }
+                }
+            } catch (IllegalStateException e) {
+                failure = e;
+            } catch (UncheckedIOException e) {
+                if (!(e.getCause() instanceof CharacterCodingException)) {
+                    throw e;
+                }
+                failure = new RuntimeException(e.getCause());
             }
 
-            if (State.IS_OPEN_STMT.equals(curState)) {
-                curStmt.append(" ").append(line);
-            } else {
-                curState = State.IS_OPEN_STMT;
-                curStmt.append(line);
+            if (failure != null) {
+                // the file cannot be parsed, but its checksum is still needed in case it has already been applied
+                statements.skipRemaining();
+                return ParsedMigration.unparseable(cqlPath, statements.getChecksum(), statements.getByteSize(), failure);
             }
+            return retained != null
+                    ? ParsedMigration.parsed(cqlPath, statements.getChecksum(), statements.getByteSize(), statements.getHeader(), retained)
+                    : ParsedMigration.streamed(cqlPath, statements.getChecksum(), statements.getByteSize(), statements.getHeader(), statementCount);
+        } catch (UncheckedIOException e) {
+            LOGGER.error("Failed to process cql script {}: {}", cqlPath.getFileName(), e.getMessage());
+            throw new RuntimeException(e.getCause());
         }
+    }
 
-        private static String trimLeadingWhitespace(String original) {
-            return original.replaceAll("^\\s+", "");
-        }
-
-        private static String trimTrailingWhitespace(String original) {
-            return original.replaceAll("\\s+$", "");
-        }
-
-        private void findValueExpression(String original) {
-            if (original.chars().filter(character -> character == CQL_STATEMENT_STRING_DELIMITER).count() % 2 != 0) {
-                curStmt.append(original);
-                curState = State.FIND_EOS;
-                return;
-            }
-
-            curStmt.append(original);
-        }
-
-        private void findMultilineComment(String original) {
-            if (trimTrailingWhitespace(original).endsWith(CQL_MULTI_LINE_COMMENT_CLOSE)) {
-                curState = State.FIND_EOS;
+    private static ParsedMigration parseMapped(Path cqlPath, ChecksumAlgorithm algorithm) {
+        try {
+            MappedCqlStatements statements = MappedCqlStatements.map(cqlPath);
+            ByteBuffer contents = statements.contents();
+            long byteSize = contents.remaining();
+            ChecksumAlgorithm.Digest digest = algorithm.newDigest();
+            digest.update(contents);
+            String checksum = ChecksumCalculator.format(algorithm, digest.digest());
+            try {
+                return ParsedMigration.mapped(cqlPath, checksum, byteSize, CqlFileHeader.read(statements.contents()), statements.skipRemaining());
+            } catch (IllegalStateException e) {
+                return ParsedMigration.unparseable(cqlPath, checksum, byteSize, e);
             }
+        } catch (UncheckedIOException e) {
+            LOGGER.error("Failed to process cql script {}: {}", cqlPath.getFileName(), e.getMessage());
+            throw new RuntimeException(e.getCause());
         }
+    }
 
-        private void closedStatement(String original) {
-            LOGGER.trace("CQL parsed: {}", original);
-            curState = State.INIT;
-        }
-
-        private void check() {
-            if (!(State.IS_CLOSE_STMT.equals(curState) || State.INIT.equals(curState) || (State.FIND_EOS.equals(curState) && curStmt.length() ==0))) {
-                throw new IllegalStateException("File had a non-terminated cql line");
-            }
+    private static long sizeOf(Path cqlPath) {
+        try {
+            return Files.size(cqlPath);
+        } catch (IOException e) {
+            LOGGER.error("Failed to process cql script {}: {}", cqlPath.getFileName(), e.getMessage());
+            throw new RuntimeException(e);
         }
+    }
 
-        List<String> getResult() {
-            return statements;
-        }
+    /**
+     * @param cqlPath cql file
+     * @return the statements of the file, read as they are asked for
+     * @throws UncheckedIOException if the file cannot be opened
+     */
+    static CqlStatementIterator statementsOf(Path cqlPath) {
+        return new CqlStatementIterator(cqlPath, null, ByteBuffer.allocate(BUFFER_SIZE), CharBuffer.allocate(BUFFER_SIZE));
     }
 }
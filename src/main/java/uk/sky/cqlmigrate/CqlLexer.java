@@ -0,0 +1,312 @@
+package uk.sky.cqlmigrate;
+
+import java.nio.CharBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Splits cql into statements a character at a time, so a file can be fed through in buffers of any size without
+ * being split into lines first.
+ * <p>
+ * Statements end at a {@code ;} outside of string literals, quoted identifiers, {@code $$} literals and comments.
+ * Literals are kept exactly as written, comments are dropped, and whitespace between tokens is kept as written unless
+ * it spans lines, in which case it becomes a single space. {@code --} and {@code //} comments run to the end of the line,
+ * and {@code /* *}{@code /} comments may be nested.
+ */
+class CqlLexer {
+
+    /**
+     * Must be bumped by any change that alters the statements lexed from some file, so statements kept by a
+     * {@link ParsedStatementCache} under the previous version are no longer used.
+     */
+    static final int VERSION = 1;
+
+    private enum State {
+        CODE,
+        DASH,
+        SLASH,
+        DOLLAR,
+        LINE_COMMENT,
+        BLOCK_COMMENT,
+        BLOCK_COMMENT_SLASH,
+        BLOCK_COMMENT_STAR,
+        STRING,
+        QUOTED_IDENTIFIER,
+        DOLLAR_STRING,
+        DOLLAR_STRING_DOLLAR
+    }
+
+    private final Deque<String> statements = new ArrayDeque<>();
+    private final StringBuilder statement = new StringBuilder();
+    private final StringBuilder whitespace = new StringBuilder();
+    private boolean whitespaceSpansLines;
+    private State state = State.CODE;
+    private int commentDepth;
+
+    /**
+     * Consumes the remaining characters of the buffer. Tokens may be split across buffers.
+     */
+    void accept(CharBuffer chars) {
+        if (chars.hasArray()) {
+            int offset = chars.arrayOffset();
+            accept(chars.array(), offset + chars.position(), offset + chars.limit());
+            chars.position(chars.limit());
+        } else {
+            while (chars.hasRemaining()) {
+                accept(chars.get());
+            }
+        }
+    }
+
+    /**
+     * Runs of plain code and the contents of literals are copied in bulk, everything else a character at a time.
+     */
+    private void accept(char[] chars, int from, int to) {
+        int i = from;
+        while (i < to) {
+            switch (state) {
+                case CODE:
+                    int end = i;
+                    while (end < to && isPlainCode(chars[end])) {
+                        end++;
+                    }
+                    if (end > i) {
+                        appendCode(chars, i, end);
+                        i = end;
+                        continue;
+                    }
+                    break;
+                case STRING:
+                    i = appendLiteral(chars, i, to, '\'');
+                    continue;
+                case QUOTED_IDENTIFIER:
+                    i = appendLiteral(chars, i, to, '"');
+                    continue;
+                default:
+                    break;
+            }
+            accept(chars[i++]);
+        }
+    }
+
+    /**
+     * Copies the literal up to and including its closing quote, or the whole range if it does not close within it.
+     *
+     * @return index after the copied characters
+     */
+    private int appendLiteral(char[] chars, int from, int to, char quote) {
+        int end = from;
+        while (end < to && chars[end] != quote) {
+            end++;
+        }
+        if (end < to) {
+            end++;
+            state = State.CODE;
+        }
+        statement.append(chars, from, end - from);
+        return end;
+    }
+
+    /**
+     * @return the next statement completed by the characters consumed so far, without its terminator,
+     * or null if there is none
+     */
+    String nextStatement() {
+        return statements.poll();
+    }
+
+    /**
+     * Checks the input ended between statements. Statements completed before the end are still to be had from
+     * {@link #nextStatement()}.
+     *
+     * @throws IllegalStateException if the last statement, literal or comment is not terminated
+     */
+    void finish() {
+        if (state == State.DASH || state == State.SLASH || state == State.DOLLAR) {
+            appendCode(pendingCharacter());
+            state = State.CODE;
+        }
+        boolean terminated = state == State.CODE || state == State.LINE_COMMENT;
+        if (!terminated || statement.length() != 0) {
+            throw new IllegalStateException("File had a non-terminated cql line");
+        }
+    }
+
+    private void accept(char character) {
+        switch (state) {
+            case CODE:
+                code(character);
+                break;
+            case DASH:
+                twoCharacterToken(character, '-', State.LINE_COMMENT);
+                break;
+            case SLASH:
+                if (character == '*') {
+                    commentDepth = 1;
+                    state = State.BLOCK_COMMENT;
+                } else {
+                    twoCharacterToken(character, '/', State.LINE_COMMENT);
+                }
+                break;
+            case DOLLAR:
+                twoCharacterToken(character, '$', State.DOLLAR_STRING);
+                break;
+            case LINE_COMMENT:
+                if (isLineTerminator(character)) {
+                    whitespaceSpansLines = true;
+                    state = State.CODE;
+                }
+                break;
+            case BLOCK_COMMENT:
+                blockComment(character);
+                break;
+            case BLOCK_COMMENT_SLASH:
+                if (character == '*') {
+                    commentDepth++;
+                    state = State.BLOCK_COMMENT;
+                } else {
+                    blockComment(character);
+                }
+                break;
+            case BLOCK_COMMENT_STAR:
+                if (character == '/') {
+                    state = --commentDepth == 0 ? State.CODE : State.BLOCK_COMMENT;
+                } else {
+                    blockComment(character);
+                }
+                break;
+            case STRING:
+                statement.append(character);
+                if (character == '\'') {
+                    state = State.CODE;
+                }
+                break;
+            case QUOTED_IDENTIFIER:
+                statement.append(character);
+                if (character == '"') {
+                    state = State.CODE;
+                }
+                break;
+            case DOLLAR_STRING:
+                statement.append(character);
+                if (character == '$') {
+                    state = State.DOLLAR_STRING_DOLLAR;
+                }
+                break;
+            case DOLLAR_STRING_DOLLAR:
+                statement.append(character);
+                state = character == '$' ? State.CODE : State.DOLLAR_STRING;
+                break;
+        }
+    }
+
+    private void code(char character) {
+        switch (character) {
+            case ';':
+                if (statement.length() != 0) {
+                    statements.add(statement.toString());
+                    statement.setLength(0);
+                }
+                clearWhitespace();
+                break;
+            case '-':
+                state = State.DASH;
+                break;
+            case '/':
+                state = State.SLASH;
+                break;
+            case '$':
+                state = State.DOLLAR;
+                break;
+            case '\'':
+                appendCode(character);
+                state = State.STRING;
+                break;
+            case '"':
+                appendCode(character);
+                state = State.QUOTED_IDENTIFIER;
+                break;
+            default:
+                if (isLineTerminator(character)) {
+                    whitespaceSpansLines = true;
+                } else if (isWhitespace(character)) {
+                    whitespace.append(character);
+                } else {
+                    appendCode(character);
+                }
+        }
+    }
+
+    /**
+     * Completes a token started by the pending character, or emits that character and carries on with this one.
+     */
+    private void twoCharacterToken(char character, char second, State next) {
+        if (character == second) {
+            if (next == State.DOLLAR_STRING) {
+                appendCode('$');
+                statement.append('$');
+            }
+            state = next;
+        } else {
+            appendCode(pendingCharacter());
+            state = State.CODE;
+            code(character);
+        }
+    }
+
+    private void blockComment(char character) {
+        if (isLineTerminator(character)) {
+            whitespaceSpansLines = true;
+        }
+        state = character == '*' ? State.BLOCK_COMMENT_STAR : character == '/' ? State.BLOCK_COMMENT_SLASH : State.BLOCK_COMMENT;
+    }
+
+    private char pendingCharacter() {
+        return state == State.DASH ? '-' : state == State.SLASH ? '/' : '$';
+    }
+
+    /**
+     * Appends a character of code, preceded by the whitespace since the previous one unless it starts the statement.
+     */
+    private void appendCode(char character) {
+        appendWhitespace();
+        statement.append(character);
+    }
+
+    private void appendCode(char[] chars, int from, int to) {
+        appendWhitespace();
+        statement.append(chars, from, to - from);
+    }
+
+    private void appendWhitespace() {
+        if (statement.length() != 0) {
+            if (whitespaceSpansLines) {
+                statement.append(' ');
+            } else {
+                statement.append(whitespace);
+            }
+        }
+        clearWhitespace();
+    }
+
+    private void clearWhitespace() {
+        whitespace.setLength(0);
+        whitespaceSpansLines = false;
+    }
+
+    private static boolean isLineTerminator(char character) {
+        return character == '\n' || character == '\r' || character == '\u0085' || character == '\u2028' || character == '\u2029';
+    }
+
+    private static boolean isWhitespace(char character) {
+        return character <= ' ';
+    }
+
+    /**
+     * @return whether the character can only be part of code, so needs no state change
+     */
+    private static boolean isPlainCode(char character) {
+        return character > ' ' && character != ';' && character != '-' && character != '/' && character != '$'
+                && character != '\'' && character != '"' && !isLineTerminator(character);
+    }
+}
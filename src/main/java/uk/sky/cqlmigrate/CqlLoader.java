@@ -1,11 +1,19 @@
 package uk.sky.cqlmigrate;
 
 import com.datastax.oss.driver.api.core.DriverException;
+import com.datastax.oss.driver.api.core.cql.BatchStatement;
+import com.datastax.oss.driver.api.core.cql.BatchStatementBuilder;
+import com.datastax.oss.driver.api.core.cql.BatchableStatement;
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
+import com.datastax.oss.driver.api.core.cql.DefaultBatchType;
 import com.datastax.oss.driver.api.core.cql.SimpleStatement;
+import com.datastax.oss.driver.api.core.cql.Statement;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Iterator;
 import java.util.List;
+import java.util.Optional;
 
 class CqlLoader {
 
@@ -13,20 +21,189 @@ class CqlLoader {
 
     private CqlLoader() {}
 
+    /**
+     * Executes statements cqlmigrate runs for itself, waiting for schema agreement afterwards if cqlmigrate is waiting
+     * for it rather than the driver, as the tables they create are used straight away.
+     */
     static void load(SessionContext sessionContext, List<String> cqlStatements) {
-        if (!cqlStatements.isEmpty()) {
+        load(sessionContext, CqlStatement.classify(cqlStatements.iterator()));
+        sessionContext.getSchemaAgreement().ifPresent(SchemaAgreement::await);
+    }
+
+    /**
+     * Executes the statements as they are taken from the iterator, so a file being streamed from disk is never
+     * held in memory as a whole.
+     */
+    static void load(SessionContext sessionContext, Iterator<CqlStatement> cqlStatements) {
+        load(sessionContext, cqlStatements, 0);
+    }
+
+    /**
+     * Executes the statements as they are taken from the iterator, with DML statements executed asynchronously if
+     * allowed. Every statement other than DML without a condition waits for those before it to complete, as does the
+     * return from this method, so the statements take effect in order.
+     *
+     * @param maxDmlInFlight how many DML statements to have executing at once, 0 to execute one statement at a time
+     * @see AsyncDmlExecutor
+     */
+    static void load(SessionContext sessionContext, Iterator<CqlStatement> cqlStatements, int maxDmlInFlight) {
+        if (cqlStatements.hasNext()) {
             sessionContext.checkClusterHealth();
         }
+        AsyncDmlExecutor async = maxDmlInFlight > 0 ? new AsyncDmlExecutor(sessionContext.getSession(), maxDmlInFlight) : null;
+        PreparedInserts preparedInserts = sessionContext.isPreparedInserts() ? PreparedInserts.forSession(sessionContext.getSession()) : null;
+        DmlBatcher batcher = sessionContext.isDmlBatching()
+                ? DmlBatcher.forSession(sessionContext.getSession(), batch -> execute(sessionContext, async, preparedInserts, batch))
+                : null;
+        try {
+            while (cqlStatements.hasNext()) {
+                CqlStatement cqlStatement = cqlStatements.next();
+                if (cqlStatement.getKind() != CqlStatement.Kind.DDL) {
+                    sessionContext.getSchemaAgreement().ifPresent(SchemaAgreement::await);
+                }
+                if (batcher != null && batcher.add(cqlStatement)) {
+                    continue;
+                }
+                if (batcher != null) {
+                    batcher.flush();
+                }
+                execute(sessionContext, async, preparedInserts, cqlStatement);
+                if (cqlStatement.getKind() == CqlStatement.Kind.DDL) {
+                    sessionContext.getSchemaAgreement().ifPresent(SchemaAgreement::schemaChanged);
+                }
+                if (cqlStatement.getKind() != CqlStatement.Kind.DML) {
+                    if (batcher != null) {
+                        batcher.forgetTables();
+                    }
+                    if (preparedInserts != null) {
+                        preparedInserts.forgetTables();
+                    }
+                }
+            }
+            if (batcher != null) {
+                batcher.flush();
+            }
+        } catch (RuntimeException | Error e) {
+            if (async != null) {
+                async.drain();
+            }
+            throw e;
+        }
+        if (async != null) {
+            async.barrier();
+        }
+    }
+
+    private static void execute(SessionContext sessionContext, AsyncDmlExecutor async, PreparedInserts preparedInserts, CqlStatement cqlStatement) {
+        BatchableStatement<?> statement = statementOf(preparedInserts, cqlStatement).setConsistencyLevel(sessionContext.getWriteConsistencyLevel());
+        if (async != null) {
+            if (AsyncDmlExecutor.canExecuteAsync(cqlStatement)) {
+                LOGGER.debug("Executing {} statement asynchronously {}", cqlStatement.getKind(), statement);
+                async.execute(statement, statement instanceof BoundStatement
+                        ? () -> asWritten(sessionContext, preparedInserts, cqlStatement, statement)
+                        : null, cqlStatement.getCql());
+                return;
+            }
+            async.barrier();
+        }
+        LOGGER.debug("Executing {} statement {}", cqlStatement.getKind(), statement);
+        try {
+            sessionContext.getSession().execute(statement);
+        } catch (IllegalStateException e) {
+            if (!(statement instanceof BoundStatement)) {
+                throw e;
+            }
+            LOGGER.debug("Could not prepare {} again, executing it as written", cqlStatement.getCql(), e);
+            preparedInserts.forget((BoundStatement) statement);
+            execute(sessionContext, async, null, cqlStatement);
+        } catch (DriverException e) {
+            LOGGER.error("Failed to execute cql statement {}: {}", cqlStatement.getCql(), e.getMessage());
+            throw e;
+        }
+    }
+
+    private static void execute(SessionContext sessionContext, AsyncDmlExecutor async, PreparedInserts preparedInserts, List<CqlStatement> batch) {
+        if (batch.size() == 1) {
+            execute(sessionContext, async, preparedInserts, batch.get(0));
+            return;
+        }
+        BatchStatementBuilder builder = BatchStatement.builder(DefaultBatchType.UNLOGGED).setConsistencyLevel(sessionContext.getWriteConsistencyLevel());
+        batch.forEach(cqlStatement -> builder.addStatement(statementOf(preparedInserts, cqlStatement)));
+        BatchStatement statement = builder.build();
+        boolean bound = isBound(statement);
+        if (async != null) {
+            LOGGER.debug("Executing unlogged batch of {} DML statements asynchronously starting {}", batch.size(), batch.get(0));
+            async.execute(statement, bound ? () -> asWritten(sessionContext, preparedInserts, batch, statement) : null,
+                    "unlogged batch starting " + batch.get(0));
+            return;
+        }
+        LOGGER.debug("Executing unlogged batch of {} DML statements starting {}", batch.size(), batch.get(0));
         try {
-            cqlStatements.stream()
-                    .map(stringStatement -> SimpleStatement.newInstance(stringStatement).setConsistencyLevel(sessionContext.getWriteConsistencyLevel()))
-                    .forEach(statement -> {
-                        LOGGER.debug("Executing cql statement {}", statement);
-                        sessionContext.getSession().execute(statement);
-                    });
+            sessionContext.getSession().execute(statement);
+        } catch (IllegalStateException e) {
+            if (!bound) {
+                throw e;
+            }
+            LOGGER.debug("Could not prepare a statement of the unlogged batch starting {} again, executing them as written", batch.get(0), e);
+            forgetBound(preparedInserts, statement);
+            execute(sessionContext, async, null, batch);
         } catch (DriverException e) {
-            LOGGER.error("Failed to execute cql statements {}: {}", cqlStatements, e.getMessage());
+            LOGGER.error("Failed to execute unlogged batch of {} cql statements: {}", batch.size(), e.getMessage());
+            batch.forEach(cqlStatement -> LOGGER.error("Statement of failed batch: {}", cqlStatement.getCql()));
             throw e;
         }
     }
+
+    /**
+     * @return the statement as written, for when the driver could not prepare the query of its bound form again
+     */
+    private static Statement<?> asWritten(SessionContext sessionContext, PreparedInserts preparedInserts, CqlStatement cqlStatement,
+                                          BatchableStatement<?> statement) {
+        LOGGER.debug("Could not prepare {} again, executing it as written", cqlStatement.getCql());
+        preparedInserts.forget((BoundStatement) statement);
+        return SimpleStatement.newInstance(cqlStatement.getCql()).setConsistencyLevel(sessionContext.getWriteConsistencyLevel());
+    }
+
+    /**
+     * @return the batch with every statement as written, for when the driver could not prepare the query of one of its
+     * bound statements again
+     */
+    private static Statement<?> asWritten(SessionContext sessionContext, PreparedInserts preparedInserts, List<CqlStatement> batch,
+                                          BatchStatement statement) {
+        LOGGER.debug("Could not prepare a statement of the unlogged batch starting {} again, executing them as written", batch.get(0));
+        forgetBound(preparedInserts, statement);
+        BatchStatementBuilder builder = BatchStatement.builder(DefaultBatchType.UNLOGGED).setConsistencyLevel(sessionContext.getWriteConsistencyLevel());
+        batch.forEach(cqlStatement -> builder.addStatement(SimpleStatement.newInstance(cqlStatement.getCql())));
+        return builder.build();
+    }
+
+    private static boolean isBound(BatchStatement statement) {
+        for (BatchableStatement<?> batched : statement) {
+            if (batched instanceof BoundStatement) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void forgetBound(PreparedInserts preparedInserts, BatchStatement statement) {
+        for (BatchableStatement<?> batched : statement) {
+            if (batched instanceof BoundStatement) {
+                preparedInserts.forget((BoundStatement) batched);
+            }
+        }
+    }
+
+    /**
+     * @return the statement bound to the prepared form of its shape if it has one, otherwise the statement as written
+     */
+    private static BatchableStatement<?> statementOf(PreparedInserts preparedInserts, CqlStatement cqlStatement) {
+        if (preparedInserts != null) {
+            Optional<BoundStatement> statement = preparedInserts.bind(cqlStatement);
+            if (statement.isPresent()) {
+                return statement.get();
+            }
+        }
+        return SimpleStatement.newInstance(cqlStatement.getCql());
+    }
 }
@@ -10,6 +10,7 @@ import uk.sky.cqlmigrate.exception.ClusterUnhealthyException;
 import java.nio.file.Path;
 import java.time.Duration;
 import java.util.Collection;
+import java.util.Optional;
 
 /**
  * Interface for managing application schema changes in a synchronized fashion.
@@ -84,6 +85,16 @@ public interface CqlMigrator {
      */
     void migrate(CqlSession session, String keyspace, Collection<Path> directories, boolean performPrechecks);
 
+    /**
+     * How long the last migration held the lock, from acquiring it until it was released, or left held after a failure,
+     * which is how long other clients migrating the same keyspace were kept waiting.
+     *
+     * @return the hold time of the lock taken by the last call to migrate, or empty if that call did not take the lock
+     */
+    default Optional<Duration> getLastLockHoldTime() {
+        return Optional.empty();
+    }
+
     /**
      * Drops keyspace if it exists
      *
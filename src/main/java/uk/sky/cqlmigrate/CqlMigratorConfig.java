@@ -2,7 +2,9 @@ package uk.sky.cqlmigrate;
 
 import com.datastax.oss.driver.api.core.ConsistencyLevel;
 
+import java.nio.file.Path;
 import java.time.Duration;
+import java.util.concurrent.Executor;
 
 import static java.util.Objects.requireNonNull;
 
@@ -12,13 +14,46 @@ public class CqlMigratorConfig {
     private final ConsistencyLevel writeConsistencyLevel;
     private final Duration tableCheckerInitDelay;
     private final Duration tableCheckerTimeout;
+    private final SchemaUpdatesLayout schemaUpdatesLayout;
+    private final boolean tieredHistoryReads;
+    private final boolean sharedChecksumCache;
+    private final Executor preparationExecutor;
+    private final ChecksumAlgorithm checksumAlgorithm;
+    private final boolean memoryMappedStatements;
+    private final Path parsedStatementCacheDirectory;
+    private final int pipelineDepth;
+    private final boolean dmlBatching;
+    private final int maxDmlInFlight;
+    private final boolean preparedInserts;
+    private final int schemaAgreementFilesPerGroup;
+    private final Duration schemaAgreementTimeout;
+    private final Duration schemaAgreementBackoff;
 
-    private CqlMigratorConfig(LockConfig cassandraLockConfig, ConsistencyLevel readConsistencyLevel, ConsistencyLevel writeConsistencyLevel, Duration tableCheckerInitDelay, Duration tableCheckerTimeout) {
+    private CqlMigratorConfig(LockConfig cassandraLockConfig, ConsistencyLevel readConsistencyLevel, ConsistencyLevel writeConsistencyLevel, Duration tableCheckerInitDelay, Duration tableCheckerTimeout,
+                              SchemaUpdatesLayout schemaUpdatesLayout, boolean tieredHistoryReads, boolean sharedChecksumCache, Executor preparationExecutor,
+                              ChecksumAlgorithm checksumAlgorithm, boolean memoryMappedStatements, Path parsedStatementCacheDirectory,
+                              int pipelineDepth, boolean dmlBatching, int maxDmlInFlight,
+                              boolean preparedInserts, int schemaAgreementFilesPerGroup, Duration schemaAgreementTimeout,
+                              Duration schemaAgreementBackoff) {
         this.cassandraLockConfig = requireNonNull(cassandraLockConfig);
         this.readConsistencyLevel = requireNonNull(readConsistencyLevel);
         this.writeConsistencyLevel = requireNonNull(writeConsistencyLevel);
         this.tableCheckerInitDelay = tableCheckerInitDelay;
         this.tableCheckerTimeout = tableCheckerTimeout;
+        this.schemaUpdatesLayout = requireNonNull(schemaUpdatesLayout);
+        this.tieredHistoryReads = tieredHistoryReads;
+        this.sharedChecksumCache = sharedChecksumCache;
+        this.preparationExecutor = requireNonNull(preparationExecutor);
+        this.checksumAlgorithm = requireNonNull(checksumAlgorithm);
+        this.memoryMappedStatements = memoryMappedStatements;
+        this.parsedStatementCacheDirectory = parsedStatementCacheDirectory;
+        this.pipelineDepth = pipelineDepth;
+        this.dmlBatching = dmlBatching;
+        this.maxDmlInFlight = maxDmlInFlight;
+        this.preparedInserts = preparedInserts;
+        this.schemaAgreementFilesPerGroup = schemaAgreementFilesPerGroup;
+        this.schemaAgreementTimeout = requireNonNull(schemaAgreementTimeout);
+        this.schemaAgreementBackoff = requireNonNull(schemaAgreementBackoff);
     }
 
     public static CassandraConfigBuilder builder() {
@@ -45,6 +80,62 @@ public class CqlMigratorConfig {
         return tableCheckerTimeout;
     }
 
+    public SchemaUpdatesLayout getSchemaUpdatesLayout() {
+        return schemaUpdatesLayout;
+    }
+
+    public boolean isTieredHistoryReads() {
+        return tieredHistoryReads;
+    }
+
+    public boolean isSharedChecksumCache() {
+        return sharedChecksumCache;
+    }
+
+    public Executor getPreparationExecutor() {
+        return preparationExecutor;
+    }
+
+    public ChecksumAlgorithm getChecksumAlgorithm() {
+        return checksumAlgorithm;
+    }
+
+    public boolean isMemoryMappedStatements() {
+        return memoryMappedStatements;
+    }
+
+    public Path getParsedStatementCacheDirectory() {
+        return parsedStatementCacheDirectory;
+    }
+
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    public boolean isDmlBatching() {
+        return dmlBatching;
+    }
+
+    public int getMaxDmlInFlight() {
+        return maxDmlInFlight;
+    }
+
+    public boolean isPreparedInserts() {
+        return preparedInserts;
+    }
+
+    public int getSchemaAgreementFilesPerGroup() {
+        return schemaAgreementFilesPerGroup;
+    }
+
+    public Duration getSchemaAgreementTimeout() {
+        return schemaAgreementTimeout;
+    }
+
+    public Duration getSchemaAgreementBackoff() {
+        return schemaAgreementBackoff;
+    }
+
     public static class CassandraConfigBuilder {
 
         private LockConfig lockConfig;
@@ -52,6 +143,20 @@ public class CqlMigratorConfig {
         private ConsistencyLevel writeConsistencyLevel;
         private Duration tableCheckerInitDelay = Duration.ofSeconds(5);
         private Duration tableCheckerTimeout = Duration.ofMinutes(1);
+        private SchemaUpdatesLayout schemaUpdatesLayout = SchemaUpdatesLayout.V1;
+        private boolean tieredHistoryReads = false;
+        private boolean sharedChecksumCache = false;
+        private Executor preparationExecutor = Runnable::run;
+        private ChecksumAlgorithm checksumAlgorithm = ChecksumAlgorithm.SHA_1;
+        private boolean memoryMappedStatements = false;
+        private Path parsedStatementCacheDirectory;
+        private int pipelineDepth = 0;
+        private boolean dmlBatching = false;
+        private int maxDmlInFlight = 0;
+        private boolean preparedInserts = false;
+        private int schemaAgreementFilesPerGroup = 0;
+        private Duration schemaAgreementTimeout = Duration.ofMinutes(1);
+        private Duration schemaAgreementBackoff = Duration.ofMillis(200);
 
         private CassandraConfigBuilder() {
         }
@@ -81,8 +186,148 @@ public class CqlMigratorConfig {
             return this;
         }
 
+        /**
+         * @param schemaUpdatesLayout table layout to record applied files in, {@link SchemaUpdatesLayout#V1} by default
+         */
+        public CassandraConfigBuilder withSchemaUpdatesLayout(SchemaUpdatesLayout schemaUpdatesLayout) {
+            this.schemaUpdatesLayout = schemaUpdatesLayout;
+            return this;
+        }
+
+        /**
+         * @param tieredHistoryReads whether to read the history of applied files at LOCAL_ONE, only re-reading at the read
+         *                           consistency level the files that look unapplied or changed, {@code false} by default
+         */
+        public CassandraConfigBuilder withTieredHistoryReads(boolean tieredHistoryReads) {
+            this.tieredHistoryReads = tieredHistoryReads;
+            return this;
+        }
+
+        /**
+         * @param sharedChecksumCache whether a {@link CqlMigrator} should remember the checksums of cql files across migrations,
+         *                            only reading a file again once its size or modification time changes, {@code false} by default.
+         *                            Useful for a long running service migrating many keyspaces from the same files
+         */
+        public CassandraConfigBuilder withSharedChecksumCache(boolean sharedChecksumCache) {
+            this.sharedChecksumCache = sharedChecksumCache;
+            return this;
+        }
+
+        /**
+         * @param preparationExecutor executor to checksum and parse the cql files on before the lock is taken, such as a
+         *                            {@link java.util.concurrent.ForkJoinPool}; by default files are prepared one at a time
+         *                            on the migrating thread. Files are still applied one at a time in filename order
+         */
+        public CassandraConfigBuilder withPreparationExecutor(Executor preparationExecutor) {
+            this.preparationExecutor = preparationExecutor;
+            return this;
+        }
+
+        /**
+         * @param checksumAlgorithm algorithm to checksum newly applied files with, {@link ChecksumAlgorithm#SHA_1} by default;
+         *                          files already applied are verified with the algorithm they were recorded with
+         */
+        public CassandraConfigBuilder withChecksumAlgorithm(ChecksumAlgorithm checksumAlgorithm) {
+            this.checksumAlgorithm = checksumAlgorithm;
+            return this;
+        }
+
+        /**
+         * @param memoryMappedStatements whether to memory map cql files over 1 MiB and execute their statements straight from
+         *                               the mapping, {@code false} by default. Such statements are executed exactly as written,
+         *                               including any comments within them. Meant for large, mostly ASCII data files
+         */
+        public CassandraConfigBuilder withMemoryMappedStatements(boolean memoryMappedStatements) {
+            this.memoryMappedStatements = memoryMappedStatements;
+            return this;
+        }
+
+        /**
+         * @param parsedStatementCacheDirectory directory to keep the statements parsed from cql files in, keyed by the checksum
+         *                                      of each file, so later runs need not parse them again; none by default. Can be
+         *                                      shared between runs, but is not used with {@link ChecksumAlgorithm#CRC32}
+         */
+        public CassandraConfigBuilder withParsedStatementCacheDirectory(Path parsedStatementCacheDirectory) {
+            this.parsedStatementCacheDirectory = parsedStatementCacheDirectory;
+            return this;
+        }
+
+        /**
+         * @param pipelineDepth how many files ahead of the one being applied to read the statements of on a background
+         *                      thread, 0 by default. Only files over 1 MiB are read again when applied, so this helps
+         *                      migrations with large data files; statements are still executed one at a time in order
+         */
+        public CassandraConfigBuilder withPipelineDepth(int pipelineDepth) {
+            this.pipelineDepth = pipelineDepth;
+            return this;
+        }
+
+        /**
+         * @param dmlBatching whether to send consecutive DML statements writing different rows of the same partition as
+         *                    unlogged batches of up to 5 KiB, {@code false} by default. Statements that could behave
+         *                    differently in a batch, and all other statements, are still executed one at a time in order
+         */
+        public CassandraConfigBuilder withDmlBatching(boolean dmlBatching) {
+            this.dmlBatching = dmlBatching;
+            return this;
+        }
+
+        /**
+         * @param maxDmlInFlight how many DML statements of a file to execute asynchronously at once, 0 by default to
+         *                       execute one statement at a time. Any other statement, or one with a condition, waits for
+         *                       those before it, as does the next file. A file can set its own limit with a
+         *                       {@code -- cqlmigrate: maxDmlInFlight=<n>} line before its first statement
+         */
+        public CassandraConfigBuilder withMaxDmlInFlight(int maxDmlInFlight) {
+            this.maxDmlInFlight = maxDmlInFlight;
+            return this;
+        }
+
+        /**
+         * @param preparedInserts whether to prepare {@code INSERT} statements that differ only in their literal values
+         *                        once per session and execute them as bound statements, {@code false} by default.
+         *                        Statements that cannot be bound with exactly the values they were written with are
+         *                        executed as written
+         */
+        public CassandraConfigBuilder withPreparedInserts(boolean preparedInserts) {
+            this.preparedInserts = preparedInserts;
+            return this;
+        }
+
+        /**
+         * @param filesPerGroup how many files to apply between waits for schema agreement, 0 by default to leave the
+         *                      wait to the driver after every schema change. Only saves waits if the session's
+         *                      {@code advanced.control-connection.schema-agreement.timeout} is zero, which sessions
+         *                      cqlmigrate creates itself then have. Agreement is also awaited before the first other
+         *                      statement following a schema change, and before the files are recorded as applied
+         */
+        public CassandraConfigBuilder withSchemaAgreementFilesPerGroup(int filesPerGroup) {
+            this.schemaAgreementFilesPerGroup = filesPerGroup;
+            return this;
+        }
+
+        /**
+         * @param timeout how long to wait for schema agreement at the end of a group of files, 1 minute by default
+         */
+        public CassandraConfigBuilder withSchemaAgreementTimeout(Duration timeout) {
+            this.schemaAgreementTimeout = timeout;
+            return this;
+        }
+
+        /**
+         * @param backoff how long to wait before checking schema agreement again the first time it is not reached,
+         *                doubling each time up to 5 seconds, 200 milliseconds by default
+         */
+        public CassandraConfigBuilder withSchemaAgreementBackoff(Duration backoff) {
+            this.schemaAgreementBackoff = backoff;
+            return this;
+        }
+
         public CqlMigratorConfig build() {
-            return new CqlMigratorConfig(lockConfig, readConsistencyLevel, writeConsistencyLevel, tableCheckerInitDelay, tableCheckerTimeout);
+            return new CqlMigratorConfig(lockConfig, readConsistencyLevel, writeConsistencyLevel, tableCheckerInitDelay, tableCheckerTimeout, schemaUpdatesLayout,
+                    tieredHistoryReads, sharedChecksumCache, preparationExecutor, checksumAlgorithm, memoryMappedStatements,
+                    parsedStatementCacheDirectory, pipelineDepth, dmlBatching, maxDmlInFlight, preparedInserts,
+                    schemaAgreementFilesPerGroup, schemaAgreementTimeout, schemaAgreementBackoff);
         }
     }
 }
@@ -2,6 +2,9 @@ package uk.sky.cqlmigrate;
 
 import com.datastax.oss.driver.api.core.ConsistencyLevel;
 import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.CqlSessionBuilder;
+import com.datastax.oss.driver.api.core.config.DefaultDriverOption;
+import com.datastax.oss.driver.api.core.config.DriverConfigLoader;
 import com.datastax.oss.driver.api.core.DefaultConsistencyLevel;
 import com.datastax.oss.driver.api.core.cql.SimpleStatement;
 import com.datastax.oss.driver.api.core.cql.Statement;
@@ -15,7 +18,10 @@ import java.nio.file.Paths;
 import java.time.Duration;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -35,10 +41,14 @@ final class CqlMigratorImpl implements CqlMigrator {
 
     private final CqlMigratorConfig cqlMigratorConfig;
     private final SessionContextFactory sessionContextFactory;
+    private final ChecksumCache sharedChecksumCache;
+
+    private volatile Duration lastLockHoldTime;
 
     CqlMigratorImpl(CqlMigratorConfig cqlMigratorConfig, SessionContextFactory sessionContextFactory) {
         this.cqlMigratorConfig = cqlMigratorConfig;
         this.sessionContextFactory = sessionContextFactory;
+        this.sharedChecksumCache = cqlMigratorConfig.isSharedChecksumCache() ? newChecksumCache() : null;
     }
 
     /**
@@ -58,6 +68,19 @@ final class CqlMigratorImpl implements CqlMigrator {
         Duration tableCheckerTimeout = Duration.parse(System.getProperty("tableCheckerTimeout", "PT1M"));
         ConsistencyLevel readCL = DefaultConsistencyLevel.valueOf(System.getProperty("readCL", "LOCAL_ONE"));
         ConsistencyLevel writeCL = DefaultConsistencyLevel.valueOf(System.getProperty("writeCL", "ALL"));
+        SchemaUpdatesLayout schemaUpdatesLayout = SchemaUpdatesLayout.valueOf(System.getProperty("schemaUpdatesLayout", "V1"));
+        boolean tieredHistoryReads = Boolean.parseBoolean(System.getProperty("tieredHistoryReads", "false"));
+        int preparationThreads = Integer.parseInt(System.getProperty("preparationThreads", "1"));
+        String checksumAlgorithmId = System.getProperty("checksumAlgorithm", ChecksumAlgorithm.SHA_1.getId());
+        boolean memoryMappedStatements = Boolean.parseBoolean(System.getProperty("memoryMappedStatements", "false"));
+        String parsedStatementCacheDirectory = System.getProperty("parsedStatementCacheDirectory");
+        int pipelineDepth = Integer.parseInt(System.getProperty("pipelineDepth", "0"));
+        boolean dmlBatching = Boolean.parseBoolean(System.getProperty("dmlBatching", "false"));
+        int maxDmlInFlight = Integer.parseInt(System.getProperty("maxDmlInFlight", "0"));
+        boolean preparedInserts = Boolean.parseBoolean(System.getProperty("preparedInserts", "false"));
+        int schemaAgreementFilesPerGroup = Integer.parseInt(System.getProperty("schemaAgreementFilesPerGroup", "0"));
+        Duration schemaAgreementTimeout = Duration.parse(System.getProperty("schemaAgreementTimeout", "PT1M"));
+        Duration schemaAgreementBackoff = Duration.parse(System.getProperty("schemaAgreementBackoff", "PT0.2S"));
 
         requireNonNull(hosts, "'hosts' property should be provided having value of a comma separated list of cassandra hosts");
         requireNonNull(localDC, "'localDC' property should be provided having value of local datacenter for the contact points mentioned in the hosts; " +
@@ -65,6 +88,11 @@ final class CqlMigratorImpl implements CqlMigrator {
         requireNonNull(keyspace, "'keyspace' property should be provided having value of the cassandra keyspace");
         requireNonNull(directoriesProperty, "'directories' property should be provided having value of the comma separated list of paths to cql files");
 
+        ChecksumAlgorithm checksumAlgorithm = Stream.of(ChecksumAlgorithm.SHA_1, ChecksumAlgorithm.SHA_256, ChecksumAlgorithm.CRC32)
+                .filter(algorithm -> algorithm.getId().equals(checksumAlgorithmId))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("'checksumAlgorithm' property should be one of sha1, sha256 or crc32"));
+
         Collection<Path> directories = Arrays.stream(directoriesProperty.split(","))
                 .map(Paths::get)
                 .collect(Collectors.toList());
@@ -75,6 +103,19 @@ final class CqlMigratorImpl implements CqlMigrator {
                 .withWriteConsistencyLevel(writeCL)
                 .withTableCheckerInitDelay(tableCheckerInitDelay)
                 .withTableCheckerTimeout(tableCheckerTimeout)
+                .withSchemaUpdatesLayout(schemaUpdatesLayout)
+                .withTieredHistoryReads(tieredHistoryReads)
+                .withPreparationExecutor(preparationThreads > 1 ? new ForkJoinPool(preparationThreads) : Runnable::run)
+                .withChecksumAlgorithm(checksumAlgorithm)
+                .withMemoryMappedStatements(memoryMappedStatements)
+                .withParsedStatementCacheDirectory(parsedStatementCacheDirectory != null ? Paths.get(parsedStatementCacheDirectory) : null)
+                .withPipelineDepth(pipelineDepth)
+                .withDmlBatching(dmlBatching)
+                .withMaxDmlInFlight(maxDmlInFlight)
+                .withPreparedInserts(preparedInserts)
+                .withSchemaAgreementFilesPerGroup(schemaAgreementFilesPerGroup)
+                .withSchemaAgreementTimeout(schemaAgreementTimeout)
+                .withSchemaAgreementBackoff(schemaAgreementBackoff)
                 .build();
 
         CqlMigratorFactory.create(cqlMigratorConfig)
@@ -87,10 +128,17 @@ final class CqlMigratorImpl implements CqlMigrator {
     public void migrate(String[] hosts, String localDC, int port, String username, String password, String keyspace, Collection<Path> directories, boolean performPrechecks) {
         List<InetSocketAddress> cassandraHosts = Stream.of(hosts).map(host -> new InetSocketAddress(host, port)).collect(Collectors.toList());
 
-        try (CqlSession cqlSession = CqlSession.builder()
+        CqlSessionBuilder builder = CqlSession.builder()
                 .addContactPoints(cassandraHosts)
                 .withLocalDatacenter(localDC)
-                .withAuthCredentials(username, password).build()) {
+                .withAuthCredentials(username, password);
+        if (cqlMigratorConfig.getSchemaAgreementFilesPerGroup() > 0) {
+            // cqlmigrate waits for schema agreement itself, once per group of files
+            builder.withConfigLoader(DriverConfigLoader.programmaticBuilder()
+                    .withDuration(DefaultDriverOption.CONTROL_CONNECTION_AGREEMENT_TIMEOUT, Duration.ZERO)
+                    .build());
+        }
+        try (CqlSession cqlSession = builder.build()) {
             this.migrate(cqlSession, keyspace, directories, performPrechecks);
         }
     }
@@ -99,44 +147,100 @@ final class CqlMigratorImpl implements CqlMigrator {
      * {@inheritDoc}
      */
     public void migrate(CqlSession session, String keyspace, Collection<Path> directories, boolean performPrechecks) {
+        lastLockHoldTime = null;
         LockingMechanism lockingMechanism = cqlMigratorConfig.getCassandraLockConfig().getLockingMechanism(session, keyspace);
         LockConfig lockConfig = cqlMigratorConfig.getCassandraLockConfig();
 
         SessionContext sessionContext = sessionContextFactory.getInstance(session, cqlMigratorConfig);
 
-        SchemaChecker schemaChecker = new SchemaChecker(sessionContext, keyspace);
+        SchemaChecker schemaChecker = new SchemaChecker(sessionContext, keyspace, cqlMigratorConfig.getSchemaUpdatesLayout(),
+                cqlMigratorConfig.isTieredHistoryReads());
         TableChecker tableChecker = new TableCheckerFactory().getInstance(session, cqlMigratorConfig);
 
         LOGGER.info("Loading cql files from {}", directories);
         CqlPaths paths = CqlPaths.create(directories);
+        ChecksumCache checksumCache = sharedChecksumCache != null ? sharedChecksumCache : newChecksumCache();
 
+        MigrationPlan migrationPlan;
         if (performPrechecks) {
-            PreMigrationChecker preMigrationChecker = new PreMigrationChecker(sessionContext, keyspace, schemaChecker, paths);
+            PreMigrationChecker preMigrationChecker = new PreMigrationChecker(sessionContext, keyspace, schemaChecker, paths,
+                    new SchemaManifest(sessionContext, keyspace, new NoOpTableChecker()), checksumCache, cqlMigratorConfig.getPreparationExecutor());
             if (!preMigrationChecker.migrationIsNeeded()) {
                 LOGGER.info("Migration not needed as environment matches expected state");
+                logHistoryReadEscalations(schemaChecker);
                 return;
             }
+            migrationPlan = preMigrationChecker.getMigrationPlan();
             LOGGER.info("Pre-migration checks completed, migration is needed. Continuing...");
+        } else {
+            migrationPlan = MigrationPlan.create(paths, ManifestTree.of(paths, checksumCache, cqlMigratorConfig.getPreparationExecutor()),
+                    Collections.emptyMap(), checksumCache, cqlMigratorConfig.getPreparationExecutor());
         }
+        LOGGER.info("Prepared {} cql files, {} possibly to be applied", migrationPlan.getEntries().size(), migrationPlan.pendingCount());
 
+        SchemaManifest schemaManifest = new SchemaManifest(sessionContext, keyspace, tableChecker);
         boolean migrationFailed = false;
         Lock lock = new Lock(lockingMechanism, lockConfig);
 
         lock.lock();
 
         try {
-            KeyspaceBootstrapper keyspaceBootstrapper = new KeyspaceBootstrapper(sessionContext, keyspace, paths);
-            SchemaUpdates schemaUpdates = new SchemaUpdates(sessionContext, keyspace, tableChecker);
-            SchemaLoader schemaLoader = new SchemaLoader(sessionContext, keyspace, schemaUpdates, schemaChecker, tableChecker, paths);
+            KeyspaceBootstrapper keyspaceBootstrapper = new KeyspaceBootstrapper(sessionContext, keyspace);
+            SchemaUpdates schemaUpdates = new SchemaUpdates(sessionContext, keyspace, tableChecker, cqlMigratorConfig.getSchemaUpdatesLayout());
+            SchemaLoader schemaLoader = new SchemaLoader(sessionContext, keyspace, schemaUpdates, schemaChecker, tableChecker,
+                    cqlMigratorConfig.getPipelineDepth(), cqlMigratorConfig.getMaxDmlInFlight());
 
-            keyspaceBootstrapper.bootstrap();
+            keyspaceBootstrapper.bootstrap(migrationPlan);
             schemaUpdates.initialise();
-            schemaLoader.load();
+            schemaManifest.initialise();
+            reloadHistory(schemaChecker, schemaManifest, migrationPlan);
+            schemaLoader.load(migrationPlan);
+            // only written under the lock, so a client with an older set of files cannot interleave its tree with this one
+            schemaManifest.update(migrationPlan.getManifestTree());
         } catch (Exception e) {
             migrationFailed = true;
             throw e;
         } finally {
-            lock.unlock(migrationFailed);
+            try {
+                lock.unlock(migrationFailed);
+            } finally {
+                lastLockHoldTime = lock.getHoldTime();
+            }
+            logHistoryReadEscalations(schemaChecker);
+        }
+    }
+
+    /**
+     * Re-reads the history now the lock is held, as another client may have applied files since the plan was made. Every
+     * completed migration stores a new manifest root, so while the root is the one the plan was made against only the
+     * files still to be applied can have been recorded since, and only their rows are read.
+     */
+    private static void reloadHistory(SchemaChecker schemaChecker, SchemaManifest schemaManifest, MigrationPlan migrationPlan) {
+        Optional<String> manifestRoot = migrationPlan.getManifestRoot();
+        if (manifestRoot.isPresent() && manifestRoot.equals(schemaManifest.storedRoot())) {
+            LOGGER.info("Schema manifest unchanged since the plan was made, re-reading the history of {} files", migrationPlan.pendingCount());
+            schemaChecker.loadHistory(migrationPlan.getAppliedChecksums(), migrationPlan.getPendingFilenames());
+        } else {
+            schemaChecker.loadHistory();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Optional<Duration> getLastLockHoldTime() {
+        return Optional.ofNullable(lastLockHoldTime);
+    }
+
+    private ChecksumCache newChecksumCache() {
+        return new ChecksumCache(cqlMigratorConfig.getChecksumAlgorithm(), cqlMigratorConfig.isMemoryMappedStatements(),
+                cqlMigratorConfig.getParsedStatementCacheDirectory());
+    }
+
+    private void logHistoryReadEscalations(SchemaChecker schemaChecker) {
+        if (schemaChecker.isTieredReads()) {
+            LOGGER.info("Re-read the history of {} files at {}, {} of which had been read differently at LOCAL_ONE",
+                    schemaChecker.getEscalatedReads(), cqlMigratorConfig.getReadConsistencyLevel(), schemaChecker.getCorrectedReads());
         }
     }
 
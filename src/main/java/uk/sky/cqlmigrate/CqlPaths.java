@@ -6,6 +6,9 @@ import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.BiFunction;
 import java.util.stream.StreamSupport;
 
 class CqlPaths {
@@ -52,6 +55,37 @@ class CqlPaths {
         function.apply(BOOTSTRAP_CQL, sortedCqlPaths.get(BOOTSTRAP_CQL));
     }
 
+    /**
+     * @return filenames in ascending order, excluding the bootstrap file
+     */
+    Iterator<String> sortedFilenames() {
+        return sortedCqlPaths.keySet().stream()
+                .filter(filename -> !filename.equals(BOOTSTRAP_CQL))
+                .iterator();
+    }
+
+    /**
+     * Maps every file but the bootstrap file on the given executor, so independent work such as checksumming and
+     * parsing can run concurrently, and collects the results in filename order.
+     *
+     * @param mapper   work to do for each file, which may return null
+     * @param executor executor to run the work on, which may run it on the calling thread
+     * @return the result for each file keyed and sorted by filename
+     * @throws RuntimeException the failure of the first file in filename order whose work failed
+     */
+    <T> SortedMap<String, T> mapInSortedOrder(BiFunction<String, Path, T> mapper, Executor executor) {
+        Map<String, CompletableFuture<T>> futures = new LinkedHashMap<>();
+        applyInSortedOrder((filename, path) -> futures.put(filename, CompletableFuture.supplyAsync(() -> mapper.apply(filename, path), executor)));
+
+        SortedMap<String, T> results = new TreeMap<>();
+        futures.forEach((filename, future) -> results.put(filename, Futures.getUninterruptibly(future)));
+        return results;
+    }
+
+    Path getPath(String filename) {
+        return sortedCqlPaths.get(filename);
+    }
+
     public interface Function {
         void apply(String filename, Path path);
     }
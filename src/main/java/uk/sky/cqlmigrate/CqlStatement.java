@@ -0,0 +1,376 @@
+package uk.sky.cqlmigrate;
+
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+
+/**
+ * A single statement of a cql file, classified by what it does to the cluster so it can be executed accordingly.
+ * <p>
+ * Statements are classified from their leading keywords alone, without validating the rest of the statement, so a
+ * statement that Cassandra would reject may still be classified. Unquoted names are lower cased as Cassandra does,
+ * quoted ones are kept as written.
+ */
+public final class CqlStatement {
+
+    public enum Kind {
+
+        /**
+         * {@code CREATE}, {@code ALTER} or {@code DROP} of a keyspace, table, materialized view, index, type, function,
+         * aggregate or trigger, which changes the schema and so needs the cluster to agree on it.
+         */
+        DDL,
+
+        /**
+         * {@code INSERT}, {@code UPDATE}, {@code DELETE} or a batch of them.
+         */
+        DML,
+
+        /**
+         * Anything else, such as {@code USE}, {@code TRUNCATE}, {@code SELECT} or statements managing roles and permissions.
+         */
+        OTHER
+    }
+
+    private final String cql;
+    private final Kind kind;
+    private final String keyspace;
+    private final String table;
+
+    private CqlStatement(String cql, Kind kind, String keyspace, String table) {
+        this.cql = cql;
+        this.kind = kind;
+        this.keyspace = keyspace;
+        this.table = table;
+    }
+
+    /**
+     * @param cql a single statement, without its terminating {@code ;}
+     * @return the statement classified
+     */
+    public static CqlStatement of(String cql) {
+        return new Classifier(cql).classify();
+    }
+
+    /**
+     * Splits a cql file into statements the same way as when it is migrated, and classifies each of them.
+     *
+     * @param cqlFile cql file
+     * @return statements of the file in the order they appear
+     * @throws IllegalStateException if the file has a non-terminated statement
+     * @throws RuntimeException      if the file cannot be read or is not valid UTF-8
+     */
+    public static List<CqlStatement> parse(Path cqlFile) {
+        return CqlFileParser.parse(cqlFile, ChecksumAlgorithm.SHA_1, Long.MAX_VALUE).getCqlStatements();
+    }
+
+    /**
+     * @return the statements classified as they are taken from the iterator
+     */
+    static Iterator<CqlStatement> classify(Iterator<String> statements) {
+        return new Iterator<CqlStatement>() {
+            @Override
+            public boolean hasNext() {
+                return statements.hasNext();
+            }
+
+            @Override
+            public CqlStatement next() {
+                return of(statements.next());
+            }
+        };
+    }
+
+    public String getCql() {
+        return cql;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * @return the keyspace named by the statement, if it names one: the keyspace created, altered or dropped, or the
+     * keyspace a table or other object is qualified with
+     */
+    public Optional<String> getKeyspace() {
+        return Optional.ofNullable(keyspace);
+    }
+
+    /**
+     * @return the table the statement changes or writes to: the table, or materialized view, created, altered or dropped,
+     * the table an index or trigger is created on, or the table of a DML statement other than a batch
+     */
+    public Optional<String> getTable() {
+        return Optional.ofNullable(table);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        CqlStatement that = (CqlStatement) o;
+        return cql.equals(that.cql);
+    }
+
+    @Override
+    public int hashCode() {
+        return cql.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return cql;
+    }
+
+    /**
+     * Reads the names and keywords at the start of a statement, skipping whitespace, comments and literals.
+     */
+    private static class Classifier {
+
+        private final String cql;
+        private int position;
+        private String keyspace;
+        private String table;
+
+        private Classifier(String cql) {
+            this.cql = cql;
+        }
+
+        private CqlStatement classify() {
+            String keyword = nextKeyword();
+            switch (keyword) {
+                case "CREATE":
+                case "ALTER":
+                case "DROP":
+                    return ddl(keyword);
+                case "INSERT":
+                    return dml(skipKeyword("INTO") && name());
+                case "UPDATE":
+                    return dml(name());
+                case "DELETE":
+                    return dml(skipTo("FROM") && name());
+                case "BEGIN":
+                    skipKeyword("UNLOGGED");
+                    skipKeyword("COUNTER");
+                    return "BATCH".equals(nextKeyword()) ? dml(false) : other();
+                default:
+                    return other();
+            }
+        }
+
+        private CqlStatement ddl(String verb) {
+            if ("CREATE".equals(verb) && skipKeyword("OR")) {
+                nextKeyword();
+            }
+            skipKeyword("CUSTOM");
+            String object = nextKeyword();
+            switch (object) {
+                case "KEYSPACE":
+                case "SCHEMA":
+                    skipIfExists();
+                    keyspace = nextName();
+                    return result(Kind.DDL);
+                case "TABLE":
+                case "COLUMNFAMILY":
+                    skipIfExists();
+                    name();
+                    return result(Kind.DDL);
+                case "MATERIALIZED":
+                    nextKeyword();
+                    skipIfExists();
+                    name();
+                    return result(Kind.DDL);
+                case "INDEX":
+                case "TRIGGER":
+                    skipIfExists();
+                    if ("CREATE".equals(verb) || "TRIGGER".equals(object)) {
+                        skipTo("ON");
+                        name();
+                    } else {
+                        qualifiedKeyspace();
+                    }
+                    return result(Kind.DDL);
+                case "TYPE":
+                case "FUNCTION":
+                case "AGGREGATE":
+                    skipIfExists();
+                    qualifiedKeyspace();
+                    return result(Kind.DDL);
+                default:
+                    return other();
+            }
+        }
+
+        private CqlStatement dml(boolean named) {
+            return named ? result(Kind.DML) : new CqlStatement(cql, Kind.DML, null, null);
+        }
+
+        private CqlStatement other() {
+            return new CqlStatement(cql, Kind.OTHER, null, null);
+        }
+
+        private CqlStatement result(Kind kind) {
+            return new CqlStatement(cql, kind, keyspace, table);
+        }
+
+        private void skipIfExists() {
+            if (skipKeyword("IF")) {
+                skipKeyword("NOT");
+                skipKeyword("EXISTS");
+            }
+        }
+
+        /**
+         * Reads a possibly qualified table name.
+         */
+        private boolean name() {
+            String first = nextName();
+            if (first == null) {
+                return false;
+            }
+            if (skipDot()) {
+                keyspace = first;
+                table = nextName();
+            } else {
+                table = first;
+            }
+            return table != null;
+        }
+
+        /**
+         * Reads a possibly qualified name of something other than a table, only keeping its keyspace.
+         */
+        private void qualifiedKeyspace() {
+            String first = nextName();
+            if (first != null && skipDot()) {
+                keyspace = first;
+            }
+        }
+
+        private boolean skipTo(String keyword) {
+            while (skipWhitespace()) {
+                int start = position;
+                if (keyword.equals(nextKeyword())) {
+                    return true;
+                }
+                if (position == start) {
+                    skipToken();
+                }
+            }
+            return false;
+        }
+
+        private boolean skipKeyword(String keyword) {
+            int start = position;
+            if (keyword.equals(nextKeyword())) {
+                return true;
+            }
+            position = start;
+            return false;
+        }
+
+        private boolean skipDot() {
+            if (skipWhitespace() && cql.charAt(position) == '.') {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * @return the next unquoted word upper cased, or an empty string if the next token is not one
+         */
+        private String nextKeyword() {
+            if (!skipWhitespace()) {
+                return "";
+            }
+            int start = position;
+            while (position < cql.length() && isWordPart(cql.charAt(position))) {
+                position++;
+            }
+            return cql.substring(start, position).toUpperCase(Locale.ROOT);
+        }
+
+        /**
+         * @return the next name, lower cased unless it is quoted, or null if the next token is not a name
+         */
+        private String nextName() {
+            if (!skipWhitespace()) {
+                return null;
+            }
+            if (cql.charAt(position) == '"') {
+                StringBuilder name = new StringBuilder();
+                for (position++; position < cql.length(); position++) {
+                    char c = cql.charAt(position);
+                    if (c == '"') {
+                        if (position + 1 < cql.length() && cql.charAt(position + 1) == '"') {
+                            position++;
+                        } else {
+                            position++;
+                            return name.toString();
+                        }
+                    }
+                    name.append(c);
+                }
+                return null;
+            }
+            String word = nextKeyword();
+            return word.isEmpty() ? null : word.toLowerCase(Locale.ROOT);
+        }
+
+        private void skipToken() {
+            char c = cql.charAt(position);
+            if (c == '\'' || c == '"') {
+                int end = position + 1;
+                while (end < cql.length()) {
+                    if (cql.charAt(end) == c) {
+                        if (end + 1 < cql.length() && cql.charAt(end + 1) == c) {
+                            end += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    end++;
+                }
+                position = Math.min(end + 1, cql.length());
+            } else if (cql.startsWith("$$", position)) {
+                int end = cql.indexOf("$$", position + 2);
+                position = end < 0 ? cql.length() : end + 2;
+            } else {
+                position++;
+            }
+        }
+
+        /**
+         * @return whether anything other than whitespace and comments remains
+         */
+        private boolean skipWhitespace() {
+            while (position < cql.length()) {
+                char c = cql.charAt(position);
+                if (Character.isWhitespace(c)) {
+                    position++;
+                } else if (cql.startsWith("--", position) || cql.startsWith("//", position)) {
+                    int end = cql.indexOf('\n', position);
+                    position = end < 0 ? cql.length() : end + 1;
+                } else if (cql.startsWith("/*", position)) {
+                    int end = cql.indexOf("*/", position + 2);
+                    position = end < 0 ? cql.length() : end + 2;
+                } else {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static boolean isWordPart(char c) {
+            return c < 128 && (Character.isLetterOrDigit(c) || c == '_');
+        }
+    }
+}
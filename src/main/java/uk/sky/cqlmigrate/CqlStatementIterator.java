@@ -0,0 +1,193 @@
+package uk.sky.cqlmigrate;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Statements of a cql file, lexed as they are asked for. Only one buffer of the file is held at a time, along with the
+ * statements completed within it, so the memory needed depends on the size of the statements rather than of the file.
+ * <p>
+ * Failures to read the file are thrown as {@link UncheckedIOException}, including contents that are not valid UTF-8,
+ * in which case the cause is a {@link java.nio.charset.CharacterCodingException}.
+ */
+class CqlStatementIterator implements Iterator<String>, Closeable {
+
+    private final FileChannel channel;
+    private final ChecksumAlgorithm algorithm;
+    private final ChecksumAlgorithm.Digest digest;
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
+    private final CqlLexer lexer = new CqlLexer();
+    private final CqlFileHeader.Scanner header = new CqlFileHeader.Scanner();
+    private final ByteBuffer bytes;
+    private final CharBuffer chars;
+    private long byteSize;
+    private boolean endOfInput;
+    private String next;
+
+    /**
+     * @param algorithm algorithm to checksum the file with as it is read, or null if the checksum is not needed
+     * @param bytes     buffer to read the file through, which must not be used by anything else until this is closed
+     * @param chars     buffer to decode the file through, with the same restriction
+     * @throws UncheckedIOException if the file cannot be opened
+     */
+    CqlStatementIterator(Path path, ChecksumAlgorithm algorithm, ByteBuffer bytes, CharBuffer chars) {
+        try {
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.algorithm = algorithm;
+        this.digest = algorithm == null ? null : algorithm.newDigest();
+        this.bytes = bytes;
+        this.chars = chars;
+        bytes.clear();
+        chars.clear();
+    }
+
+    /**
+     * @throws IllegalStateException if the file ends with a non-terminated statement
+     */
+    @Override
+    public boolean hasNext() {
+        while (next == null) {
+            next = lexer.nextStatement();
+            if (next == null) {
+                if (endOfInput) {
+                    lexer.finish();
+                    return false;
+                }
+                read();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        String statement = next;
+        next = null;
+        return statement;
+    }
+
+    /**
+     * @return size of the file in bytes when it was opened
+     */
+    long size() {
+        try {
+            return channel.size();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return directives in the comments before the first statement, complete once a statement has been taken or the
+     * whole file has been read
+     */
+    CqlFileHeader getHeader() {
+        return header.finish();
+    }
+
+    /**
+     * Reads the rest of the file without lexing it, so its checksum can be had after it has failed to parse.
+     */
+    void skipRemaining() {
+        try {
+            bytes.clear();
+            int read;
+            while ((read = channel.read(bytes)) != -1) {
+                bytes.flip();
+                digest.update(bytes);
+                byteSize += read;
+                bytes.clear();
+            }
+            endOfInput = true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return checksum of the whole file, once it has all been read
+     */
+    String getChecksum() {
+        return ChecksumCalculator.format(algorithm, digest.digest());
+    }
+
+    /**
+     * @return bytes read so far, the size of the file once it has all been read
+     */
+    long getByteSize() {
+        return byteSize;
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void read() {
+        try {
+            int undecoded = bytes.position();
+            int read = channel.read(bytes);
+            endOfInput = read == -1;
+            if (read > 0) {
+                if (digest != null) {
+                    ByteBuffer fresh = bytes.duplicate();
+                    fresh.flip().position(undecoded);
+                    digest.update(fresh);
+                }
+                byteSize += read;
+            }
+            bytes.flip();
+            decode();
+            bytes.compact();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void decode() throws IOException {
+        CoderResult result;
+        do {
+            result = decoder.decode(bytes, chars, endOfInput);
+            if (result.isError()) {
+                result.throwException();
+            }
+            lex();
+        } while (result.isOverflow());
+        if (endOfInput) {
+            do {
+                result = decoder.flush(chars);
+                lex();
+            } while (result.isOverflow());
+        }
+    }
+
+    private void lex() {
+        chars.flip();
+        if (!header.isComplete()) {
+            header.accept(chars.duplicate());
+        }
+        lexer.accept(chars);
+        chars.clear();
+    }
+}
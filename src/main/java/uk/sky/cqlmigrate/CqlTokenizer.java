@@ -0,0 +1,257 @@
+package uk.sky.cqlmigrate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Splits a single statement into tokens, for the few features that need to look inside a statement rather than only at
+ * its leading keywords. Comments and whitespace are dropped, and the only syntax it knows is how words, names, literals
+ * and punctuation are written, so it accepts statements Cassandra would reject.
+ */
+class CqlTokenizer {
+
+    enum Type {
+        /**
+         * An unquoted keyword or name.
+         */
+        WORD,
+        /**
+         * A double quoted name.
+         */
+        QUOTED_NAME,
+        /**
+         * A string, {@code $$} string, number, uuid or blob constant.
+         */
+        CONSTANT,
+        /**
+         * Any other single character, such as punctuation or an operator.
+         */
+        SYMBOL
+    }
+
+    static class Token {
+        private final Type type;
+        private final String text;
+        private final int start;
+        private final int end;
+
+        private Token(Type type, String text, int start, int end) {
+            this.type = type;
+            this.text = text;
+            this.start = start;
+            this.end = end;
+        }
+
+        Type getType() {
+            return type;
+        }
+
+        /**
+         * @return the token exactly as written
+         */
+        String getText() {
+            return text;
+        }
+
+        /**
+         * @return offset of the token's first character in the statement
+         */
+        int getStart() {
+            return start;
+        }
+
+        /**
+         * @return offset just after the token's last character in the statement
+         */
+        int getEnd() {
+            return end;
+        }
+
+        /**
+         * @return whether the token is the given keyword, ignoring case
+         */
+        boolean is(String keyword) {
+            return type == Type.WORD && text.equalsIgnoreCase(keyword);
+        }
+
+        boolean is(char symbol) {
+            return type == Type.SYMBOL && text.charAt(0) == symbol;
+        }
+
+        /**
+         * @return the name as Cassandra reads it: lower cased unless quoted, or null if the token is not a name
+         */
+        String name() {
+            if (type == Type.WORD) {
+                return text.toLowerCase(Locale.ROOT);
+            }
+            if (type == Type.QUOTED_NAME) {
+                return text.substring(1, text.length() - 1).replace("\"\"", "\"");
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    private final String cql;
+    private final List<Token> tokens = new ArrayList<>();
+    private int position;
+
+    private CqlTokenizer(String cql) {
+        this.cql = cql;
+    }
+
+    /**
+     * @param cql a single statement
+     * @return its tokens in order
+     * @throws IllegalArgumentException if a literal, name or comment is not terminated
+     */
+    static List<Token> tokenize(String cql) {
+        CqlTokenizer tokenizer = new CqlTokenizer(cql);
+        tokenizer.run();
+        return tokenizer.tokens;
+    }
+
+    private void run() {
+        while (position < cql.length()) {
+            char c = cql.charAt(position);
+            if (Character.isWhitespace(c)) {
+                position++;
+            } else if (cql.startsWith("--", position) || cql.startsWith("//", position)) {
+                int end = cql.indexOf('\n', position);
+                position = end < 0 ? cql.length() : end + 1;
+            } else if (cql.startsWith("/*", position)) {
+                position = endOfBlockComment(position + 2);
+            } else if (c == '\'') {
+                add(Type.CONSTANT, endOfQuoted(position + 1, '\''));
+            } else if (c == '"') {
+                add(Type.QUOTED_NAME, endOfQuoted(position + 1, '"'));
+            } else if (cql.startsWith("$$", position)) {
+                int end = cql.indexOf("$$", position + 2);
+                add(Type.CONSTANT, checkTerminated(end) + 2);
+            } else if (isUuidAt(position)) {
+                add(Type.CONSTANT, position + 36);
+            } else if (isDigit(c) || (c == '-' || c == '.') && startsNumber()) {
+                add(Type.CONSTANT, endOfNumber());
+            } else if (isWordPart(c)) {
+                int end = position;
+                while (end < cql.length() && isWordPart(cql.charAt(end))) {
+                    end++;
+                }
+                add(Type.WORD, end);
+            } else {
+                add(Type.SYMBOL, position + 1);
+            }
+        }
+    }
+
+    private void add(Type type, int end) {
+        tokens.add(new Token(type, cql.substring(position, end), position, end));
+        position = end;
+    }
+
+    /**
+     * A sign or point only starts a number where a value is expected, not after a name or another value.
+     */
+    private boolean startsNumber() {
+        int digit = cql.charAt(position) == '-' && position + 1 < cql.length() && cql.charAt(position + 1) == '.' ? position + 2 : position + 1;
+        if (digit >= cql.length() || !isDigit(cql.charAt(digit))) {
+            return false;
+        }
+        if (tokens.isEmpty()) {
+            return true;
+        }
+        Token previous = tokens.get(tokens.size() - 1);
+        return previous.type == Type.SYMBOL && !previous.is(')') && !previous.is(']') && !previous.is('}')
+                || previous.type == Type.WORD && !isDigit(previous.text.charAt(0));
+    }
+
+    /**
+     * Numbers, including hex blobs, decimals with exponents and {@code NaN} or {@code Infinity} after a sign.
+     */
+    private int endOfNumber() {
+        int end = position;
+        if (cql.charAt(end) == '-') {
+            end++;
+        }
+        while (end < cql.length()) {
+            char c = cql.charAt(end);
+            if (isWordPart(c) || c == '.') {
+                end++;
+            } else if ((c == '+' || c == '-') && (cql.charAt(end - 1) == 'e' || cql.charAt(end - 1) == 'E')
+                    && !cql.startsWith("0x", position) && !cql.startsWith("0X", position)) {
+                end++;
+            } else {
+                break;
+            }
+        }
+        return end;
+    }
+
+    private boolean isUuidAt(int start) {
+        if (start + 36 > cql.length() || start > 0 && isWordPart(cql.charAt(start - 1))
+                || start + 36 < cql.length() && isWordPart(cql.charAt(start + 36))) {
+            return false;
+        }
+        for (int i = 0; i < 36; i++) {
+            char c = cql.charAt(start + i);
+            boolean dash = i == 8 || i == 13 || i == 18 || i == 23;
+            if (dash ? c != '-' : Character.digit(c, 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int endOfQuoted(int from, char quote) {
+        for (int i = from; i < cql.length(); i++) {
+            if (cql.charAt(i) == quote) {
+                if (i + 1 < cql.length() && cql.charAt(i + 1) == quote) {
+                    i++;
+                } else {
+                    return i + 1;
+                }
+            }
+        }
+        return checkTerminated(-1);
+    }
+
+    private int endOfBlockComment(int from) {
+        int depth = 1;
+        int i = from;
+        while (i + 1 < cql.length()) {
+            if (cql.startsWith("*/", i)) {
+                i += 2;
+                if (--depth == 0) {
+                    return i;
+                }
+            } else if (cql.startsWith("/*", i)) {
+                depth++;
+                i += 2;
+            } else {
+                i++;
+            }
+        }
+        return checkTerminated(-1);
+    }
+
+    private int checkTerminated(int end) {
+        if (end < 0) {
+            throw new IllegalArgumentException("Statement has a non-terminated literal, name or comment: " + cql);
+        }
+        return end;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isWordPart(char c) {
+        return c < 128 && (Character.isLetterOrDigit(c) || c == '_');
+    }
+}
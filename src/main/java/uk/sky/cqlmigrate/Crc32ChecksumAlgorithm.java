@@ -0,0 +1,28 @@
+package uk.sky.cqlmigrate;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+class Crc32ChecksumAlgorithm implements ChecksumAlgorithm {
+
+    @Override
+    public String getId() {
+        return "crc32";
+    }
+
+    @Override
+    public Digest newDigest() {
+        final CRC32 crc32 = new CRC32();
+        return new Digest() {
+            @Override
+            public void update(ByteBuffer buffer) {
+                crc32.update(buffer);
+            }
+
+            @Override
+            public byte[] digest() {
+                return ByteBuffer.allocate(Integer.BYTES).putInt((int) crc32.getValue()).array();
+            }
+        };
+    }
+}
@@ -0,0 +1,405 @@
+package uk.sky.cqlmigrate;
+
+import com.datastax.oss.driver.api.core.CqlIdentifier;
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.metadata.schema.ColumnMetadata;
+import com.datastax.oss.driver.api.core.metadata.schema.TableMetadata;
+import com.datastax.oss.driver.api.core.type.DataType;
+import com.datastax.oss.driver.api.core.type.DataTypes;
+import com.datastax.oss.driver.api.core.type.codec.CodecNotFoundException;
+import com.datastax.oss.driver.api.core.type.codec.TypeCodec;
+import com.datastax.oss.driver.api.core.type.codec.registry.CodecRegistry;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Groups consecutive DML statements that write to the same partition into batches, so a file of reference data costs
+ * a round trip per partition rather than per statement. Batches are executed unlogged: a single partition batch is
+ * applied atomically by one replica set, so the batch log would add nothing.
+ * <p>
+ * A batch applies every statement with the same timestamp, so to give the same outcome as executing the statements one
+ * after another a batch never holds two statements for the same row. Only statements naming every primary key column with
+ * an equality on a constant are batched, and not those with a condition or their own timestamp, nor those writing to tables
+ * with static or counter columns, where different rows can touch the same cells. Key constants are compared by value, so
+ * the same row written differently, such as {@code 01} and {@code 1}, is still told apart from other rows; only key
+ * columns of types whose constants are read the same way by the driver as by Cassandra, numbers, text, booleans, uuids
+ * and blobs, can be compared that way. Anything else ends the batch and is executed on its own, in order.
+ * <p>
+ * A batch is kept to {@link #MAX_BATCH_BYTES} of cql, matching Cassandra's default {@code batch_size_warn_threshold}.
+ */
+class DmlBatcher {
+
+    static final int MAX_BATCH_BYTES = 5 * 1024;
+
+    private static final Set<DataType> COMPARABLE_KEY_TYPES = new HashSet<>(Arrays.asList(
+            DataTypes.TINYINT, DataTypes.SMALLINT, DataTypes.INT, DataTypes.BIGINT, DataTypes.VARINT,
+            DataTypes.FLOAT, DataTypes.DOUBLE, DataTypes.DECIMAL,
+            DataTypes.TEXT, DataTypes.ASCII, DataTypes.BOOLEAN, DataTypes.UUID, DataTypes.TIMEUUID, DataTypes.BLOB));
+
+    private final Function<CqlStatement, Optional<PrimaryKey>> primaryKeys;
+    private final Consumer<List<CqlStatement>> executor;
+    private final Map<List<String>, Optional<PrimaryKey>> primaryKeysByTable = new HashMap<>();
+    private final List<CqlStatement> batch = new ArrayList<>();
+    private final Set<List<String>> batchRows = new HashSet<>();
+    private List<String> batchPartition;
+    private int batchBytes;
+
+    /**
+     * @param primaryKeys primary key of the table a DML statement writes to, or empty if its statements are not to be batched,
+     *                    which is only looked up once per table until {@link #forgetTables()}
+     * @param executor    executes a batch of statements, or a single statement, in order
+     */
+    DmlBatcher(Function<CqlStatement, Optional<PrimaryKey>> primaryKeys, Consumer<List<CqlStatement>> executor) {
+        this.primaryKeys = primaryKeys;
+        this.executor = executor;
+    }
+
+    /**
+     * A batcher finding the primary keys of tables in the session's schema metadata.
+     */
+    static DmlBatcher forSession(CqlSession session, Consumer<List<CqlStatement>> executor) {
+        return new DmlBatcher(statement -> {
+            Optional<CqlIdentifier> keyspace = statement.getKeyspace().map(CqlIdentifier::fromInternal);
+            if (!keyspace.isPresent()) {
+                keyspace = session.getKeyspace();
+            }
+            if (!keyspace.isPresent() || !statement.getTable().isPresent()) {
+                return Optional.empty();
+            }
+            CqlIdentifier table = CqlIdentifier.fromInternal(statement.getTable().get());
+            return session.getMetadata()
+                    .getKeyspace(keyspace.get())
+                    .flatMap(keyspaceMetadata -> keyspaceMetadata.getTable(table))
+                    .flatMap(PrimaryKey::of);
+        }, executor);
+    }
+
+    /**
+     * Adds the statement to the current batch, first executing the current batch if the statement cannot join it.
+     *
+     * @return whether the statement was added, if not it must be executed on its own after {@link #flush() flushing}
+     */
+    boolean add(CqlStatement statement) {
+        if (statement.getKind() != CqlStatement.Kind.DML) {
+            return false;
+        }
+        List<String> table = Arrays.asList(statement.getKeyspace().orElse(""), statement.getTable().orElse(""));
+        Optional<Row> row = primaryKeysByTable.computeIfAbsent(table, key -> primaryKeys.apply(statement))
+                .flatMap(primaryKey -> primaryKey.rowOf(statement));
+        if (!row.isPresent()) {
+            return false;
+        }
+        int bytes = statement.getCql().getBytes(StandardCharsets.UTF_8).length;
+        if (!batch.isEmpty() && (!row.get().partition.equals(batchPartition) || batchRows.contains(row.get().key)
+                || batchBytes + bytes > MAX_BATCH_BYTES)) {
+            flush();
+        }
+        batch.add(statement);
+        batchRows.add(row.get().key);
+        batchPartition = row.get().partition;
+        batchBytes += bytes;
+        return true;
+    }
+
+    /**
+     * Executes the current batch, if there is one.
+     */
+    void flush() {
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<CqlStatement> statements = new ArrayList<>(batch);
+        batch.clear();
+        batchRows.clear();
+        batchPartition = null;
+        batchBytes = 0;
+        executor.accept(statements);
+    }
+
+    /**
+     * Executes the current batch and forgets the primary keys looked up so far, which must be done after any statement
+     * other than DML, as it may have changed a table or the session's keyspace.
+     */
+    void forgetTables() {
+        flush();
+        primaryKeysByTable.clear();
+    }
+
+    /**
+     * The primary key columns of a table, by name, with their types.
+     */
+    static class PrimaryKey {
+        private final List<String> partitionKey;
+        private final List<String> clusteringColumns;
+        private final Map<String, DataType> columnTypes;
+
+        /**
+         * @param columnTypes type of each of the key columns, by name
+         */
+        PrimaryKey(List<String> partitionKey, List<String> clusteringColumns, Map<String, DataType> columnTypes) {
+            this.partitionKey = partitionKey;
+            this.clusteringColumns = clusteringColumns;
+            this.columnTypes = columnTypes;
+        }
+
+        /**
+         * @return the table's primary key, or empty if the table has static or counter columns
+         */
+        static Optional<PrimaryKey> of(TableMetadata table) {
+            boolean batchable = table.getColumns().values().stream()
+                    .noneMatch(column -> column.isStatic() || column.getType().equals(DataTypes.COUNTER));
+            if (!batchable) {
+                return Optional.empty();
+            }
+            List<ColumnMetadata> clusteringColumns = new ArrayList<>(table.getClusteringColumns().keySet());
+            Map<String, DataType> columnTypes = new HashMap<>();
+            table.getPartitionKey().forEach(column -> columnTypes.put(column.getName().asInternal(), column.getType()));
+            clusteringColumns.forEach(column -> columnTypes.put(column.getName().asInternal(), column.getType()));
+            return Optional.of(new PrimaryKey(namesOf(table.getPartitionKey()), namesOf(clusteringColumns), columnTypes));
+        }
+
+        private static List<String> namesOf(List<ColumnMetadata> columns) {
+            return columns.stream().map(column -> column.getName().asInternal()).collect(Collectors.toList());
+        }
+
+        /**
+         * @return the row the statement writes to, or empty if the statement cannot be batched
+         */
+        Optional<Row> rowOf(CqlStatement statement) {
+            List<CqlTokenizer.Token> tokens;
+            try {
+                tokens = CqlTokenizer.tokenize(statement.getCql());
+            } catch (IllegalArgumentException e) {
+                return Optional.empty();
+            }
+            Map<String, String> values = tokens.get(0).is("INSERT") ? insertedValues(tokens) : whereValues(tokens);
+            if (values == null) {
+                return Optional.empty();
+            }
+            List<String> partition = new ArrayList<>();
+            partition.add(statement.getKeyspace().orElse(""));
+            partition.add(statement.getTable().orElse(""));
+            for (String column : partitionKey) {
+                String value = comparableValue(column, values.get(column));
+                if (value == null) {
+                    return Optional.empty();
+                }
+                partition.add(value);
+            }
+            List<String> key = new ArrayList<>(partition);
+            for (String column : clusteringColumns) {
+                String value = comparableValue(column, values.get(column));
+                if (value == null) {
+                    return Optional.empty();
+                }
+                key.add(value);
+            }
+            return Optional.of(new Row(partition, key));
+        }
+
+        /**
+         * @return the key column's constant in a canonical form, the same for every way of writing the same value, or
+         * null if there is no constant or it cannot be compared by value
+         */
+        private String comparableValue(String column, String constant) {
+            DataType type = columnTypes.get(column);
+            if (constant == null || type == null || !COMPARABLE_KEY_TYPES.contains(type)) {
+                return null;
+            }
+            try {
+                TypeCodec<Object> codec = CodecRegistry.DEFAULT.codecFor(type);
+                Object value = codec.parse(constant);
+                if (value instanceof BigDecimal) {
+                    // decimals of different scales compare equal
+                    return ((BigDecimal) value).stripTrailingZeros().toPlainString();
+                }
+                return value == null ? null : codec.format(value);
+            } catch (IllegalArgumentException | CodecNotFoundException e) {
+                return null;
+            }
+        }
+
+        /**
+         * @return constants by column of {@code INSERT INTO t (columns) VALUES (values)}, or null if it cannot be batched
+         */
+        private static Map<String, String> insertedValues(List<CqlTokenizer.Token> tokens) {
+            int open = indexOf(tokens, 0, "(");
+            int close = indexOf(tokens, open, ")");
+            int valuesOpen = close + 2;
+            if (open < 0 || close < 0 || valuesOpen >= tokens.size() || !tokens.get(close + 1).is("VALUES") || !tokens.get(valuesOpen).is('(')) {
+                return null;
+            }
+            List<List<CqlTokenizer.Token>> columns = split(tokens, open + 1, close);
+            List<List<CqlTokenizer.Token>> values = new ArrayList<>();
+            int valuesClose = splitValues(tokens, valuesOpen + 1, values);
+            if (valuesClose < 0 || columns.size() != values.size() || hasConditionOrTimestamp(tokens, valuesClose + 1)) {
+                return null;
+            }
+            Map<String, String> constants = new HashMap<>();
+            for (int i = 0; i < columns.size(); i++) {
+                String column = columns.get(i).size() == 1 ? columns.get(i).get(0).name() : null;
+                if (column == null) {
+                    return null;
+                }
+                String constant = constantOf(values.get(i));
+                if (constant != null) {
+                    constants.put(column, constant);
+                }
+            }
+            return constants;
+        }
+
+        /**
+         * @return constants by column of the {@code WHERE} clause of an {@code UPDATE} or {@code DELETE}, or null if it
+         * cannot be batched
+         */
+        private static Map<String, String> whereValues(List<CqlTokenizer.Token> tokens) {
+            int where = indexOf(tokens, 0, "WHERE");
+            if (where < 0 || hasConditionOrTimestamp(tokens, 0)) {
+                return null;
+            }
+            Map<String, String> constants = new HashMap<>();
+            int start = where + 1;
+            while (start < tokens.size()) {
+                int end = indexOf(tokens, start, "AND");
+                List<CqlTokenizer.Token> relation = tokens.subList(start, end < 0 ? tokens.size() : end);
+                if (relation.size() < 3 || relation.get(0).name() == null || !relation.get(1).is('=')) {
+                    return null;
+                }
+                String constant = constantOf(relation.subList(2, relation.size()));
+                if (constant == null) {
+                    return null;
+                }
+                constants.put(relation.get(0).name(), constant);
+                start = end < 0 ? tokens.size() : end + 1;
+            }
+            return constants;
+        }
+
+        /**
+         * @return whether the statement has an {@code IF} condition or a {@code USING TIMESTAMP} from the given token on
+         */
+        private static boolean hasConditionOrTimestamp(List<CqlTokenizer.Token> tokens, int from) {
+            boolean using = false;
+            int depth = 0;
+            for (int i = from; i < tokens.size(); i++) {
+                CqlTokenizer.Token token = tokens.get(i);
+                depth += token.is('(') || token.is('[') || token.is('{') ? 1 : token.is(')') || token.is(']') || token.is('}') ? -1 : 0;
+                if (depth == 0) {
+                    if (token.is("IF")) {
+                        return true;
+                    }
+                    if (token.is("USING")) {
+                        using = true;
+                    } else if (token.is("SET") || token.is("WHERE")) {
+                        using = false;
+                    } else if (using && token.is("TIMESTAMP")) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return the constant, as written, if the value is a single constant or boolean, otherwise null
+         */
+        private static String constantOf(List<CqlTokenizer.Token> value) {
+            if (value.size() != 1) {
+                return null;
+            }
+            CqlTokenizer.Token token = value.get(0);
+            if (token.getType() == CqlTokenizer.Type.CONSTANT) {
+                return token.getText();
+            }
+            return token.is("true") || token.is("false") ? token.getText().toLowerCase(Locale.ROOT) : null;
+        }
+
+        /**
+         * Splits the tokens up to the closing parenthesis matching an opening one just before {@code from} at top level commas.
+         *
+         * @return index of the closing parenthesis, or -1 if there is none
+         */
+        private static int splitValues(List<CqlTokenizer.Token> tokens, int from, List<List<CqlTokenizer.Token>> values) {
+            int depth = 0;
+            int start = from;
+            for (int i = from; i < tokens.size(); i++) {
+                CqlTokenizer.Token token = tokens.get(i);
+                if (token.is('(') || token.is('[') || token.is('{')) {
+                    depth++;
+                } else if (depth > 0 && (token.is(')') || token.is(']') || token.is('}'))) {
+                    depth--;
+                } else if (depth == 0 && (token.is(',') || token.is(')'))) {
+                    values.add(tokens.subList(start, i));
+                    start = i + 1;
+                    if (token.is(')')) {
+                        return i;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        private static List<List<CqlTokenizer.Token>> split(List<CqlTokenizer.Token> tokens, int from, int to) {
+            List<List<CqlTokenizer.Token>> parts = new ArrayList<>();
+            int start = from;
+            for (int i = from; i <= to; i++) {
+                if (i == to || tokens.get(i).is(',')) {
+                    parts.add(tokens.subList(start, i));
+                    start = i + 1;
+                }
+            }
+            return parts;
+        }
+
+        /**
+         * @return index of the first top level symbol or keyword at or after {@code from}, or -1 if there is none
+         */
+        private static int indexOf(List<CqlTokenizer.Token> tokens, int from, String symbolOrKeyword) {
+            if (from < 0) {
+                return -1;
+            }
+            int depth = 0;
+            for (int i = from; i < tokens.size(); i++) {
+                CqlTokenizer.Token token = tokens.get(i);
+                boolean match = symbolOrKeyword.length() == 1 && !Character.isLetter(symbolOrKeyword.charAt(0))
+                        ? token.is(symbolOrKeyword.charAt(0)) : token.is(symbolOrKeyword);
+                if (match && (depth == 0 || token.is(')') && depth == 1)) {
+                    return i;
+                }
+                if (token.is('(') || token.is('[') || token.is('{')) {
+                    depth++;
+                } else if (token.is(')') || token.is(']') || token.is('}')) {
+                    depth--;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * The partition a statement writes to, and the row within it, each identified by the constants of its key columns.
+     */
+    static class Row {
+        private final List<String> partition;
+        private final List<String> key;
+
+        private Row(List<String> partition, List<String> key) {
+            this.partition = partition;
+            this.key = key;
+        }
+    }
+}
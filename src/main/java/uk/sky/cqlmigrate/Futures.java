@@ -0,0 +1,24 @@
+package uk.sky.cqlmigrate;
+
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+
+class Futures {
+
+    private Futures() {}
+
+    /**
+     * Waits for an asynchronous driver call to complete, rethrowing any failure as the driver would
+     * for the equivalent synchronous call.
+     */
+    static <T> T getUninterruptibly(CompletionStage<T> stage) {
+        try {
+            return stage.toCompletableFuture().join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
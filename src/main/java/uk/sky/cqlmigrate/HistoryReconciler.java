@@ -0,0 +1,91 @@
+package uk.sky.cqlmigrate;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.BiFunction;
+
+/**
+ * Reconciles the local cql files with the recorded history in a single merge-join pass over both, each sorted by filename,
+ * so only the current file and history row are held at a time whatever the number of files.
+ */
+class HistoryReconciler {
+
+    private HistoryReconciler() {}
+
+    /**
+     * @param localFilenames local cql files in ascending filename order, excluding the bootstrap file
+     * @param localChecksum  gives the checksum of a local file calculated in the same way as its recorded checksum,
+     *                       only called for files that have been recorded
+     * @param history        recorded filename to checksum entries in ascending filename order
+     * @param visitor        told about every local file and history entry, in filename order
+     * @throws IllegalArgumentException if either input is not in strictly ascending order
+     */
+    static void reconcile(Iterator<String> localFilenames, BiFunction<String, String, String> localChecksum,
+                          Iterator<Map.Entry<String, String>> history, Visitor visitor) {
+        String filename = next(localFilenames);
+        Map.Entry<String, String> recorded = next(history);
+
+        while (filename != null || recorded != null) {
+            int comparison = filename == null ? 1 : recorded == null ? -1 : filename.compareTo(recorded.getKey());
+            if (comparison < 0) {
+                visitor.pending(filename);
+                filename = nextInOrder(localFilenames, filename);
+            } else if (comparison > 0) {
+                visitor.orphaned(recorded.getKey(), recorded.getValue());
+                recorded = nextInOrder(history, recorded);
+            } else {
+                String checksum = localChecksum.apply(filename, recorded.getValue());
+                if (checksum.equals(recorded.getValue())) {
+                    visitor.applied(filename, checksum);
+                } else {
+                    visitor.changed(filename, recorded.getValue(), checksum);
+                }
+                filename = nextInOrder(localFilenames, filename);
+                recorded = nextInOrder(history, recorded);
+            }
+        }
+    }
+
+    private static <T> T next(Iterator<T> iterator) {
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    private static String nextInOrder(Iterator<String> filenames, String previous) {
+        String next = next(filenames);
+        if (next != null && next.compareTo(previous) <= 0) {
+            throw new IllegalArgumentException("Local files are not sorted by filename: " + next + " after " + previous);
+        }
+        return next;
+    }
+
+    private static Map.Entry<String, String> nextInOrder(Iterator<Map.Entry<String, String>> history, Map.Entry<String, String> previous) {
+        Map.Entry<String, String> next = next(history);
+        if (next != null && next.getKey().compareTo(previous.getKey()) <= 0) {
+            throw new IllegalArgumentException("History is not sorted by filename: " + next.getKey() + " after " + previous.getKey());
+        }
+        return next;
+    }
+
+    interface Visitor {
+
+        /**
+         * The file has been applied with its current contents.
+         */
+        void applied(String filename, String checksum);
+
+        /**
+         * The file has not been applied.
+         */
+        void pending(String filename);
+
+        /**
+         * The file has been applied, but its contents have changed since.
+         */
+        void changed(String filename, String recordedChecksum, String localChecksum);
+
+        /**
+         * The history records a file that is not present locally.
+         */
+        void orphaned(String filename, String recordedChecksum);
+    }
+}
@@ -5,6 +5,7 @@ import org.slf4j.LoggerFactory;
 import uk.sky.cqlmigrate.exception.CannotAcquireLockException;
 import uk.sky.cqlmigrate.exception.CannotReleaseLockException;
 
+import java.time.Duration;
 import java.util.concurrent.TimeoutException;
 
 /**
@@ -17,6 +18,9 @@ class Lock {
     private final LockingMechanism lockingMechanism;
     private final LockConfig lockConfig;
 
+    private Long acquiredAtNanos;
+    private Duration holdTime = Duration.ZERO;
+
     /**
      *
      * @param lockingMechanism {@code LockingMechanism} to use to acquire the lock
@@ -45,6 +49,7 @@ class Lock {
                     .withTimeout(lockConfig.getTimeout())
                     .withPollingInterval(lockConfig.getPollingInterval())
                     .untilSuccess();
+            acquiredAtNanos = System.nanoTime();
         } catch (TimeoutException te) {
             log.warn("Unable to acquire lock for {}", lockConfig.getClientId(), te);
             throw new CannotAcquireLockException("Lock currently in use", te);
@@ -63,6 +68,10 @@ class Lock {
      */
     public void unlock(boolean migrationFailed) throws CannotReleaseLockException {
         String lockName = lockingMechanism.getLockName();
+        if (acquiredAtNanos != null) {
+            holdTime = Duration.ofNanos(System.nanoTime() - acquiredAtNanos);
+            log.info("Lock for '{}' held for {} ms by client id '{}'", lockName, holdTime.toMillis(), lockConfig.getClientId());
+        }
 
         if (migrationFailed && !lockConfig.unlockOnFailure()) {
             log.info("Not releasing the lock for name '{}' and client id '{}' due to failure (use LockConfig.unlockOnFailure() to change that behavior)",
@@ -84,4 +93,12 @@ class Lock {
             throw new CannotReleaseLockException(String.format("Polling to release lock %s for client %s was interrupted", lockName, lockConfig.getClientId()), e);
         }
     }
+
+    /**
+     * @return how long the lock was held for, from acquiring it until {@link #unlock(boolean)} was called,
+     * or zero if it has not been unlocked yet
+     */
+    Duration getHoldTime() {
+        return holdTime;
+    }
 }
@@ -0,0 +1,211 @@
+package uk.sky.cqlmigrate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.SortedMap;
+import java.util.concurrent.Executor;
+import java.util.function.BiFunction;
+
+/**
+ * Merkle tree over the sorted (filename, checksum) pairs of a set of cql files.
+ * <p>
+ * Leaves sit on level 0 in filename order. A node on level {@code h} at index {@code k} covers the
+ * leaves {@code [k * 2^h, (k + 1) * 2^h)}, so blocks of files that are already applied keep the same
+ * position and digest when new files are appended, and only the right hand spine of the tree changes.
+ */
+class ManifestTree {
+
+    private final SortedMap<String, String> checksums;
+    private final List<String> filenames;
+    private final List<List<String>> levels = new ArrayList<>();
+    private final BiFunction<String, String, String> checksumLike;
+
+    private ManifestTree(SortedMap<String, String> checksums, BiFunction<String, String, String> checksumLike) {
+        this.checksums = checksums;
+        this.checksumLike = checksumLike;
+        this.filenames = new ArrayList<>(checksums.keySet());
+
+        List<String> leaves = new ArrayList<>(checksums.size());
+        checksums.forEach((filename, checksum) -> leaves.add(digest(filename + "\n" + checksum)));
+        levels.add(leaves);
+
+        List<String> level = leaves;
+        while (level.size() > 1) {
+            List<String> parents = new ArrayList<>((level.size() + 1) / 2);
+            for (int i = 0; i < level.size(); i += 2) {
+                String right = i + 1 < level.size() ? level.get(i + 1) : "";
+                parents.add(digest(level.get(i) + right));
+            }
+            levels.add(parents);
+            level = parents;
+        }
+    }
+
+    /**
+     * @param checksums checksum of each cql file keyed and sorted by filename
+     * @return the tree over those files
+     */
+    static ManifestTree of(SortedMap<String, String> checksums) {
+        return new ManifestTree(checksums, (filename, recordedChecksum) -> checksums.get(filename));
+    }
+
+    /**
+     * @param paths cql files to build the tree over, excluding the bootstrap file
+     * @return the tree over those files
+     */
+    static ManifestTree of(CqlPaths paths) {
+        return of(paths, new ChecksumCache(), Runnable::run);
+    }
+
+    /**
+     * @param paths         cql files to build the tree over, excluding the bootstrap file
+     * @param checksumCache cache to take the files' checksums from
+     * @param executor      executor to checksum the files on
+     * @return the tree over those files
+     */
+    static ManifestTree of(CqlPaths paths, ChecksumCache checksumCache, Executor executor) {
+        return new ManifestTree(paths.mapInSortedOrder((filename, path) -> checksumCache.checksum(path), executor),
+                (filename, recordedChecksum) -> checksumCache.checksumLike(paths.getPath(filename), recordedChecksum));
+    }
+
+    /**
+     * @return the level of the root node, 0 for a tree with at most one file
+     */
+    int height() {
+        return levels.size() - 1;
+    }
+
+    int width(int level) {
+        return levels.get(level).size();
+    }
+
+    String digest(int level, int idx) {
+        return levels.get(level).get(idx);
+    }
+
+    /**
+     * @return digest identifying the whole set of files and their checksums
+     */
+    String rootDigest() {
+        return filenames.isEmpty() ? digest("") : digest(height(), 0);
+    }
+
+    /**
+     * Walks down from the root comparing this tree with a previously stored one, only descending into
+     * nodes whose digests differ, so each level costs a single lookup of the stored digests.
+     * Nodes are aligned on powers of two, so a node missing from the stored tree either sits past its last file,
+     * in which case all the files under it are new, or above its root, in which case its halves are compared.
+     *
+     * @param storedDigests returns the stored digests of the given indexes on a level, keyed by index;
+     *                      indexes that were never stored are left out
+     * @param maxNodesPerLevel the most nodes worth looking up on one level before giving up
+     * @return filenames whose leaves differ from the stored tree, or empty if the divergence was too wide to narrow down
+     */
+    Optional<List<String>> divergentFiles(BiFunction<Integer, Collection<Integer>, Map<Integer, String>> storedDigests, int maxNodesPerLevel) {
+        List<String> divergent = new ArrayList<>();
+        if (filenames.isEmpty()) {
+            return Optional.of(divergent);
+        }
+
+        List<Integer> candidates = new ArrayList<>();
+        candidates.add(0);
+        for (int level = height(); level >= 0 && !candidates.isEmpty(); level--) {
+            if (candidates.size() > maxNodesPerLevel) {
+                return Optional.empty();
+            }
+            Map<Integer, String> stored = storedDigests.apply(level, candidates);
+
+            List<Integer> children = new ArrayList<>();
+            for (int idx : candidates) {
+                String storedDigest = stored.get(idx);
+                if (digest(level, idx).equals(storedDigest)) {
+                    continue;
+                }
+                if (level == 0) {
+                    divergent.add(filenames.get(idx));
+                } else if (storedDigest == null && idx > 0) {
+                    // the stored tree ends before this block, so every file under it is new
+                    divergent.addAll(leavesUnder(level, idx));
+                } else {
+                    // either the block changed or the stored tree was not this tall, so compare its halves
+                    children.add(2 * idx);
+                    if (2 * idx + 1 < width(level - 1)) {
+                        children.add(2 * idx + 1);
+                    }
+                }
+            }
+            candidates = children;
+        }
+        divergent.sort(null);
+        return Optional.of(divergent);
+    }
+
+    /**
+     * @return the last file in filename order, if there are any
+     */
+    Optional<String> lastFilename() {
+        return filenames.isEmpty() ? Optional.empty() : Optional.of(filenames.get(filenames.size() - 1));
+    }
+
+    /**
+     * @param lastFilename last file of the prefix
+     * @return digest identifying the files up to and including the given one and their checksums,
+     * or empty if there is no such file
+     */
+    Optional<String> prefixDigest(String lastFilename) {
+        int end = Collections.binarySearch(filenames, lastFilename);
+        if (end < 0) {
+            return Optional.empty();
+        }
+        StringBuilder leaves = new StringBuilder();
+        for (int idx = 0; idx <= end; idx++) {
+            leaves.append(digest(0, idx));
+        }
+        return Optional.of(digest(leaves.toString()));
+    }
+
+    /**
+     * @return files sorting after the given filename, in filename order
+     */
+    List<String> filenamesAfter(String filename) {
+        int idx = Collections.binarySearch(filenames, filename);
+        int from = idx < 0 ? -idx - 1 : idx + 1;
+        return filenames.subList(from, filenames.size());
+    }
+
+    String filename(int idx) {
+        return filenames.get(idx);
+    }
+
+    String checksum(String filename) {
+        return checksums.get(filename);
+    }
+
+    /**
+     * @param recordedChecksum checksum recorded for the file when it was applied
+     * @return checksum of the local file calculated in the same way as the recorded one, so the two can be compared,
+     * or null if there is no such file
+     */
+    String checksumLike(String filename, String recordedChecksum) {
+        String checksum = checksums.get(filename);
+        if (checksum == null || ChecksumCalculator.sameAlgorithm(checksum, recordedChecksum)) {
+            return checksum;
+        }
+        return checksumLike.apply(filename, recordedChecksum);
+    }
+
+    private List<String> leavesUnder(int level, int idx) {
+        int from = idx << level;
+        int to = Math.min(filenames.size(), (idx + 1) << level);
+        return filenames.subList(from, to);
+    }
+
+    private static String digest(String value) {
+        return ChecksumCalculator.calculateChecksum(value.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,195 @@
+package uk.sky.cqlmigrate;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Statements of a memory mapped cql file, found by scanning the mapped bytes in place. Only the offset and length of
+ * the next statement are kept, and its string is only decoded when it is taken from the iterator, so comments and
+ * whitespace between statements are never copied.
+ * <p>
+ * Every character that matters to the syntax is ASCII, and no byte of a multi-byte UTF-8 character is, so the bytes can
+ * be scanned without decoding them. The rules are those of {@link CqlLexer}, except that a statement is handed over
+ * exactly as written, including any comments and line breaks within it, and that only {@code \n} and {@code \r} end a
+ * {@code --} or {@code //} comment. Bytes that are not valid UTF-8 are replaced rather than reported.
+ * <p>
+ * The mapping is released when the iterator is garbage collected.
+ */
+class MappedCqlStatements implements Iterator<String> {
+
+    private static final String NON_TERMINATED = "File had a non-terminated cql line";
+
+    private final ByteBuffer bytes;
+    private final int length;
+    private int position;
+    private int start = -1;
+    private int end;
+    private byte[] scratch = new byte[0];
+
+    MappedCqlStatements(ByteBuffer bytes) {
+        this.bytes = bytes;
+        this.length = bytes.limit();
+    }
+
+    /**
+     * @return whether a file of the given size can be mapped in one piece
+     */
+    static boolean canMap(long size) {
+        return size <= Integer.MAX_VALUE;
+    }
+
+    /**
+     * @throws UncheckedIOException if the file cannot be mapped
+     */
+    static MappedCqlStatements map(Path path) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new MappedCqlStatements(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return the whole file, independent of the position of the iterator
+     */
+    ByteBuffer contents() {
+        ByteBuffer contents = bytes.duplicate();
+        contents.clear();
+        return contents;
+    }
+
+    /**
+     * Skips the remaining statements without decoding any of them.
+     *
+     * @return how many there were
+     * @throws IllegalStateException if the last statement, literal or comment is not terminated
+     */
+    int skipRemaining() {
+        int count = 0;
+        while (hasNext()) {
+            start = -1;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @throws IllegalStateException if the last statement, literal or comment is not terminated
+     */
+    @Override
+    public boolean hasNext() {
+        return start >= 0 || scan();
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        int statementLength = end - start;
+        if (scratch.length < statementLength) {
+            scratch = new byte[statementLength];
+        }
+        ByteBuffer statement = bytes.duplicate();
+        statement.clear();
+        statement.position(start);
+        statement.get(scratch, 0, statementLength);
+        start = -1;
+        return new String(scratch, 0, statementLength, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Finds the bounds of the next statement, from its first character of code to its last.
+     */
+    private boolean scan() {
+        int i = position;
+        while (i < length) {
+            byte current = bytes.get(i);
+            byte following = i + 1 < length ? bytes.get(i + 1) : 0;
+            if (current == ';') {
+                i++;
+                if (start >= 0) {
+                    position = i;
+                    return true;
+                }
+            } else if (current >= 0 && current <= ' ') {
+                i++;
+            } else if (current == '-' && following == '-' || current == '/' && following == '/') {
+                i = endOfLine(i + 2);
+            } else if (current == '/' && following == '*') {
+                i = endOfBlockComment(i + 2);
+            } else {
+                if (start < 0) {
+                    start = i;
+                }
+                if (current == '\'' || current == '"') {
+                    i = endOfQuoted(i + 1, current);
+                } else if (current == '$' && following == '$') {
+                    i = endOfDollarQuoted(i + 2);
+                } else {
+                    i++;
+                }
+                end = i;
+            }
+        }
+        position = length;
+        if (start >= 0) {
+            throw new IllegalStateException(NON_TERMINATED);
+        }
+        return false;
+    }
+
+    private int endOfLine(int from) {
+        int i = from;
+        while (i < length && bytes.get(i) != '\n' && bytes.get(i) != '\r') {
+            i++;
+        }
+        return i;
+    }
+
+    private int endOfBlockComment(int from) {
+        int depth = 1;
+        int i = from;
+        while (i + 1 < length) {
+            byte current = bytes.get(i);
+            byte following = bytes.get(i + 1);
+            if (current == '*' && following == '/') {
+                i += 2;
+                if (--depth == 0) {
+                    return i;
+                }
+            } else if (current == '/' && following == '*') {
+                depth++;
+                i += 2;
+            } else {
+                i++;
+            }
+        }
+        throw new IllegalStateException(NON_TERMINATED);
+    }
+
+    private int endOfQuoted(int from, byte quote) {
+        for (int i = from; i < length; i++) {
+            if (bytes.get(i) == quote) {
+                return i + 1;
+            }
+        }
+        throw new IllegalStateException(NON_TERMINATED);
+    }
+
+    private int endOfDollarQuoted(int from) {
+        for (int i = from; i + 1 < length; i++) {
+            if (bytes.get(i) == '$' && bytes.get(i + 1) == '$') {
+                return i + 2;
+            }
+        }
+        throw new IllegalStateException(NON_TERMINATED);
+    }
+}
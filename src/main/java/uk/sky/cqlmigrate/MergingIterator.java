@@ -0,0 +1,51 @@
+package uk.sky.cqlmigrate;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Merges iterators that are each already sorted into one sorted iterator, holding only the head of each at a time.
+ */
+class MergingIterator<T> implements Iterator<T> {
+
+    private final PriorityQueue<Head<T>> heads;
+
+    MergingIterator(List<Iterator<T>> iterators, Comparator<? super T> comparator) {
+        this.heads = new PriorityQueue<>(Math.max(1, iterators.size()), (a, b) -> comparator.compare(a.value, b.value));
+        iterators.forEach(this::advance);
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !heads.isEmpty();
+    }
+
+    @Override
+    public T next() {
+        Head<T> head = heads.poll();
+        if (head == null) {
+            throw new NoSuchElementException();
+        }
+        advance(head.iterator);
+        return head.value;
+    }
+
+    private void advance(Iterator<T> iterator) {
+        if (iterator.hasNext()) {
+            heads.add(new Head<>(iterator.next(), iterator));
+        }
+    }
+
+    private static class Head<T> {
+        private final T value;
+        private final Iterator<T> iterator;
+
+        private Head(T value, Iterator<T> iterator) {
+            this.value = value;
+            this.iterator = iterator;
+        }
+    }
+}
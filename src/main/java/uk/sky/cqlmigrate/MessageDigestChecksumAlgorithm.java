@@ -0,0 +1,42 @@
+package uk.sky.cqlmigrate;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+class MessageDigestChecksumAlgorithm implements ChecksumAlgorithm {
+
+    private final String id;
+    private final String messageDigestAlgorithm;
+
+    MessageDigestChecksumAlgorithm(String id, String messageDigestAlgorithm) {
+        this.id = id;
+        this.messageDigestAlgorithm = messageDigestAlgorithm;
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public Digest newDigest() {
+        final MessageDigest messageDigest;
+        try {
+            messageDigest = MessageDigest.getInstance(messageDigestAlgorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        return new Digest() {
+            @Override
+            public void update(ByteBuffer buffer) {
+                messageDigest.update(buffer);
+            }
+
+            @Override
+            public byte[] digest() {
+                return messageDigest.digest();
+            }
+        };
+    }
+}
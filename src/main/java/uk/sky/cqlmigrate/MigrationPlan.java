@@ -0,0 +1,209 @@
+package uk.sky.cqlmigrate;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.SortedMap;
+import java.util.concurrent.Executor;
+import java.util.stream.Collectors;
+
+/**
+ * Everything the migration needs from the cql files, prepared before the lock is taken: every file with its checksum,
+ * the parsed statements of the bootstrap file and of each file that may need applying, and the history they were checked
+ * against, if any. Once the lock is held the migration only has to execute statements and record them. Statements of
+ * large files are not kept, they are streamed from the file again as they are executed.
+ */
+class MigrationPlan {
+
+    private final List<String> bootstrapStatements;
+    private final List<Entry> entries;
+    private final Map<String, String> appliedChecksums;
+    private final String manifestRoot;
+    private final ManifestTree manifestTree;
+    private final ChecksumCache checksumCache;
+
+    private MigrationPlan(List<String> bootstrapStatements, List<Entry> entries, Map<String, String> appliedChecksums, String manifestRoot,
+                          ManifestTree manifestTree, ChecksumCache checksumCache) {
+        this.bootstrapStatements = bootstrapStatements;
+        this.entries = entries;
+        this.appliedChecksums = appliedChecksums;
+        this.manifestRoot = manifestRoot;
+        this.manifestTree = manifestTree;
+        this.checksumCache = checksumCache;
+    }
+
+    /**
+     * Parses the bootstrap file and every file not yet applied, so unparseable cql is found before the lock is taken.
+     * Files whose contents have changed since they were applied should have been rejected before the plan is created.
+     *
+     * @param paths            cql files to plan
+     * @param manifestTree     tree over the same files, giving their checksums
+     * @param appliedChecksums checksum recorded for each file that has been applied, keyed by filename,
+     *                         or an empty map if the history has not been read, in which case every file is parsed
+     * @return the plan
+     * @throws IllegalArgumentException if a file to be applied is not a cql file
+     * @throws IllegalStateException    if a file to be applied has a non-terminated statement
+     */
+    static MigrationPlan create(CqlPaths paths, ManifestTree manifestTree, Map<String, String> appliedChecksums) {
+        return create(paths, manifestTree, appliedChecksums, new ChecksumCache(), Runnable::run);
+    }
+
+    /**
+     * As {@link #create(CqlPaths, ManifestTree, Map)}, parsing the files concurrently on the given executor.
+     * The first file in filename order that fails to parse is reported.
+     *
+     * @param checksumCache cache the manifest tree was built from, which already holds the statements of every file
+     *                      it had to read
+     */
+    static MigrationPlan create(CqlPaths paths, ManifestTree manifestTree, Map<String, String> appliedChecksums,
+                                ChecksumCache checksumCache, Executor executor) {
+        return create(paths, manifestTree, appliedChecksums, Optional.empty(), checksumCache, executor);
+    }
+
+    /**
+     * As {@link #create(CqlPaths, ManifestTree, Map, ChecksumCache, Executor)}, for a history read while the stored
+     * schema manifest had the given root, so that once the lock is held only the files still to be applied need their
+     * history read again if the root is unchanged.
+     *
+     * @param manifestRoot root digest of the stored schema manifest, read before the history, if there was one
+     */
+    static MigrationPlan create(CqlPaths paths, ManifestTree manifestTree, Map<String, String> appliedChecksums, Optional<String> manifestRoot,
+                                ChecksumCache checksumCache, Executor executor) {
+        List<String> bootstrapStatements = new ArrayList<>();
+        paths.applyBootstrap((filename, path) -> {
+            if (path != null) {
+                bootstrapStatements.addAll(parse(path, checksumCache).getStatements());
+            }
+        });
+
+        SortedMap<String, ParsedMigration> parsed = paths.mapInSortedOrder(
+                (filename, path) -> appliedChecksums.containsKey(filename) ? null : parse(path, checksumCache), executor);
+        List<Entry> entries = new ArrayList<>(parsed.size());
+        parsed.forEach((filename, parsedMigration) -> entries.add(new Entry(filename, paths.getPath(filename), manifestTree.checksum(filename), parsedMigration)));
+        return new MigrationPlan(Collections.unmodifiableList(bootstrapStatements), Collections.unmodifiableList(entries),
+                new HashMap<>(appliedChecksums), manifestRoot.orElse(null), manifestTree, checksumCache);
+    }
+
+    /**
+     * Parses a file that was not parsed when the plan was made, as it had been applied, the same way as the files that were.
+     *
+     * @return the parsed file, whose statements are only kept if it is small
+     * @throws IllegalArgumentException if the file is not a cql file
+     * @throws IllegalStateException    if the file has a non-terminated statement
+     */
+    ParsedMigration parse(Entry entry) {
+        return parse(entry.getPath(), checksumCache);
+    }
+
+    private static ParsedMigration parse(Path path, ChecksumCache checksumCache) {
+        checkFileType(path);
+        return checkParsed(checksumCache.parse(path));
+    }
+
+    private static ParsedMigration checkParsed(ParsedMigration parsedMigration) {
+        // rethrows the failure of a file that could not be parsed
+        parsedMigration.getStatementCount();
+        return parsedMigration;
+    }
+
+    private static void checkFileType(Path path) {
+        if (!path.toString().toLowerCase().endsWith(".cql")) {
+            throw new IllegalArgumentException("Unrecognised file type: " + path);
+        }
+    }
+
+    /**
+     * @return statements of the bootstrap file, empty if there is none
+     */
+    List<String> getBootstrapStatements() {
+        return bootstrapStatements;
+    }
+
+    /**
+     * @return every file in the order they are applied
+     */
+    List<Entry> getEntries() {
+        return entries;
+    }
+
+    long pendingCount() {
+        return entries.stream().filter(Entry::isPending).count();
+    }
+
+    /**
+     * @return the checksum recorded for the file in the history the plan was made from, if it had been applied
+     */
+    Optional<String> getAppliedChecksum(String filename) {
+        return Optional.ofNullable(appliedChecksums.get(filename));
+    }
+
+    /**
+     * @return checksum recorded for each file in the history the plan was made from, keyed by filename
+     */
+    Map<String, String> getAppliedChecksums() {
+        return Collections.unmodifiableMap(appliedChecksums);
+    }
+
+    /**
+     * @return files the plan was made to apply, in the order they are applied
+     */
+    List<String> getPendingFilenames() {
+        return entries.stream().filter(Entry::isPending).map(Entry::getFilename).collect(Collectors.toList());
+    }
+
+    /**
+     * @return root digest of the stored schema manifest when the history the plan was made from was read, if there was one
+     */
+    Optional<String> getManifestRoot() {
+        return Optional.ofNullable(manifestRoot);
+    }
+
+    ManifestTree getManifestTree() {
+        return manifestTree;
+    }
+
+    static class Entry {
+        private final String filename;
+        private final Path path;
+        private final String checksum;
+        private final ParsedMigration parsedMigration;
+
+        Entry(String filename, Path path, String checksum, ParsedMigration parsedMigration) {
+            this.filename = filename;
+            this.path = path;
+            this.checksum = checksum;
+            this.parsedMigration = parsedMigration;
+        }
+
+        String getFilename() {
+            return filename;
+        }
+
+        Path getPath() {
+            return path;
+        }
+
+        String getChecksum() {
+            return checksum;
+        }
+
+        boolean isPending() {
+            return parsedMigration != null;
+        }
+
+        /**
+         * @return the parsed pending file
+         * @throws IllegalStateException if the file had already been applied when the plan was made
+         */
+        ParsedMigration getParsedMigration() {
+            if (parsedMigration == null) {
+                throw new IllegalStateException(filename + " was not parsed as it had already been applied");
+            }
+            return parsedMigration;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package uk.sky.cqlmigrate;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * A cql file as read in a single pass: the checksum of its bytes together with the statements parsed from them,
+ * each {@link CqlStatement classified} as it is parsed.
+ * <p>
+ * Only the statements of small files are kept, larger files are streamed from disk again when their statements are
+ * needed, so a data migration of any size needs no more memory than its largest statement.
+ * <p>
+ * A file that cannot be parsed still has a checksum, as files that have already been applied are only ever compared
+ * by checksum, so the failure is only reported if its statements are asked for.
+ */
+class ParsedMigration {
+
+    private final Path path;
+    private final String checksum;
+    private final long byteSize;
+    private final int statementCount;
+    private final List<CqlStatement> statements;
+    private final boolean memoryMapped;
+    private final CqlFileHeader header;
+    private final RuntimeException failure;
+
+    private ParsedMigration(Path path, String checksum, long byteSize, int statementCount, List<CqlStatement> statements, boolean memoryMapped,
+                            CqlFileHeader header, RuntimeException failure) {
+        this.path = path;
+        this.checksum = checksum;
+        this.byteSize = byteSize;
+        this.statementCount = statementCount;
+        this.statements = statements;
+        this.memoryMapped = memoryMapped;
+        this.header = header;
+        this.failure = failure;
+    }
+
+    static ParsedMigration parsed(Path path, String checksum, long byteSize, CqlFileHeader header, List<CqlStatement> statements) {
+        return new ParsedMigration(path, checksum, byteSize, statements.size(), Collections.unmodifiableList(statements), false, header, null);
+    }
+
+    static ParsedMigration streamed(Path path, String checksum, long byteSize, CqlFileHeader header, int statementCount) {
+        return new ParsedMigration(path, checksum, byteSize, statementCount, null, false, header, null);
+    }
+
+    /**
+     * A file whose statements are taken from a memory mapping of it when they are needed.
+     */
+    static ParsedMigration mapped(Path path, String checksum, long byteSize, CqlFileHeader header, int statementCount) {
+        return new ParsedMigration(path, checksum, byteSize, statementCount, null, true, header, null);
+    }
+
+    static ParsedMigration unparseable(Path path, String checksum, long byteSize, RuntimeException failure) {
+        return new ParsedMigration(path, checksum, byteSize, 0, null, false, CqlFileHeader.NONE, failure);
+    }
+
+    String getChecksum() {
+        return checksum;
+    }
+
+    long getByteSize() {
+        return byteSize;
+    }
+
+    /**
+     * @return directives the file gives for how it is to be applied
+     */
+    CqlFileHeader getHeader() {
+        return header;
+    }
+
+    boolean isParseable() {
+        return failure == null;
+    }
+
+    /**
+     * @return whether the statements were kept rather than being read from the file again when needed
+     */
+    boolean isRetained() {
+        return statements != null;
+    }
+
+    /**
+     * @return statements of the file in the order they appear, read from the file again if they were not kept
+     * @throws IllegalStateException if the file has a non-terminated statement
+     * @throws RuntimeException      if the file is not valid UTF-8
+     */
+    List<String> getStatements() {
+        return getCqlStatements().stream().map(CqlStatement::getCql).collect(Collectors.toList());
+    }
+
+    /**
+     * @return classified statements of the file in the order they appear, read from the file again if they were not kept
+     * @throws IllegalStateException if the file has a non-terminated statement
+     * @throws RuntimeException      if the file is not valid UTF-8
+     */
+    List<CqlStatement> getCqlStatements() {
+        checkParsed();
+        return statements != null ? statements : CqlFileParser.parse(path, ChecksumAlgorithm.SHA_1, Long.MAX_VALUE).getCqlStatements();
+    }
+
+    /**
+     * @throws IllegalStateException if the file has a non-terminated statement
+     * @throws RuntimeException      if the file is not valid UTF-8
+     */
+    int getStatementCount() {
+        checkParsed();
+        return statementCount;
+    }
+
+    /**
+     * Hands the statements to the loader, streaming them from the file, or from a memory mapping of it,
+     * as they are consumed if they were not kept.
+     *
+     * @throws IllegalStateException if the file has a non-terminated statement
+     * @throws RuntimeException      if the file is not valid UTF-8
+     */
+    void loadStatements(Consumer<Iterator<CqlStatement>> loader) {
+        checkParsed();
+        if (statements != null) {
+            loader.accept(statements.iterator());
+        } else if (memoryMapped) {
+            loader.accept(CqlStatement.classify(MappedCqlStatements.map(path)));
+        } else {
+            try (CqlStatementIterator streamed = CqlFileParser.statementsOf(path)) {
+                loader.accept(CqlStatement.classify(streamed));
+            }
+        }
+    }
+
+    private void checkParsed() {
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package uk.sky.cqlmigrate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalInt;
+
+/**
+ * Keeps the statements and headers parsed from cql files in a directory on disk, keyed by the checksum of each file's
+ * contents, so the same files are not parsed again by every run that sees them, e.g. on every pod of a deployment sharing
+ * a volume or in test environments migrating from scratch many times a day.
+ * <p>
+ * Entries are kept in a subdirectory per {@link CqlLexer#VERSION}, so a change to the parser never reuses statements
+ * parsed by an earlier one; directories of earlier versions can be deleted at any time. Each entry is written to a
+ * temporary file and moved into place, so runs sharing the directory only ever see whole entries, and an entry that
+ * cannot be read for any reason is parsed again and rewritten.
+ * <p>
+ * A hit still reads the file to checksum it, but does not decode or lex it. The statements of files too large to keep
+ * them are not cached, only their count, and files that cannot be parsed are never cached, so their failure is always
+ * reported afresh. Entries are keyed by checksum alone, so files are only cached when the checksum algorithm resists
+ * collisions, i.e. not with {@link ChecksumAlgorithm#CRC32}.
+ */
+class ParsedStatementCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ParsedStatementCache.class);
+    // changed along with the layout of an entry, so entries of an earlier layout are parsed again
+    private static final int MAGIC = 0x43514c48;
+    private static final int NO_MAX_DML_IN_FLIGHT = -1;
+
+    private final Path directory;
+
+    /**
+     * @param directory directory to keep the entries in, created if it does not exist
+     */
+    ParsedStatementCache(Path directory) {
+        this.directory = directory.resolve("v" + CqlLexer.VERSION);
+    }
+
+    /**
+     * @return whether files checksummed with the algorithm can be cached
+     */
+    static boolean canKeyBy(ChecksumAlgorithm algorithm) {
+        return !algorithm.getId().equals(ChecksumAlgorithm.CRC32.getId());
+    }
+
+    /**
+     * Looks up the file's statements by its checksum, parsing it with {@link CqlFileParser} and keeping the result
+     * only if they are not already cached.
+     *
+     * @param cqlPath          cql file
+     * @param algorithm        algorithm to checksum the file with, which must be one {@link #canKeyBy(ChecksumAlgorithm) the cache can be keyed by}
+     * @param maxRetainedBytes size of the largest file to keep the statements of, larger files are only counted
+     * @return the file's checksum and statements, or the reason it could not be parsed
+     * @throws RuntimeException if the file cannot be read
+     */
+    ParsedMigration parse(Path cqlPath, ChecksumAlgorithm algorithm, long maxRetainedBytes) {
+        String checksum = ChecksumCalculator.calculateChecksum(cqlPath, algorithm);
+        Path entry = directory.resolve(checksum.replace(':', '-'));
+        Optional<ParsedMigration> cached = read(entry, cqlPath, checksum, maxRetainedBytes);
+        if (cached.isPresent()) {
+            LOGGER.debug("Found the statements of {} in {}", cqlPath, entry);
+            return cached.get();
+        }
+
+        ParsedMigration parsed = CqlFileParser.parse(cqlPath, algorithm, maxRetainedBytes);
+        // a file changed between the two reads must not be cached under the checksum of its earlier contents
+        if (parsed.isParseable() && parsed.getChecksum().equals(checksum)) {
+            write(entry, parsed);
+        }
+        return parsed;
+    }
+
+    private Optional<ParsedMigration> read(Path entry, Path cqlPath, String checksum, long maxRetainedBytes) {
+        try (InputStream input = Files.newInputStream(entry);
+             DataInputStream data = new DataInputStream(new BufferedInputStream(input))) {
+            if (data.readInt() != MAGIC) {
+                LOGGER.debug("Ignoring {} as it is not a cache entry", entry);
+                return Optional.empty();
+            }
+            long byteSize = data.readLong();
+            int maxDmlInFlight = data.readInt();
+            CqlFileHeader header = CqlFileHeader.of(maxDmlInFlight == NO_MAX_DML_IN_FLIGHT ? OptionalInt.empty() : OptionalInt.of(maxDmlInFlight));
+            int statementCount = data.readInt();
+            boolean retained = data.readBoolean();
+            if (byteSize > maxRetainedBytes) {
+                return Optional.of(ParsedMigration.streamed(cqlPath, checksum, byteSize, header, statementCount));
+            }
+            if (!retained) {
+                return Optional.empty();
+            }
+            List<CqlStatement> statements = new ArrayList<>(statementCount);
+            for (int i = 0; i < statementCount; i++) {
+                byte[] statement = new byte[data.readInt()];
+                data.readFully(statement);
+                statements.add(CqlStatement.of(new String(statement, StandardCharsets.UTF_8)));
+            }
+            if (data.read() != -1) {
+                LOGGER.debug("Ignoring {} as it has trailing bytes", entry);
+                return Optional.empty();
+            }
+            return Optional.of(ParsedMigration.parsed(cqlPath, checksum, byteSize, header, statements));
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        } catch (IOException | RuntimeException e) {
+            LOGGER.debug("Ignoring unreadable cache entry {}: {}", entry, e.toString());
+            return Optional.empty();
+        }
+    }
+
+    private void write(Path entry, ParsedMigration parsed) {
+        Path temporary = null;
+        try {
+            Files.createDirectories(directory);
+            temporary = Files.createTempFile(directory, entry.getFileName().toString(), ".tmp");
+            try (OutputStream output = Files.newOutputStream(temporary);
+                 DataOutputStream data = new DataOutputStream(new BufferedOutputStream(output))) {
+                data.writeInt(MAGIC);
+                data.writeLong(parsed.getByteSize());
+                data.writeInt(parsed.getHeader().getMaxDmlInFlight().orElse(NO_MAX_DML_IN_FLIGHT));
+                data.writeInt(parsed.getStatementCount());
+                data.writeBoolean(parsed.isRetained());
+                if (parsed.isRetained()) {
+                    for (CqlStatement statement : parsed.getCqlStatements()) {
+                        byte[] bytes = statement.getCql().getBytes(StandardCharsets.UTF_8);
+                        data.writeInt(bytes.length);
+                        data.write(bytes);
+                    }
+                }
+            }
+            Files.move(temporary, entry, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            temporary = null;
+        } catch (IOException e) {
+            LOGGER.warn("Failed to cache the statements of {} in {}: {}", parsed.getChecksum(), directory, e.toString());
+        } finally {
+            if (temporary != null) {
+                try {
+                    Files.deleteIfExists(temporary);
+                } catch (IOException e) {
+                    LOGGER.debug("Failed to delete {}: {}", temporary, e.toString());
+                }
+            }
+        }
+    }
+}
@@ -5,10 +5,16 @@ import com.datastax.oss.driver.api.core.metadata.schema.RelationMetadata;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-
-import static uk.sky.cqlmigrate.SchemaUpdates.SCHEMA_UPDATES_TABLE;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
 
 public class PreMigrationChecker {
     private static final Logger LOGGER = LoggerFactory.getLogger(PreMigrationChecker.class);
@@ -17,16 +23,45 @@ public class PreMigrationChecker {
     private final String keyspace;
     private final SchemaChecker schemaChecker;
     private final CqlPaths paths;
+    private final SchemaManifest schemaManifest;
+    private final ChecksumCache checksumCache;
+    private final Executor preparationExecutor;
+
+    private MigrationPlan migrationPlan;
 
     public PreMigrationChecker(SessionContext sessionContext, String keyspace, SchemaChecker schemaChecker, CqlPaths paths) {
+        this(sessionContext, keyspace, schemaChecker, paths, new SchemaManifest(sessionContext, keyspace, new NoOpTableChecker()), new ChecksumCache(),
+                Runnable::run);
+    }
+
+    PreMigrationChecker(SessionContext sessionContext, String keyspace, SchemaChecker schemaChecker, CqlPaths paths, SchemaManifest schemaManifest,
+                        ChecksumCache checksumCache, Executor preparationExecutor) {
         this.sessionContext = sessionContext;
         this.keyspace = keyspace;
         this.schemaChecker = schemaChecker;
         this.paths = paths;
+        this.schemaManifest = schemaManifest;
+        this.checksumCache = checksumCache;
+        this.preparationExecutor = preparationExecutor;
     }
 
     boolean migrationIsNeeded() {
-        return !keyspaceExists() || !schemaUpdatesTableExists() || !allMigrationFilesApplied();
+        ManifestTree manifestTree = ManifestTree.of(paths, checksumCache, preparationExecutor);
+        if (!keyspaceExists() || !schemaUpdatesTableExists()) {
+            migrationPlan = MigrationPlan.create(paths, manifestTree, Collections.emptyMap(), checksumCache, preparationExecutor);
+            return true;
+        }
+        return !allMigrationFilesApplied(manifestTree);
+    }
+
+    /**
+     * @return the plan made by the last call to {@link #migrationIsNeeded()}, to be carried on with once the lock is held
+     */
+    MigrationPlan getMigrationPlan() {
+        if (migrationPlan == null) {
+            throw new IllegalStateException("No migration plan as the pre-migration check has not been run");
+        }
+        return migrationPlan;
     }
 
     private boolean keyspaceExists() {
@@ -34,30 +69,70 @@ public class PreMigrationChecker {
     }
 
     private boolean schemaUpdatesTableExists() {
-        if(keyspaceExists()){
-            return sessionContext.getSession().getMetadata().getKeyspace(keyspace)
-                    .flatMap(keyspaceMetadata -> keyspaceMetadata.getTable(SCHEMA_UPDATES_TABLE)).isPresent();
-        } else {
-            return false;
-        }
+        return keyspaceExists() && schemaChecker.historyTableExists();
     }
 
-    private boolean allMigrationFilesApplied() {
+    private boolean allMigrationFilesApplied(ManifestTree manifestTree) {
+        // read before the history, so a migration completed after the history was read changes the root from this one
+        Optional<String> manifestRoot = schemaManifest.storedRoot();
+        Iterator<Map.Entry<String, String>> history = schemaManifest.divergentFiles(manifestTree)
+                .map(divergentFiles -> new TreeMap<>(appliedChecksums(manifestTree, divergentFiles)).entrySet().iterator())
+                .orElseGet(schemaChecker::historyInFilenameOrder);
+
+        Map<String, String> appliedChecksums = new HashMap<>();
+        Map<String, String> suspectChecksums = new TreeMap<>();
+        HistoryReconciler.reconcile(paths.sortedFilenames(), manifestTree::checksumLike, history, new HistoryReconciler.Visitor() {
+            @Override
+            public void applied(String filename, String checksum) {
+                LOGGER.info("Already applied: {}, skipping", filename);
+                appliedChecksums.put(filename, checksum);
+            }
+
+            @Override
+            public void pending(String filename) {
+                suspectChecksums.put(filename, null);
+            }
+
+            @Override
+            public void changed(String filename, String recordedChecksum, String localChecksum) {
+                suspectChecksums.put(filename, recordedChecksum);
+            }
+
+            @Override
+            public void orphaned(String filename, String recordedChecksum) {
+                LOGGER.warn("Applied file {} is no longer present locally", filename);
+            }
+        });
+
+        // only answers that would have the migration do something are worth confirming at a stronger consistency level
         List<String> filesNotApplied = new ArrayList<>();
-        paths.applyInSortedOrder((filename, path) -> {
-            if (schemaChecker.alreadyApplied(filename)) {
-                if (schemaChecker.contentsAreDifferent(filename, path)) {
-                    LOGGER.error("Contents have changed: {}", path.getFileName());
-                    throw new IllegalStateException("Pre-migration check detected that contents have changed for " + filename + " at " + path);
-                } else {
-                    LOGGER.info("Already applied: {}, skipping", path.getFileName());
-                }
-            } else {
+        new TreeMap<>(schemaChecker.escalate(suspectChecksums)).forEach((filename, recordedChecksum) -> {
+            if (recordedChecksum == null) {
                 filesNotApplied.add(filename);
+            } else if (recordedChecksum.equals(manifestTree.checksumLike(filename, recordedChecksum))) {
+                LOGGER.info("Already applied: {}, skipping", filename);
+                appliedChecksums.put(filename, recordedChecksum);
+            } else {
+                Path path = paths.getPath(filename);
+                LOGGER.error("Contents have changed: {}", path.getFileName());
+                throw new IllegalStateException("Pre-migration check detected that contents have changed for " + filename + " at " + path);
             }
         });
+        migrationPlan = MigrationPlan.create(paths, manifestTree, appliedChecksums, manifestRoot, checksumCache, preparationExecutor);
 
         LOGGER.info("Found {} files to be applied", filesNotApplied.size());
         return filesNotApplied.isEmpty();
     }
+
+    /**
+     * Files the stored manifest agrees with have been applied with their local checksums,
+     * so only the divergent ones need looking up.
+     */
+    private Map<String, String> appliedChecksums(ManifestTree manifestTree, List<String> divergentFiles) {
+        Map<String, String> appliedChecksums = new HashMap<>();
+        paths.applyInSortedOrder((filename, path) -> appliedChecksums.put(filename, manifestTree.checksum(filename)));
+        appliedChecksums.keySet().removeAll(divergentFiles);
+        appliedChecksums.putAll(schemaChecker.fetchChecksums(divergentFiles));
+        return appliedChecksums;
+    }
 }
@@ -0,0 +1,107 @@
+package uk.sky.cqlmigrate;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Statements of a file read, lexed and classified on another thread ahead of being taken, so the thread executing
+ * them does not wait on the file between round trips. At most a fixed number of statements are held ahead.
+ * <p>
+ * A failure to read the file is thrown from {@link #hasNext()} once every statement before it has been taken, so the
+ * statements are executed, and any failure reported, exactly as if the file had been read on the executing thread.
+ */
+class PrefetchedStatements implements Iterator<CqlStatement>, Closeable {
+
+    private static final Object END = new Object();
+    private static final long OFFER_TIMEOUT_MILLIS = 100;
+
+    private final String filename;
+    private final BlockingQueue<Object> queue;
+    private volatile boolean closed;
+    private Object next;
+
+    /**
+     * @param capacity most statements to hold ahead of those taken
+     * @param executor executor to read the file on, which it occupies until the file has been read or this is closed
+     */
+    PrefetchedStatements(String filename, ParsedMigration parsedMigration, int capacity, Executor executor) {
+        this.filename = filename;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        executor.execute(() -> read(parsedMigration));
+    }
+
+    /**
+     * @throws IllegalStateException if the file has a non-terminated statement
+     * @throws RuntimeException      if the file cannot be read or is not valid UTF-8
+     */
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            next = take();
+        }
+        if (next instanceof RuntimeException) {
+            throw (RuntimeException) next;
+        }
+        if (next instanceof Error) {
+            throw (Error) next;
+        }
+        return next != END;
+    }
+
+    @Override
+    public CqlStatement next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        CqlStatement statement = (CqlStatement) next;
+        next = null;
+        return statement;
+    }
+
+    /**
+     * Stops reading the file, freeing the executor for the next one.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        queue.clear();
+    }
+
+    private void read(ParsedMigration parsedMigration) {
+        try {
+            parsedMigration.loadStatements(statements -> {
+                while (!closed && statements.hasNext()) {
+                    put(statements.next());
+                }
+            });
+            put(END);
+        } catch (RuntimeException | Error e) {
+            put(e);
+        }
+    }
+
+    private void put(Object element) {
+        try {
+            while (!closed && !queue.offer(element, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                // the executing thread is behind, wait for it to take more statements
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            closed = true;
+        }
+    }
+
+    private Object take() {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for the statements of " + filename, e);
+        }
+    }
+}
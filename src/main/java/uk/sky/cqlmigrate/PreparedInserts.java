@@ -0,0 +1,334 @@
+package uk.sky.cqlmigrate;
+
+import com.datastax.oss.driver.api.core.CqlIdentifier;
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.DriverException;
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
+import com.datastax.oss.driver.api.core.cql.ColumnDefinitions;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.datastax.oss.driver.api.core.metadata.schema.ColumnMetadata;
+import com.datastax.oss.driver.api.core.metadata.schema.TableMetadata;
+import com.datastax.oss.driver.api.core.type.DataType;
+import com.datastax.oss.driver.api.core.type.DataTypes;
+import com.datastax.oss.driver.api.core.type.codec.CodecNotFoundException;
+import com.datastax.oss.driver.api.core.type.codec.registry.CodecRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/**
+ * Executes {@code INSERT} statements that differ only in their literal values, such as the rows of a seed file, as
+ * bound statements of a single prepared statement, so the coordinator parses the statement once rather than once per
+ * row and the driver can route each row to a replica.
+ * <p>
+ * The literals of the {@code VALUES} list are replaced by bind markers where the column's type reads them the same way
+ * on the client as on the server: text, numbers, booleans, uuids and blobs. Other values, such as collections, function
+ * calls or timestamps, whose text Cassandra interprets in its own time zone, are left as written and become part of the
+ * statement's shape. A shape is prepared the second time it is seen, and then kept for the session and its current
+ * keyspace until a statement other than DML is executed, as that may have changed the table. Any statement that cannot
+ * be bound this way is executed as written.
+ */
+class PreparedInserts {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PreparedInserts.class);
+    private static final int MAX_SHAPES = 1024;
+    private static final Map<CqlSession, Map<String, Map<String, PreparedStatement>>> PREPARED_SHAPES = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private static final Pattern INTEGER = Pattern.compile("-?\\d+");
+    private static final Pattern DECIMAL = Pattern.compile("-?(\\d+\\.?\\d*|\\.\\d+)([eE][+-]?\\d+)?");
+    private static final Map<DataType, Pattern> LITERAL_TYPES = new HashMap<>();
+
+    static {
+        Arrays.asList(DataTypes.TINYINT, DataTypes.SMALLINT, DataTypes.INT, DataTypes.BIGINT, DataTypes.VARINT)
+                .forEach(type -> LITERAL_TYPES.put(type, INTEGER));
+        Arrays.asList(DataTypes.FLOAT, DataTypes.DOUBLE, DataTypes.DECIMAL).forEach(type -> LITERAL_TYPES.put(type, DECIMAL));
+        LITERAL_TYPES.put(DataTypes.TEXT, Pattern.compile("'.*'", Pattern.DOTALL));
+        LITERAL_TYPES.put(DataTypes.ASCII, Pattern.compile("'\\p{ASCII}*'"));
+        LITERAL_TYPES.put(DataTypes.BOOLEAN, Pattern.compile("(?i)true|false"));
+        LITERAL_TYPES.put(DataTypes.UUID, Pattern.compile("\\p{XDigit}{8}-\\p{XDigit}{4}-\\p{XDigit}{4}-\\p{XDigit}{4}-\\p{XDigit}{12}"));
+        LITERAL_TYPES.put(DataTypes.TIMEUUID, LITERAL_TYPES.get(DataTypes.UUID));
+        LITERAL_TYPES.put(DataTypes.BLOB, Pattern.compile("0[xX](\\p{XDigit}{2})*"));
+    }
+
+    private final CqlSession session;
+    private final Function<CqlStatement, Optional<Map<String, DataType>>> columnTypes;
+    private final Map<List<String>, Optional<Map<String, DataType>>> columnTypesByTable = new HashMap<>();
+    private final Set<String> keyspacesPreparedIn = new HashSet<>();
+    private final Map<String, Integer> sightings = new LruMap<>(MAX_SHAPES);
+
+    /**
+     * @param columnTypes types of the columns of the table a DML statement writes to, or empty if its statements are not
+     *                    to be prepared, which is only looked up once per table until {@link #forgetTables()}
+     */
+    PreparedInserts(CqlSession session, Function<CqlStatement, Optional<Map<String, DataType>>> columnTypes) {
+        this.session = session;
+        this.columnTypes = columnTypes;
+    }
+
+    /**
+     * Prepared inserts finding the types of columns in the session's schema metadata.
+     */
+    static PreparedInserts forSession(CqlSession session) {
+        return new PreparedInserts(session, statement -> {
+            Optional<CqlIdentifier> keyspace = statement.getKeyspace().map(CqlIdentifier::fromInternal);
+            if (!keyspace.isPresent()) {
+                keyspace = session.getKeyspace();
+            }
+            if (!keyspace.isPresent() || !statement.getTable().isPresent()) {
+                return Optional.empty();
+            }
+            CqlIdentifier table = CqlIdentifier.fromInternal(statement.getTable().get());
+            return session.getMetadata()
+                    .getKeyspace(keyspace.get())
+                    .flatMap(keyspaceMetadata -> keyspaceMetadata.getTable(table))
+                    .map(PreparedInserts::typesOf);
+        });
+    }
+
+    private static Map<String, DataType> typesOf(TableMetadata table) {
+        Map<String, DataType> types = new HashMap<>();
+        for (ColumnMetadata column : table.getColumns().values()) {
+            types.put(column.getName().asInternal(), column.getType());
+        }
+        return types;
+    }
+
+    /**
+     * @return the statement bound to the prepared form of its shape, or empty if it is to be executed as written
+     */
+    Optional<BoundStatement> bind(CqlStatement statement) {
+        if (statement.getKind() != CqlStatement.Kind.DML) {
+            return Optional.empty();
+        }
+        List<String> table = Arrays.asList(statement.getKeyspace().orElse(""), statement.getTable().orElse(""));
+        Optional<Shape> shape = columnTypesByTable.computeIfAbsent(table, key -> columnTypes.apply(statement))
+                .flatMap(types -> Shape.of(statement, types));
+        if (!shape.isPresent()) {
+            return Optional.empty();
+        }
+        return prepare(shape.get().query).flatMap(preparedStatement -> shape.get().bind(preparedStatement));
+    }
+
+    /**
+     * Forgets the column types looked up so far and the shapes prepared for the session in the keyspaces these inserts
+     * were made in, which must be done after any statement other than DML, as it may have changed a table or the
+     * session's keyspace. Shapes prepared in other keyspaces of a shared session are left for whoever is using them.
+     */
+    void forgetTables() {
+        columnTypesByTable.clear();
+        sightings.clear();
+        Map<String, Map<String, PreparedStatement>> preparedShapesByKeyspace = PREPARED_SHAPES.get(session);
+        if (preparedShapesByKeyspace != null) {
+            keyspacesPreparedIn.forEach(preparedShapesByKeyspace::remove);
+        }
+        keyspacesPreparedIn.clear();
+    }
+
+    /**
+     * Stops using the prepared form of the query, for when the driver could not prepare it again after the table changed.
+     */
+    void forget(BoundStatement statement) {
+        Map<String, Map<String, PreparedStatement>> preparedShapesByKeyspace = PREPARED_SHAPES.get(session);
+        Map<String, PreparedStatement> preparedShapes = preparedShapesByKeyspace == null ? null : preparedShapesByKeyspace.get(keyspace());
+        if (preparedShapes != null) {
+            preparedShapes.remove(statement.getPreparedStatement().getQuery());
+        }
+    }
+
+    private Optional<PreparedStatement> prepare(String query) {
+        String keyspace = keyspace();
+        keyspacesPreparedIn.add(keyspace);
+        Map<String, PreparedStatement> preparedShapes = PREPARED_SHAPES
+                .computeIfAbsent(session, s -> new ConcurrentHashMap<>())
+                .computeIfAbsent(keyspace, k -> Collections.synchronizedMap(new LruMap<>(MAX_SHAPES)));
+        PreparedStatement preparedStatement = preparedShapes.get(query);
+        if (preparedStatement != null) {
+            return Optional.of(preparedStatement);
+        }
+        int seen = sightings.merge(keyspace + "\n" + query, 1, Integer::sum);
+        if (seen != 2) {
+            return Optional.empty();
+        }
+        try {
+            preparedStatement = session.prepare(query);
+        } catch (DriverException e) {
+            LOGGER.debug("Could not prepare {}, executing statements of its shape as written: {}", query, e.getMessage());
+            return Optional.empty();
+        }
+        preparedShapes.put(query, preparedStatement);
+        return Optional.of(preparedStatement);
+    }
+
+    /**
+     * Prepared statements without a keyspace apply to the keyspace the session was using when they were prepared, so
+     * shapes are kept per keyspace.
+     */
+    private String keyspace() {
+        return session.getKeyspace().map(CqlIdentifier::asInternal).orElse("");
+    }
+
+    /**
+     * Map in access order that drops its least recently used entry once it holds more than its capacity.
+     */
+    private static class LruMap<K, V> extends LinkedHashMap<K, V> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        LruMap(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    /**
+     * An {@code INSERT} with some of its literals replaced by bind markers.
+     */
+    static class Shape {
+        private final String query;
+        private final List<String> literals;
+        private final List<DataType> types;
+
+        private Shape(String query, List<String> literals, List<DataType> types) {
+            this.query = query;
+            this.literals = literals;
+            this.types = types;
+        }
+
+        /**
+         * @param columnTypes types of the columns of the table the statement writes to
+         * @return the shape of an {@code INSERT INTO t (columns) VALUES (values)}, or empty if it has no literals to extract
+         */
+        static Optional<Shape> of(CqlStatement statement, Map<String, DataType> columnTypes) {
+            List<CqlTokenizer.Token> tokens;
+            try {
+                tokens = CqlTokenizer.tokenize(statement.getCql());
+            } catch (IllegalArgumentException e) {
+                return Optional.empty();
+            }
+            if (tokens.size() < 2 || !tokens.get(0).is("INSERT") || !tokens.get(1).is("INTO")) {
+                return Optional.empty();
+            }
+            int open = indexOf(tokens, '(', 2);
+            int close = indexOf(tokens, ')', open);
+            if (open < 0 || close < 0 || close + 2 >= tokens.size() || !tokens.get(close + 1).is("VALUES") || !tokens.get(close + 2).is('(')) {
+                return Optional.empty();
+            }
+            List<String> columns = new ArrayList<>();
+            for (int i = open + 1; i < close; i += 2) {
+                String column = tokens.get(i).name();
+                if (column == null || !(i + 1 == close || tokens.get(i + 1).is(','))) {
+                    return Optional.empty();
+                }
+                columns.add(column);
+            }
+
+            StringBuilder query = new StringBuilder();
+            List<String> literals = new ArrayList<>();
+            List<DataType> types = new ArrayList<>();
+            String cql = statement.getCql();
+            int copied = 0;
+            int column = 0;
+            int depth = 0;
+            for (int i = close + 3; i < tokens.size() && depth >= 0; i++) {
+                CqlTokenizer.Token token = tokens.get(i);
+                if (token.is('(') || token.is('[') || token.is('{')) {
+                    depth++;
+                } else if (token.is(')') || token.is(']') || token.is('}')) {
+                    depth--;
+                } else if (depth == 0 && token.is(',')) {
+                    column++;
+                } else if (depth == 0 && column < columns.size() && isWholeValue(tokens, i)) {
+                    DataType type = columnTypes.get(columns.get(column));
+                    Pattern literal = type == null ? null : LITERAL_TYPES.get(type);
+                    if (literal != null && literal.matcher(token.getText()).matches()) {
+                        query.append(cql, copied, token.getStart()).append('?');
+                        copied = token.getEnd();
+                        literals.add(token.getText());
+                        types.add(type);
+                    }
+                }
+            }
+            if (depth >= 0 || literals.isEmpty() || column != columns.size() - 1) {
+                return Optional.empty();
+            }
+            query.append(cql, copied, cql.length());
+            return Optional.of(new Shape(query.toString(), literals, types));
+        }
+
+        /**
+         * @return whether the token is the whole of a value in a list, rather than part of an expression
+         */
+        private static boolean isWholeValue(List<CqlTokenizer.Token> tokens, int index) {
+            CqlTokenizer.Token token = tokens.get(index);
+            if (token.getType() != CqlTokenizer.Type.CONSTANT && !token.is("true") && !token.is("false")) {
+                return false;
+            }
+            CqlTokenizer.Token previous = tokens.get(index - 1);
+            CqlTokenizer.Token next = index + 1 < tokens.size() ? tokens.get(index + 1) : null;
+            return (previous.is('(') || previous.is(',')) && next != null && (next.is(')') || next.is(','));
+        }
+
+        private static int indexOf(List<CqlTokenizer.Token> tokens, char symbol, int from) {
+            if (from < 0) {
+                return -1;
+            }
+            for (int i = from; i < tokens.size(); i++) {
+                if (tokens.get(i).is(symbol)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        String getQuery() {
+            return query;
+        }
+
+        List<String> getLiterals() {
+            return literals;
+        }
+
+        /**
+         * @return the statement bound with the values of its literals, or empty if the prepared statement's markers are
+         * not of the expected types or a literal cannot be read as its type
+         */
+        Optional<BoundStatement> bind(PreparedStatement preparedStatement) {
+            ColumnDefinitions variables = preparedStatement.getVariableDefinitions();
+            if (variables.size() != literals.size()) {
+                return Optional.empty();
+            }
+            Object[] values = new Object[literals.size()];
+            try {
+                for (int i = 0; i < values.length; i++) {
+                    if (!variables.get(i).getType().equals(types.get(i))) {
+                        return Optional.empty();
+                    }
+                    values[i] = CodecRegistry.DEFAULT.codecFor(types.get(i)).parse(literals.get(i));
+                }
+                return Optional.of(preparedStatement.bind(values));
+            } catch (IllegalArgumentException | CodecNotFoundException e) {
+                return Optional.empty();
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package uk.sky.cqlmigrate;
+
+import com.datastax.oss.driver.api.core.ConsistencyLevel;
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
+import com.datastax.oss.driver.api.core.cql.BatchStatement;
+import com.datastax.oss.driver.api.core.cql.BatchStatementBuilder;
+import com.datastax.oss.driver.api.core.cql.DefaultBatchType;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.datastax.oss.driver.api.core.cql.ResultSet;
+import com.datastax.oss.driver.api.core.cql.SimpleStatement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Prepares the queries cqlmigrate issues against its own tables once per {@link CqlSession}.
+ * <p>
+ * Statements are keyed on their query text, which always names the keyspace, so each history, lock
+ * and bookkeeping query is prepared once per session and keyspace and then reused by every migration
+ * sharing that session. Sessions are held weakly and their statements go once the session is collected.
+ */
+class PreparedStatementRegistry {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PreparedStatementRegistry.class);
+    private static final Map<CqlSession, Map<String, PreparedStatement>> PREPARED_STATEMENTS = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private PreparedStatementRegistry() {}
+
+    /**
+     * Returns the statement previously prepared for this query on this session, preparing it if needed.
+     * Execution options such as the consistency level should be set on each bound statement.
+     *
+     * @param session session to prepare the query on
+     * @param query   fully qualified query text
+     * @return the prepared statement
+     * @throws com.datastax.oss.driver.api.core.DriverException if the query cannot be prepared, in which case nothing is cached
+     */
+    static PreparedStatement prepare(CqlSession session, String query) {
+        return PREPARED_STATEMENTS.computeIfAbsent(session, s -> new ConcurrentHashMap<>())
+                .computeIfAbsent(query, session::prepare);
+    }
+
+    /**
+     * Executes the prepared form of the query with the given values.
+     * <p>
+     * If the table was dropped since the query was prepared, Cassandra forgets the statement and the driver
+     * re-prepares it on the fly. That fails when the session has switched keyspace with {@code USE} in the
+     * meantime, as the server derives statement ids from the connection's keyspace, so in that case the cached
+     * statement is dropped and the query runs unprepared instead.
+     *
+     * @param session          session to execute on
+     * @param query            fully qualified query text
+     * @param consistencyLevel consistency level to execute the query at
+     * @param values           values to bind, in order
+     * @return the result of the query
+     */
+    static ResultSet execute(CqlSession session, String query, ConsistencyLevel consistencyLevel, Object... values) {
+        try {
+            return session.execute(prepare(session, query).bind(values).setConsistencyLevel(consistencyLevel));
+        } catch (IllegalStateException e) {
+            return session.execute(unprepared(session, query, consistencyLevel, values, e));
+        }
+    }
+
+    /**
+     * Asynchronous form of {@link #execute(CqlSession, String, ConsistencyLevel, Object...)}, with the same
+     * fallback when the statement cannot be re-prepared.
+     */
+    static CompletionStage<AsyncResultSet> executeAsync(CqlSession session, String query, ConsistencyLevel consistencyLevel, Object... values) {
+        return session.executeAsync(prepare(session, query).bind(values).setConsistencyLevel(consistencyLevel))
+                .handle((resultSet, e) -> {
+                    if (e == null) {
+                        return CompletableFuture.completedFuture(resultSet);
+                    }
+                    Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+                    if (cause instanceof IllegalStateException) {
+                        return session.executeAsync(unprepared(session, query, consistencyLevel, values, cause));
+                    }
+                    CompletableFuture<AsyncResultSet> failed = new CompletableFuture<>();
+                    failed.completeExceptionally(cause);
+                    return failed;
+                })
+                .thenCompose(resultSet -> resultSet);
+    }
+
+    /**
+     * Executes the prepared form of the query once for each row of values, as a single unlogged batch.
+     * Every row should fall in the same partition, so the batch is applied by one replica set in one round trip.
+     * Falls back to unprepared statements in the same way as {@link #execute(CqlSession, String, ConsistencyLevel, Object...)}.
+     */
+    static CompletionStage<AsyncResultSet> executeBatchAsync(CqlSession session, String query, ConsistencyLevel consistencyLevel, List<Object[]> rows) {
+        PreparedStatement preparedStatement = prepare(session, query);
+        BatchStatementBuilder batch = BatchStatement.builder(DefaultBatchType.UNLOGGED).setConsistencyLevel(consistencyLevel);
+        rows.forEach(values -> batch.addStatement(preparedStatement.bind(values)));
+        return session.executeAsync(batch.build())
+                .handle((resultSet, e) -> {
+                    if (e == null) {
+                        return CompletableFuture.completedFuture(resultSet);
+                    }
+                    Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+                    if (cause instanceof IllegalStateException) {
+                        BatchStatementBuilder unprepared = BatchStatement.builder(DefaultBatchType.UNLOGGED).setConsistencyLevel(consistencyLevel);
+                        rows.forEach(values -> unprepared.addStatement(unprepared(session, query, consistencyLevel, values, cause)));
+                        return session.executeAsync(unprepared.build());
+                    }
+                    CompletableFuture<AsyncResultSet> failed = new CompletableFuture<>();
+                    failed.completeExceptionally(cause);
+                    return failed;
+                })
+                .thenCompose(resultSet -> resultSet);
+    }
+
+    private static SimpleStatement unprepared(CqlSession session, String query, ConsistencyLevel consistencyLevel, Object[] values, Throwable e) {
+        LOGGER.debug("Could not re-prepare {}, executing it unprepared", query, e);
+        Map<String, PreparedStatement> statements = PREPARED_STATEMENTS.get(session);
+        if (statements != null) {
+            statements.remove(query);
+        }
+        return SimpleStatement.newInstance(query, values).setConsistencyLevel(consistencyLevel);
+    }
+}
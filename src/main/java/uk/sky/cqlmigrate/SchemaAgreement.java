@@ -0,0 +1,127 @@
+package uk.sky.cqlmigrate;
+
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.config.DefaultDriverOption;
+import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
+import com.datastax.oss.driver.api.core.cql.Row;
+import com.datastax.oss.driver.api.core.cql.SimpleStatement;
+import com.datastax.oss.driver.api.core.metadata.Node;
+import com.datastax.oss.driver.api.core.metadata.NodeState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.sky.cqlmigrate.exception.ClusterUnhealthyException;
+
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.stream.Collectors;
+
+/**
+ * Waits for every node to agree on the schema once after a group of schema changes, rather than after each of them.
+ * <p>
+ * The driver waits for agreement after every schema change unless the session's
+ * {@code advanced.control-connection.schema-agreement.timeout} is zero, in which case statements return as soon as the
+ * coordinator has applied them and cqlmigrate waits here instead: before the first statement other than DDL following
+ * a schema change, at the end of each group of files and before recording them as applied. Agreement is checked with
+ * {@link CqlSession#checkSchemaAgreementAsync()}, or, when the session's own wait is disabled and that would always
+ * report disagreement, by reading the schema version of every node that is up.
+ */
+class SchemaAgreement {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SchemaAgreement.class);
+    private static final Duration MAX_BACKOFF = Duration.ofSeconds(5);
+    private static final String SCHEMA_VERSION_QUERY = "SELECT schema_version FROM system.local WHERE key = 'local'";
+
+    private final CqlSession session;
+    private final int filesPerGroup;
+    private final Duration timeout;
+    private final Duration initialBackoff;
+    private boolean schemaChanged;
+
+    /**
+     * @param filesPerGroup  how many files to apply before waiting for agreement and recording them
+     * @param timeout        how long to wait for agreement before failing
+     * @param initialBackoff how long to wait before checking again after the first disagreement, doubling each time
+     */
+    SchemaAgreement(CqlSession session, int filesPerGroup, Duration timeout, Duration initialBackoff) {
+        this.session = session;
+        this.filesPerGroup = filesPerGroup;
+        this.timeout = timeout;
+        this.initialBackoff = initialBackoff;
+    }
+
+    int getFilesPerGroup() {
+        return filesPerGroup;
+    }
+
+    /**
+     * Notes that a schema change has been made since agreement was last awaited.
+     */
+    void schemaChanged() {
+        schemaChanged = true;
+    }
+
+    /**
+     * Waits for the nodes to agree on the schema if it has changed since this was last called.
+     *
+     * @throws ClusterUnhealthyException if the nodes do not agree within the timeout
+     * @throws IllegalStateException     if interrupted while waiting
+     */
+    void await() {
+        if (!schemaChanged) {
+            return;
+        }
+        long startNanos = System.nanoTime();
+        Duration backoff = initialBackoff;
+        int checks = 1;
+        while (!isInAgreement()) {
+            Duration elapsed = Duration.ofNanos(System.nanoTime() - startNanos);
+            if (elapsed.plus(backoff).compareTo(timeout) > 0) {
+                throw new ClusterUnhealthyException("Schema not in agreement after " + elapsed.toMillis() + " ms and " + checks + " checks");
+            }
+            LOGGER.debug("Schema not in agreement yet, checking again in {} ms", backoff.toMillis());
+            try {
+                Thread.sleep(backoff.toMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted waiting for schema agreement", e);
+            }
+            backoff = backoff.multipliedBy(2).compareTo(MAX_BACKOFF) > 0 ? MAX_BACKOFF : backoff.multipliedBy(2);
+            checks++;
+        }
+        schemaChanged = false;
+        LOGGER.debug("Schema in agreement after {} ms and {} checks", Duration.ofNanos(System.nanoTime() - startNanos).toMillis(), checks);
+    }
+
+    private boolean isInAgreement() {
+        Duration sessionTimeout = session.getContext().getConfig().getDefaultProfile()
+                .getDuration(DefaultDriverOption.CONTROL_CONNECTION_AGREEMENT_TIMEOUT);
+        if (!sessionTimeout.isZero()) {
+            return Futures.getUninterruptibly(session.checkSchemaAgreementAsync());
+        }
+        List<CompletableFuture<AsyncResultSet>> versions = session.getMetadata().getNodes().values().stream()
+                .filter(node -> node.getState() == NodeState.UP)
+                .map(this::schemaVersionOf)
+                .map(CompletionStage::toCompletableFuture)
+                .collect(Collectors.toList());
+        Set<UUID> distinctVersions = new HashSet<>();
+        for (CompletableFuture<AsyncResultSet> version : versions) {
+            try {
+                Row row = Futures.getUninterruptibly(version).one();
+                distinctVersions.add(row == null ? null : row.getUuid("schema_version"));
+            } catch (RuntimeException e) {
+                LOGGER.debug("Could not read the schema version of a node: {}", e.getMessage());
+                return false;
+            }
+        }
+        return distinctVersions.size() == 1 && !distinctVersions.contains(null);
+    }
+
+    private CompletionStage<AsyncResultSet> schemaVersionOf(Node node) {
+        return session.executeAsync(SimpleStatement.newInstance(SCHEMA_VERSION_QUERY).setNode(node));
+    }
+}
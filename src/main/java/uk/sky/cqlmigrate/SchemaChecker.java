@@ -1,45 +1,262 @@
 package uk.sky.cqlmigrate;
 
+import com.datastax.oss.driver.api.core.ConsistencyLevel;
 import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.DefaultConsistencyLevel;
+import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
 import com.datastax.oss.driver.api.core.cql.Row;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionStage;
+import java.util.stream.Collectors;
 
-import static com.datastax.oss.driver.api.core.cql.SimpleStatement.newInstance;
-import static java.util.Objects.requireNonNull;
+import static uk.sky.cqlmigrate.SchemaUpdates.BUCKETS;
+import static uk.sky.cqlmigrate.SchemaUpdates.SCHEMA_UPDATES_V2_TABLE;
 
 class SchemaChecker {
     public static final String SCHEMA_UPDATES_TABLE = "schema_updates";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SchemaChecker.class);
+    private static final String FILENAME_COLUMN = "filename";
     private static final String CHECKSUM_COLUMN = "checksum";
 
     private final SessionContext sessionContext;
     private final String keyspace;
+    private final SchemaUpdatesLayout layout;
+    private final boolean tieredReads;
+
+    private Map<String, String> appliedChecksums;
+    private long escalatedReads;
+    private long correctedReads;
 
     SchemaChecker(SessionContext sessionContext, String keyspace) {
+        this(sessionContext, keyspace, SchemaUpdatesLayout.V1);
+    }
+
+    SchemaChecker(SessionContext sessionContext, String keyspace, SchemaUpdatesLayout layout) {
+        this(sessionContext, keyspace, layout, false);
+    }
+
+    /**
+     * @param tieredReads whether to read the history at LOCAL_ONE, leaving the configured read consistency level
+     *                    to {@link #escalate(Map)}
+     */
+    SchemaChecker(SessionContext sessionContext, String keyspace, SchemaUpdatesLayout layout, boolean tieredReads) {
         this.sessionContext = sessionContext;
         this.keyspace = keyspace;
+        this.layout = layout;
+        this.tieredReads = tieredReads;
+    }
+
+    /**
+     * @return whether there is a table of applied files to read, in either layout
+     */
+    boolean historyTableExists() {
+        return tableExists(SCHEMA_UPDATES_TABLE) || readsV2();
+    }
+
+    /**
+     * Reads every row of the history table in a single paged scan and replaces
+     * the in-memory filename to checksum index with the result.
+     * <p>
+     * The index is loaded lazily on first lookup, so this only needs calling explicitly
+     * to pick up changes made by other clients, e.g. once the migration lock is held.
+     */
+    void loadHistory() {
+        Map<String, String> checksums = new HashMap<>();
+        Iterator<Map.Entry<String, String>> history = readsV2() ? scanV2() : scanV1();
+        history.forEachRemaining(entry -> checksums.put(entry.getKey(), entry.getValue()));
+        LOGGER.debug("Loaded {} applied migrations for keyspace {}", checksums.size(), keyspace);
+        appliedChecksums = Collections.unmodifiableMap(checksums);
+    }
+
+    /**
+     * Replaces the in-memory index with a history read before, updated with the rows of just the given files, for when
+     * the rest of the history is known not to have changed since.
+     *
+     * @param knownChecksums checksum recorded for each applied file when the history was read before, keyed by filename
+     * @param filenames      files whose history may have changed since
+     */
+    void loadHistory(Map<String, String> knownChecksums, Collection<String> filenames) {
+        Map<String, String> checksums = new HashMap<>(knownChecksums);
+        checksums.keySet().removeAll(filenames);
+        checksums.putAll(fetchChecksums(filenames));
+        LOGGER.debug("Re-read the history of {} files for keyspace {}", filenames.size(), keyspace);
+        appliedChecksums = Collections.unmodifiableMap(checksums);
+    }
+
+    /**
+     * Looks up just the given files in schema_updates, concurrently and without touching the in-memory index.
+     *
+     * @param filenames files to look up
+     * @return recorded checksum of each file that has been applied, keyed by filename
+     */
+    Map<String, String> fetchChecksums(Collection<String> filenames) {
+        return fetchChecksums(filenames, historyReadConsistencyLevel());
+    }
+
+    /**
+     * With tiered reads, re-reads files at the configured read consistency level whose answers at LOCAL_ONE would
+     * make the migration do something: files that looked unapplied, or applied with a different checksum.
+     * Any answer that differs replaces the one in the in-memory index. Without tiered reads the answers are returned as they are.
+     *
+     * @param fastChecksums checksum each file was read with, or null if it looked unapplied, keyed by filename
+     * @return checksum read for each of the files at the configured consistency level, or null if it has not been applied
+     */
+    Map<String, String> escalate(Map<String, String> fastChecksums) {
+        if (!tieredReads || fastChecksums.isEmpty()) {
+            return fastChecksums;
+        }
+        Map<String, String> strongChecksums = fetchChecksums(fastChecksums.keySet(), sessionContext.getReadConsistencyLevel());
+
+        Map<String, String> checksums = new HashMap<>();
+        Map<String, String> corrected = new HashMap<>();
+        fastChecksums.forEach((filename, fastChecksum) -> {
+            String strongChecksum = strongChecksums.get(filename);
+            checksums.put(filename, strongChecksum);
+            if (!Objects.equals(fastChecksum, strongChecksum)) {
+                corrected.put(filename, strongChecksum);
+            }
+        });
+        escalatedReads += fastChecksums.size();
+        correctedReads += corrected.size();
+        LOGGER.debug("Escalated {} history reads for keyspace {} to {}, {} answered differently",
+                fastChecksums.size(), keyspace, sessionContext.getReadConsistencyLevel(), corrected.size());
+
+        if (appliedChecksums != null && !corrected.isEmpty()) {
+            Map<String, String> updated = new HashMap<>(appliedChecksums);
+            corrected.forEach((filename, checksum) -> {
+                if (checksum == null) {
+                    updated.remove(filename);
+                } else {
+                    updated.put(filename, checksum);
+                }
+            });
+            appliedChecksums = Collections.unmodifiableMap(updated);
+        }
+        return checksums;
+    }
+
+    /**
+     * @return number of files re-read by {@link #escalate(Map)}
+     */
+    long getEscalatedReads() {
+        return escalatedReads;
+    }
+
+    /**
+     * @return number of escalated files whose answer at LOCAL_ONE turned out to be wrong
+     */
+    long getCorrectedReads() {
+        return correctedReads;
+    }
+
+    boolean isTieredReads() {
+        return tieredReads;
+    }
+
+    private Map<String, String> fetchChecksums(Collection<String> filenames, ConsistencyLevel consistencyLevel) {
+        CqlSession session = sessionContext.getSession();
+        boolean readsV2 = readsV2();
+        String query = readsV2
+                ? "SELECT " + FILENAME_COLUMN + ", " + CHECKSUM_COLUMN + " FROM " + keyspace + "." + SCHEMA_UPDATES_V2_TABLE + " WHERE bucket = ? AND " + FILENAME_COLUMN + " = ?"
+                : "SELECT " + FILENAME_COLUMN + ", " + CHECKSUM_COLUMN + " FROM " + keyspace + "." + SCHEMA_UPDATES_TABLE + " WHERE " + FILENAME_COLUMN + " = ?";
+
+        List<CompletionStage<AsyncResultSet>> lookups = filenames.stream()
+                .map(filename -> readsV2
+                        ? PreparedStatementRegistry.executeAsync(session, query, consistencyLevel, SchemaUpdates.bucket(filename), filename)
+                        : PreparedStatementRegistry.executeAsync(session, query, consistencyLevel, filename))
+                .collect(Collectors.toList());
+
+        Map<String, String> checksums = new HashMap<>();
+        for (CompletionStage<AsyncResultSet> lookup : lookups) {
+            Row row = Futures.getUninterruptibly(lookup).one();
+            if (row != null) {
+                checksums.put(row.getString(FILENAME_COLUMN), row.getString(CHECKSUM_COLUMN));
+            }
+        }
+        return checksums;
+    }
+
+    /**
+     * In the v2 layout each bucket is read in clustering order and the buckets are merged as they are paged through.
+     * The v1 schema_updates table is partitioned by filename, so its scan returns rows in token order and they are sorted here.
+     *
+     * @return the recorded checksum of each applied file in ascending filename order
+     */
+    Iterator<Map.Entry<String, String>> historyInFilenameOrder() {
+        if (readsV2()) {
+            return scanV2();
+        }
+        return new TreeMap<>(getAppliedChecksums()).entrySet().iterator();
     }
 
     boolean alreadyApplied(String filename) {
-        Row row = getSchemaUpdate(sessionContext.getSession(), filename);
-        return row != null;
+        return getAppliedChecksums().containsKey(filename);
     }
 
-    private Row getSchemaUpdate(CqlSession session, String filename) {
+    private Iterator<Map.Entry<String, String>> scanV1() {
+        String query = "SELECT " + FILENAME_COLUMN + ", " + CHECKSUM_COLUMN + " FROM " + keyspace + "." + SCHEMA_UPDATES_TABLE;
+        return toEntries(PreparedStatementRegistry.execute(sessionContext.getSession(), query, historyReadConsistencyLevel()).iterator());
+    }
+
+    private Iterator<Map.Entry<String, String>> scanV2() {
+        String query = "SELECT " + FILENAME_COLUMN + ", " + CHECKSUM_COLUMN + " FROM " + keyspace + "." + SCHEMA_UPDATES_V2_TABLE + " WHERE bucket = ?";
+
+        List<Iterator<Map.Entry<String, String>>> buckets = new ArrayList<>(BUCKETS);
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            buckets.add(toEntries(PreparedStatementRegistry.execute(sessionContext.getSession(), query, historyReadConsistencyLevel(), bucket).iterator()));
+        }
+        return new MergingIterator<>(buckets, Map.Entry.comparingByKey());
+    }
+
+    private static Iterator<Map.Entry<String, String>> toEntries(Iterator<Row> rows) {
+        return new Iterator<Map.Entry<String, String>>() {
+            @Override
+            public boolean hasNext() {
+                return rows.hasNext();
+            }
 
-        return session.execute(newInstance("SELECT * FROM " + keyspace + "." + SCHEMA_UPDATES_TABLE + " where filename = ?", filename)
-                .setConsistencyLevel(sessionContext.getReadConsistencyLevel())).one();
+            @Override
+            public Map.Entry<String, String> next() {
+                Row row = rows.next();
+                return new AbstractMap.SimpleImmutableEntry<>(row.getString(FILENAME_COLUMN), row.getString(CHECKSUM_COLUMN));
+            }
+        };
     }
 
-    boolean contentsAreDifferent(String filename, Path path) {
-        Row row = requireNonNull(getSchemaUpdate(sessionContext.getSession(), filename));
-        String previousSha1 = row.getString(CHECKSUM_COLUMN);
+    private ConsistencyLevel historyReadConsistencyLevel() {
+        return tieredReads ? DefaultConsistencyLevel.LOCAL_ONE : sessionContext.getReadConsistencyLevel();
+    }
+
+    private boolean readsV2() {
+        return layout == SchemaUpdatesLayout.V2 && tableExists(SCHEMA_UPDATES_V2_TABLE);
+    }
+
+    private boolean tableExists(String table) {
+        return sessionContext.getSession().getMetadata().getKeyspace(keyspace)
+                .flatMap(keyspaceMetadata -> keyspaceMetadata.getTable(table))
+                .isPresent();
+    }
 
-        try {
-            String checksum = ChecksumCalculator.calculateChecksum(path);
-            return !previousSha1.equals(checksum);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+    /**
+     * @return checksum recorded for each applied file, keyed by filename
+     */
+    Map<String, String> getAppliedChecksums() {
+        if (appliedChecksums == null) {
+            loadHistory();
         }
+        return appliedChecksums;
     }
 }
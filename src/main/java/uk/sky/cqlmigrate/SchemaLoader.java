@@ -5,7 +5,15 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
 
 class SchemaLoader {
 
@@ -17,46 +25,171 @@ class SchemaLoader {
     private final SchemaChecker schemaChecker;
 
     private final TableChecker tableChecker;
-    private final CqlPaths paths;
+    private final int pipelineDepth;
+    private final int maxDmlInFlight;
+    private final List<Runnable> groupRecords = new ArrayList<>();
 
     SchemaLoader(SessionContext sessionContext, String keyspace, SchemaUpdates schemaUpdates,
-                 SchemaChecker schemaChecker, TableChecker tableChecker, CqlPaths paths) {
+                 SchemaChecker schemaChecker, TableChecker tableChecker) {
+        this(sessionContext, keyspace, schemaUpdates, schemaChecker, tableChecker, 0, 0);
+    }
+
+    /**
+     * @param pipelineDepth  how many files ahead of the one being applied to read the statements of in the background,
+     *                       0 to read each file only as it is applied
+     * @param maxDmlInFlight how many DML statements of a file to have executing at once unless the file's header says
+     *                       otherwise, 0 to execute one statement at a time
+     * @see StatementPipeline
+     * @see CqlFileHeader
+     */
+    SchemaLoader(SessionContext sessionContext, String keyspace, SchemaUpdates schemaUpdates,
+                 SchemaChecker schemaChecker, TableChecker tableChecker, int pipelineDepth, int maxDmlInFlight) {
         this.sessionContext = sessionContext;
         this.keyspace = keyspace;
         this.schemaUpdates = schemaUpdates;
         this.schemaChecker = schemaChecker;
         this.tableChecker = tableChecker;
-        this.paths = paths;
+        this.pipelineDepth = pipelineDepth;
+        this.maxDmlInFlight = maxDmlInFlight;
     }
 
-    void load() {
+    /**
+     * Carries out a plan made before the lock was taken. The history is expected to have been re-read
+     * since, and only files whose history differs from the one the plan was checked against are checked again.
+     * Applied files are recorded in the background, and every record has been written by the time this returns.
+     *
+     * @param plan plan of the files to apply
+     */
+    void load(MigrationPlan plan) {
         sessionContext.getSession().execute(SimpleStatement.newInstance("USE " + keyspace + ";").setConsistencyLevel(sessionContext.getReadConsistencyLevel()));
-        paths.applyInSortedOrder(new Loader());
-    }
+        Map<String, String> appliedChecksums = new HashMap<>(schemaChecker.getAppliedChecksums());
+        confirmFilesToApply(plan, appliedChecksums);
 
-    private class Loader implements CqlPaths.Function {
-        @Override
-        public void apply(String filename, Path path) {
-            if (schemaChecker.alreadyApplied(filename)) {
-                if (schemaChecker.contentsAreDifferent(filename, path)) {
+        Set<String> unrecordedFiles = schemaUpdates.unrecordedFiles();
+        List<MigrationPlan.Entry> entries = plan.getEntries();
+        try (StatementPipeline pipeline = new StatementPipeline(entries, pipelineDepth)) {
+            for (int i = 0; i < entries.size(); i++) {
+                MigrationPlan.Entry entry = entries.get(i);
+                pipeline.advanceTo(i);
+                String filename = entry.getFilename();
+                Path path = entry.getPath();
+                Optional<String> appliedChecksum = Optional.ofNullable(appliedChecksums.get(filename));
+
+                if (!appliedChecksum.isPresent() && unrecordedFiles.contains(filename)) {
+                    LOGGER.warn("{} may have been applied by an earlier migration that stopped before recording it, applying it again", filename);
+                }
+                if (appliedChecksum.equals(plan.getAppliedChecksum(filename))) {
+                    if (entry.isPending()) {
+                        int index = i;
+                        apply(filename, path, entry.getChecksum(), entry.getParsedMigration(), loader -> pipeline.loadStatements(index, loader),
+                                pendingAfter(entries, i));
+                    } else {
+                        LOGGER.info("Skipped: {}", path.getFileName());
+                    }
+                } else if (!appliedChecksum.isPresent()) {
+                    LOGGER.warn("{} is no longer recorded as applied, applying it again", filename);
+                    ParsedMigration parsedMigration = plan.parse(entry);
+                    apply(filename, path, entry.getChecksum(), parsedMigration, parsedMigration::loadStatements, pendingAfter(entries, i));
+                } else if (!appliedChecksum.get().equals(plan.getManifestTree().checksumLike(filename, appliedChecksum.get()))) {
                     LOGGER.error("Contents have changed: {}", path.getFileName());
                     throw new IllegalStateException("Contents have changed for " + filename + " at " + path);
                 } else {
                     LOGGER.info("Skipped: {}", path.getFileName());
                 }
-            } else {
-                String lowercasePath = path.toString().toLowerCase();
-                if (lowercasePath.endsWith(".cql")) {
-                    List<String> cqlStatements = CqlFileParser.getCqlStatementsFrom(path);
-                    CqlLoader.load(sessionContext, cqlStatements);
-                    tableChecker.check(sessionContext.getSession(), keyspace);
-                } else {
-                    throw new IllegalArgumentException("Unrecognised file type: " + path);
-                }
+            }
+            endGroup();
+        } catch (RuntimeException | Error e) {
+            schemaUpdates.keepJournal();
+            recordGroupIfInAgreement();
+            flushAfter(e);
+            throw e;
+        }
+        schemaUpdates.flush();
+    }
+
+    /**
+     * Waits for the files recorded before a failure to be written, without letting a failure to write them hide the
+     * one that stopped the migration.
+     */
+    private void flushAfter(Throwable failure) {
+        try {
+            schemaUpdates.flush();
+        } catch (RuntimeException e) {
+            failure.addSuppressed(e);
+        }
+    }
 
-                schemaUpdates.add(filename, path);
-                LOGGER.info("Applied: {}", path.getFileName());
+    /**
+     * Confirms the history of files that look unapplied or changed, which are the only ones that would be acted on.
+     */
+    private void confirmFilesToApply(MigrationPlan plan, Map<String, String> appliedChecksums) {
+        Map<String, String> suspectChecksums = new HashMap<>();
+        for (MigrationPlan.Entry entry : plan.getEntries()) {
+            String appliedChecksum = appliedChecksums.get(entry.getFilename());
+            if (appliedChecksum == null || !appliedChecksum.equals(plan.getManifestTree().checksumLike(entry.getFilename(), appliedChecksum))) {
+                suspectChecksums.put(entry.getFilename(), appliedChecksum);
             }
         }
+        schemaChecker.escalate(suspectChecksums).forEach((filename, checksum) -> {
+            if (checksum == null) {
+                appliedChecksums.remove(filename);
+            } else {
+                appliedChecksums.put(filename, checksum);
+            }
+        });
+    }
+
+    /**
+     * @return the files after the given entry that are expected to be applied, read lazily
+     */
+    private static Iterable<String> pendingAfter(List<MigrationPlan.Entry> entries, int index) {
+        return () -> entries.subList(index + 1, entries.size()).stream()
+                .filter(MigrationPlan.Entry::isPending)
+                .map(MigrationPlan.Entry::getFilename)
+                .iterator();
+    }
+
+    private void apply(String filename, Path path, String checksum, ParsedMigration parsedMigration,
+                       Consumer<Consumer<Iterator<CqlStatement>>> statements, Iterable<String> upcomingFiles) {
+        schemaUpdates.journal(filename, upcomingFiles);
+        long startNanos = System.nanoTime();
+        int fileMaxDmlInFlight = parsedMigration.getHeader().getMaxDmlInFlight().orElse(maxDmlInFlight);
+        statements.accept(cqlStatements -> CqlLoader.load(sessionContext, cqlStatements, fileMaxDmlInFlight));
+        tableChecker.check(sessionContext.getSession(), keyspace);
+        Duration duration = Duration.ofNanos(System.nanoTime() - startNanos);
+
+        Runnable record = () -> schemaUpdates.record(filename, checksum, duration, parsedMigration.getStatementCount());
+        Optional<SchemaAgreement> schemaAgreement = sessionContext.getSchemaAgreement();
+        if (!schemaAgreement.isPresent()) {
+            record.run();
+            LOGGER.info("Applied: {}", path.getFileName());
+            return;
+        }
+        LOGGER.info("Applied: {}", path.getFileName());
+        groupRecords.add(record);
+        if (groupRecords.size() >= schemaAgreement.get().getFilesPerGroup()) {
+            endGroup();
+        }
+    }
+
+    /**
+     * Waits for schema agreement over the files applied since the last group ended, then records them as applied.
+     */
+    private void endGroup() {
+        sessionContext.getSchemaAgreement().ifPresent(SchemaAgreement::await);
+        groupRecords.forEach(Runnable::run);
+        groupRecords.clear();
+    }
+
+    /**
+     * Records the files applied before a failure, as long as the schema is in agreement.
+     */
+    private void recordGroupIfInAgreement() {
+        try {
+            endGroup();
+        } catch (RuntimeException e) {
+            LOGGER.error("Could not record {} applied files as the schema is not in agreement: {}", groupRecords.size(), e.getMessage());
+            groupRecords.clear();
+        }
     }
 }
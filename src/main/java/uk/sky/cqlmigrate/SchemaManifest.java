@@ -0,0 +1,178 @@
+package uk.sky.cqlmigrate;
+
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
+import com.datastax.oss.driver.api.core.cql.Row;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Keeps a {@link ManifestTree} of the applied cql files in the schema_manifest table, so a run whose files
+ * have all been applied can tell with a single read of the root row, and a run with new or changed files
+ * can find them by walking down the stored tree rather than reading back every file's history.
+ * <p>
+ * Every node written describes files that had been applied, and schema_updates is never pruned,
+ * so a stored node stays true even if a later, partial update of the tree overwrote its neighbours.
+ * <p>
+ * Alongside the tree it keeps a watermark: the last file of the stored tree, which is the highest filename applied with
+ * every file before it also applied, and a digest of the files up to it. Files are normally only ever appended, so when
+ * the local files up to the watermark still produce that digest only the files after it need looking up.
+ */
+class SchemaManifest {
+    static final String SCHEMA_MANIFEST_TABLE = "schema_manifest";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SchemaManifest.class);
+    private static final int ROOT_LEVEL = -1;
+    private static final int WATERMARK_LEVEL = -2;
+    private static final int WATERMARK_FILENAME_IDX = 0;
+    private static final int WATERMARK_DIGEST_IDX = 1;
+    private static final int MAX_NODES_PER_LEVEL = 100;
+    private static final int MAX_WRITES_IN_FLIGHT = 100;
+
+    private final SessionContext sessionContext;
+    private final String keyspace;
+    private final TableChecker tableChecker;
+
+    SchemaManifest(SessionContext sessionContext, String keyspace, TableChecker tableChecker) {
+        this.sessionContext = sessionContext;
+        this.keyspace = keyspace;
+        this.tableChecker = tableChecker;
+    }
+
+    void initialise() {
+        if (!tableExists()) {
+            CqlLoader.load(sessionContext,
+                    Collections.singletonList("CREATE TABLE " + keyspace + "." + SCHEMA_MANIFEST_TABLE + " (level int, idx int, digest text, PRIMARY KEY (level, idx));")
+            );
+            tableChecker.check(sessionContext.getSession(), keyspace);
+        }
+    }
+
+    /**
+     * Compares the given tree with the stored one.
+     *
+     * @param tree tree over the local cql files
+     * @return files that are new or whose checksums differ from the stored tree, which is an empty list when the
+     * root digests match and just the files after the watermark when the files up to it are unchanged;
+     * or empty if there is no stored tree or too many files differ to be worth narrowing down
+     */
+    Optional<List<String>> divergentFiles(ManifestTree tree) {
+        if (!tableExists()) {
+            return Optional.empty();
+        }
+        Optional<String> storedRootDigest = storedRootDigest();
+        if (!storedRootDigest.isPresent()) {
+            LOGGER.info("No schema manifest stored for keyspace {}", keyspace);
+            return Optional.empty();
+        }
+        if (storedRootDigest.get().equals(tree.rootDigest())) {
+            LOGGER.info("Schema manifest for keyspace {} matches the local cql files", keyspace);
+            return Optional.of(Collections.emptyList());
+        }
+
+        Optional<List<String>> filesAfterWatermark = filesAfterWatermark(tree)
+                .filter(filenames -> filenames.size() <= MAX_NODES_PER_LEVEL);
+        if (filesAfterWatermark.isPresent()) {
+            LOGGER.info("Cql files for keyspace {} match the schema manifest up to its watermark, followed by {} files",
+                    keyspace, filesAfterWatermark.get().size());
+            return filesAfterWatermark;
+        }
+
+        Optional<List<String>> divergentFiles = tree.divergentFiles(this::storedDigests, MAX_NODES_PER_LEVEL)
+                .filter(filenames -> filenames.size() <= MAX_NODES_PER_LEVEL);
+        LOGGER.info("Schema manifest for keyspace {} differs from the local cql files in {}", keyspace,
+                divergentFiles.map(filenames -> filenames.size() + " files").orElse("too many files to narrow down"));
+        return divergentFiles;
+    }
+
+    /**
+     * @return digest of the stored tree's root, or empty if the table has not been created or there is no stored tree
+     */
+    Optional<String> storedRoot() {
+        return tableExists() ? storedRootDigest() : Optional.empty();
+    }
+
+    /**
+     * Stores the given tree and its watermark, writing the root last so it is never read ahead of the nodes below it.
+     * Does nothing if the table has not been created or the stored root already matches.
+     *
+     * @param tree tree over cql files that have all been applied
+     */
+    void update(ManifestTree tree) {
+        if (!tableExists() || storedRootDigest().filter(tree.rootDigest()::equals).isPresent()) {
+            return;
+        }
+
+        CqlSession session = sessionContext.getSession();
+        String query = "INSERT INTO " + keyspace + "." + SCHEMA_MANIFEST_TABLE + " (level, idx, digest) VALUES (?, ?, ?)";
+        List<CompletionStage<AsyncResultSet>> writes = new ArrayList<>();
+        for (int level = 0; level <= tree.height(); level++) {
+            for (int idx = 0; idx < tree.width(level); idx++) {
+                writes.add(PreparedStatementRegistry.executeAsync(session, query, sessionContext.getWriteConsistencyLevel(), level, idx, tree.digest(level, idx)));
+                if (writes.size() == MAX_WRITES_IN_FLIGHT) {
+                    writes.forEach(Futures::getUninterruptibly);
+                    writes.clear();
+                }
+            }
+        }
+        writes.forEach(Futures::getUninterruptibly);
+
+        // a reader catching the watermark half written sees a filename and digest that disagree, and walks the tree instead
+        Optional<String> watermark = tree.lastFilename();
+        if (watermark.isPresent()) {
+            PreparedStatementRegistry.execute(session, query, sessionContext.getWriteConsistencyLevel(), WATERMARK_LEVEL, WATERMARK_FILENAME_IDX, watermark.get());
+            PreparedStatementRegistry.execute(session, query, sessionContext.getWriteConsistencyLevel(), WATERMARK_LEVEL, WATERMARK_DIGEST_IDX,
+                    tree.prefixDigest(watermark.get()).get());
+        }
+
+        PreparedStatementRegistry.execute(session, query, sessionContext.getWriteConsistencyLevel(), ROOT_LEVEL, 0, tree.rootDigest());
+        LOGGER.debug("Stored schema manifest {} for keyspace {}", tree.rootDigest(), keyspace);
+    }
+
+    /**
+     * @return files after the stored watermark, or empty if there is no watermark or the files up to it have changed
+     */
+    private Optional<List<String>> filesAfterWatermark(ManifestTree tree) {
+        Map<Integer, String> watermark = storedDigests(WATERMARK_LEVEL, Arrays.asList(WATERMARK_FILENAME_IDX, WATERMARK_DIGEST_IDX));
+        String filename = watermark.get(WATERMARK_FILENAME_IDX);
+        String prefixDigest = watermark.get(WATERMARK_DIGEST_IDX);
+        if (filename == null || prefixDigest == null) {
+            return Optional.empty();
+        }
+        if (!tree.prefixDigest(filename).filter(prefixDigest::equals).isPresent()) {
+            LOGGER.info("Cql files for keyspace {} up to {} differ from the schema manifest", keyspace, filename);
+            return Optional.empty();
+        }
+        return Optional.of(tree.filenamesAfter(filename));
+    }
+
+    private Optional<String> storedRootDigest() {
+        return Optional.ofNullable(storedDigests(ROOT_LEVEL, Collections.singletonList(0)).get(0));
+    }
+
+    private Map<Integer, String> storedDigests(int level, Collection<Integer> indexes) {
+        String query = "SELECT idx, digest FROM " + keyspace + "." + SCHEMA_MANIFEST_TABLE + " WHERE level = ? AND idx IN ?";
+
+        Map<Integer, String> digests = new HashMap<>();
+        for (Row row : PreparedStatementRegistry.execute(sessionContext.getSession(), query, sessionContext.getReadConsistencyLevel(), level, new ArrayList<>(indexes))) {
+            digests.put(row.getInt("idx"), row.getString("digest"));
+        }
+        return digests;
+    }
+
+    private boolean tableExists() {
+        return sessionContext.getSession().getMetadata().getKeyspace(keyspace)
+                .flatMap(keyspaceMetadata -> keyspaceMetadata.getTable(SCHEMA_MANIFEST_TABLE))
+                .isPresent();
+    }
+}
@@ -1,29 +1,70 @@
 package uk.sky.cqlmigrate;
 
 import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
+import com.datastax.oss.driver.api.core.cql.Row;
 import com.datastax.oss.driver.api.core.cql.SimpleStatement;
-import com.datastax.oss.driver.api.core.cql.Statement;
 import com.datastax.oss.driver.api.core.metadata.schema.TableMetadata;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.nio.file.Path;
-import java.util.Collections;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.stream.Collectors;
 
 class SchemaUpdates {
     public static final String SCHEMA_UPDATES_TABLE = "schema_updates";
+    static final String SCHEMA_UPDATES_V2_TABLE = "schema_updates_v2";
+    static final String SCHEMA_UPDATES_JOURNAL_TABLE = "schema_updates_journal";
+    static final int BUCKETS = 16;
 
     private static final Logger LOGGER = LoggerFactory.getLogger(SchemaUpdates.class);
     private static final String CHECKSUM_COLUMN = "checksum";
+    private static final int UPGRADE_MARKER_BUCKET = -1;
+    private static final String UPGRADE_MARKER = "upgraded from " + SCHEMA_UPDATES_TABLE;
+    private static final int MAX_WRITES_IN_FLIGHT = 100;
+    private static final int JOURNAL_WINDOW = 64;
+    private static final int JOURNAL_PARTITION = 0;
 
     private final SessionContext sessionContext;
     private final String keyspace;
     private final TableChecker tableChecker;
+    private final SchemaUpdatesLayout layout;
+
+    private final List<Record> queuedRecords = new ArrayList<>();
+    private final Set<String> journalledFiles = new HashSet<>();
+    private CompletableFuture<Void> recordsInFlight = CompletableFuture.completedFuture(null);
+    private boolean sending;
+    private Throwable recordingFailure;
+    private boolean journalled;
+    private boolean journalKept;
 
     SchemaUpdates(SessionContext sessionContext, String keyspace, TableChecker tableChecker) {
+        this(sessionContext, keyspace, tableChecker, SchemaUpdatesLayout.V1);
+    }
+
+    SchemaUpdates(SessionContext sessionContext, String keyspace, TableChecker tableChecker, SchemaUpdatesLayout layout) {
         this.sessionContext = sessionContext;
         this.keyspace = keyspace;
         this.tableChecker = tableChecker;
+        this.layout = layout;
+    }
+
+    /**
+     * @return the v2 bucket a file is recorded in, which only depends on its name
+     */
+    static int bucket(String filename) {
+        return Math.floorMod(filename.hashCode(), BUCKETS);
     }
 
     void initialise() {
@@ -32,27 +73,292 @@ class SchemaUpdates {
                 .newInstance("USE " + keyspace + ";")
                 .setConsistencyLevel(sessionContext.getReadConsistencyLevel())
         );
-        TableMetadata schemaUpdateTableMetadata = session
-                .getMetadata()
-                .getKeyspace(keyspace)
-                .flatMap(k -> k.getTable(SCHEMA_UPDATES_TABLE)).orElse(null);
 
-        if (schemaUpdateTableMetadata == null) {
-            CqlLoader.load(sessionContext,
-                    Collections.singletonList("CREATE TABLE " + SCHEMA_UPDATES_TABLE + " (filename text primary key, " + CHECKSUM_COLUMN + " text, applied_on timestamp);")
-            );
+        List<String> createStatements = new ArrayList<>();
+        if (layout == SchemaUpdatesLayout.V1 && !tableExists(SCHEMA_UPDATES_TABLE)) {
+            createStatements.add("CREATE TABLE " + SCHEMA_UPDATES_TABLE + " (filename text primary key, " + CHECKSUM_COLUMN + " text, applied_on timestamp);");
+        }
+        if (layout == SchemaUpdatesLayout.V2 && !tableExists(SCHEMA_UPDATES_V2_TABLE)) {
+            createStatements.add("CREATE TABLE " + SCHEMA_UPDATES_V2_TABLE + " (bucket int, filename text, " + CHECKSUM_COLUMN + " text, applied_on timestamp," +
+                    " duration bigint, statement_count int, PRIMARY KEY (bucket, filename));");
+        }
+        if (!tableExists(SCHEMA_UPDATES_JOURNAL_TABLE)) {
+            createStatements.add("CREATE TABLE " + SCHEMA_UPDATES_JOURNAL_TABLE + " (journal int, filename text, PRIMARY KEY (journal, filename));");
+        }
+        if (!createStatements.isEmpty()) {
+            CqlLoader.load(sessionContext, createStatements);
             tableChecker.check(sessionContext.getSession(), keyspace);
         }
+
+        if (layout == SchemaUpdatesLayout.V2) {
+            upgradeFromV1();
+        }
     }
 
-    void add(String filename, Path path) {
+    /**
+     * Records a file as applied, waiting for the write to complete.
+     *
+     * @param duration       how long the file took to apply, only recorded in the v2 layout
+     * @param statementCount number of statements in the file, only recorded in the v2 layout
+     */
+    void add(String filename, String checksum, Duration duration, Integer statementCount) {
+        Record record = new Record(filename, checksum, duration, statementCount);
+        LOGGER.debug("Applying schema cql: {} filename: {}", insertQuery(), filename);
+        PreparedStatementRegistry.execute(sessionContext.getSession(), insertQuery(), sessionContext.getWriteConsistencyLevel(), record.values());
+    }
 
-        String query = "INSERT INTO " + SCHEMA_UPDATES_TABLE + " (filename, " + CHECKSUM_COLUMN + ", applied_on)" +
-                " VALUES (?, ?, dateof(now()));";
+    /**
+     * @return files journalled by an earlier migration that stopped before it had recorded them all,
+     * which may have been applied without being recorded
+     */
+    Set<String> unrecordedFiles() {
+        String query = "SELECT filename FROM " + keyspace + "." + SCHEMA_UPDATES_JOURNAL_TABLE + " WHERE journal = ?";
+        Set<String> filenames = new TreeSet<>();
+        for (Row row : PreparedStatementRegistry.execute(sessionContext.getSession(), query, sessionContext.getReadConsistencyLevel(), JOURNAL_PARTITION)) {
+            filenames.add(row.getString("filename"));
+        }
+        journalled = journalled || !filenames.isEmpty();
+        return filenames;
+    }
 
-        Statement statement = SimpleStatement.newInstance(query, filename, ChecksumCalculator.calculateChecksum(path)).setConsistencyLevel(sessionContext.getWriteConsistencyLevel());
+    /**
+     * Journals a file before it is applied, so that one a crash leaves applied but unrecorded can be told apart on the
+     * next run. A file not journalled already is journalled along with the next of the upcoming files, up to
+     * {@value #JOURNAL_WINDOW} in one unlogged batch, so only the first file of each window waits for a journal write.
+     * Its journal row is removed once its record has been written, and {@link #flush()} clears whatever is left of the
+     * journal unless the migration failed.
+     *
+     * @param upcomingFiles files expected to be applied after this one, in order, of which only as many as fit the
+     *                      window are read
+     */
+    void journal(String filename, Iterable<String> upcomingFiles) {
+        List<Object[]> rows;
+        synchronized (this) {
+            if (journalledFiles.contains(filename)) {
+                return;
+            }
+            rows = new ArrayList<>();
+            rows.add(new Object[]{JOURNAL_PARTITION, filename});
+            for (Iterator<String> upcoming = upcomingFiles.iterator(); upcoming.hasNext() && rows.size() < JOURNAL_WINDOW; ) {
+                String upcomingFile = upcoming.next();
+                if (!journalledFiles.contains(upcomingFile)) {
+                    rows.add(new Object[]{JOURNAL_PARTITION, upcomingFile});
+                }
+            }
+        }
+        String query = "INSERT INTO " + keyspace + "." + SCHEMA_UPDATES_JOURNAL_TABLE + " (journal, filename) VALUES (?, ?)";
+        if (rows.size() == 1) {
+            PreparedStatementRegistry.execute(sessionContext.getSession(), query, sessionContext.getWriteConsistencyLevel(), rows.get(0));
+        } else {
+            Futures.getUninterruptibly(PreparedStatementRegistry.executeBatchAsync(sessionContext.getSession(), query, sessionContext.getWriteConsistencyLevel(), rows));
+        }
+        // prepared here, as the rows are removed from a driver thread where preparing would block
+        PreparedStatementRegistry.prepare(sessionContext.getSession(), removeFromJournalQuery());
+        synchronized (this) {
+            rows.forEach(row -> journalledFiles.add((String) row[1]));
+            journalled = true;
+        }
+    }
+
+    /**
+     * Records a file as applied without waiting for the write, so the next file can be applied meanwhile.
+     * Records made while earlier writes are still in flight are sent together once they complete,
+     * as one unlogged batch per partition. {@link #flush()} must be called before the migration lock is released.
+     *
+     * @param duration       how long the file took to apply, only recorded in the v2 layout
+     * @param statementCount number of statements in the file, only recorded in the v2 layout
+     */
+    void record(String filename, String checksum, Duration duration, Integer statementCount) {
+        synchronized (this) {
+            queuedRecords.add(new Record(filename, checksum, duration, statementCount));
+        }
+        sendQueuedRecords();
+    }
+
+    /**
+     * Keeps the journal when the migration has failed, as files it applied may not all have been recorded, so that
+     * {@link #flush()} leaves it for the next migration to warn about.
+     */
+    synchronized void keepJournal() {
+        journalKept = true;
+    }
+
+    /**
+     * Waits for every record to be written, then clears the journal unless it is to be kept.
+     *
+     * @throws IllegalStateException if a record could not be written, in which case the journal is kept
+     */
+    void flush() {
+        while (true) {
+            CompletableFuture<Void> inFlight;
+            synchronized (this) {
+                inFlight = recordsInFlight;
+            }
+            inFlight.handle((result, e) -> null).join();
+            synchronized (this) {
+                if (recordsInFlight == inFlight && queuedRecords.isEmpty()) {
+                    break;
+                }
+            }
+            sendQueuedRecords();
+        }
+
+        if (recordingFailure != null) {
+            throw new IllegalStateException("Could not record every applied file in " + keyspace, recordingFailure);
+        }
+        if (journalled && !journalKept) {
+            String query = "DELETE FROM " + keyspace + "." + SCHEMA_UPDATES_JOURNAL_TABLE + " WHERE journal = ?";
+            PreparedStatementRegistry.execute(sessionContext.getSession(), query, sessionContext.getWriteConsistencyLevel(), JOURNAL_PARTITION);
+            journalled = false;
+        }
+    }
+
+    private synchronized void sendQueuedRecords() {
+        if (sending || queuedRecords.isEmpty()) {
+            return;
+        }
+        sending = true;
+        Map<Object, List<Object[]>> rowsByPartition = new LinkedHashMap<>();
+        List<String> recordedJournalledFiles = new ArrayList<>();
+        for (Record record : queuedRecords) {
+            rowsByPartition.computeIfAbsent(record.partition(), partition -> new ArrayList<>()).add(record.values());
+            if (journalledFiles.contains(record.filename)) {
+                recordedJournalledFiles.add(record.filename);
+            }
+        }
+        queuedRecords.clear();
 
-        LOGGER.debug("Applying schema cql: {} path: {}", query, path);
-        sessionContext.getSession().execute(statement);
+        CompletableFuture<?>[] writes = rowsByPartition.values().stream()
+                .map(rows -> (rows.size() == 1
+                        ? PreparedStatementRegistry.executeAsync(sessionContext.getSession(), insertQuery(), sessionContext.getWriteConsistencyLevel(), rows.get(0))
+                        : PreparedStatementRegistry.executeBatchAsync(sessionContext.getSession(), insertQuery(), sessionContext.getWriteConsistencyLevel(), rows))
+                        .toCompletableFuture())
+                .toArray(CompletableFuture[]::new);
+        // completed only once any records queued meanwhile have been sent, so flush() sees their writes in flight
+        CompletableFuture<Void> sent = new CompletableFuture<>();
+        recordsInFlight = sent;
+        CompletableFuture.allOf(writes).thenCompose(result -> removeFromJournal(recordedJournalledFiles)).whenComplete((result, e) -> {
+            if (e != null) {
+                recordingFailed(e);
+            }
+            synchronized (this) {
+                sending = false;
+            }
+            sendQueuedRecords();
+            sent.complete(null);
+        });
+    }
+
+    /**
+     * Removes the journal rows of files whose records have been written. A row left behind only means the file is
+     * reported as possibly unrecorded by the next run, so failing to remove it is not a failure to record.
+     */
+    private CompletableFuture<Void> removeFromJournal(List<String> filenames) {
+        if (filenames.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        List<Object[]> rows = filenames.stream().map(filename -> new Object[]{JOURNAL_PARTITION, filename}).collect(Collectors.toList());
+        return PreparedStatementRegistry.executeBatchAsync(sessionContext.getSession(), removeFromJournalQuery(), sessionContext.getWriteConsistencyLevel(), rows)
+                .toCompletableFuture()
+                .handle((result, e) -> {
+                    if (e != null) {
+                        LOGGER.warn("Failed to remove {} recorded files from the journal in {}: {}", filenames.size(), keyspace, e.getMessage());
+                    } else {
+                        synchronized (this) {
+                            journalledFiles.removeAll(filenames);
+                        }
+                    }
+                    return null;
+                });
+    }
+
+    private String removeFromJournalQuery() {
+        return "DELETE FROM " + keyspace + "." + SCHEMA_UPDATES_JOURNAL_TABLE + " WHERE journal = ? AND filename = ?";
+    }
+
+    private synchronized void recordingFailed(Throwable e) {
+        LOGGER.error("Failed to record applied files in {}", keyspace, e);
+        if (recordingFailure == null) {
+            recordingFailure = e instanceof CompletionException ? e.getCause() : e;
+        }
+    }
+
+    private String insertQuery() {
+        if (layout == SchemaUpdatesLayout.V1) {
+            return "INSERT INTO " + keyspace + "." + SCHEMA_UPDATES_TABLE + " (filename, " + CHECKSUM_COLUMN + ", applied_on)" +
+                    " VALUES (?, ?, dateof(now()))";
+        }
+        return "INSERT INTO " + keyspace + "." + SCHEMA_UPDATES_V2_TABLE + " (bucket, filename, " + CHECKSUM_COLUMN + ", applied_on, duration, statement_count)" +
+                " VALUES (?, ?, ?, toTimestamp(now()), ?, ?)";
+    }
+
+    /**
+     * Copies the v1 history into the v2 table, then records that it has done so. Copying again after an interrupted
+     * upgrade only rewrites the same rows, and v2 rows written meanwhile keep their duration and statement count.
+     */
+    private void upgradeFromV1() {
+        if (!tableExists(SCHEMA_UPDATES_TABLE)) {
+            return;
+        }
+        CqlSession session = sessionContext.getSession();
+        String selectMarker = "SELECT filename FROM " + keyspace + "." + SCHEMA_UPDATES_V2_TABLE + " WHERE bucket = ? AND filename = ?";
+        if (PreparedStatementRegistry.execute(session, selectMarker, sessionContext.getReadConsistencyLevel(), UPGRADE_MARKER_BUCKET, UPGRADE_MARKER).one() != null) {
+            return;
+        }
+
+        LOGGER.info("Copying {} into {} for keyspace {}", SCHEMA_UPDATES_TABLE, SCHEMA_UPDATES_V2_TABLE, keyspace);
+        String selectV1 = "SELECT filename, " + CHECKSUM_COLUMN + ", applied_on FROM " + keyspace + "." + SCHEMA_UPDATES_TABLE;
+        String insertV2 = "INSERT INTO " + keyspace + "." + SCHEMA_UPDATES_V2_TABLE + " (bucket, filename, " + CHECKSUM_COLUMN + ", applied_on) VALUES (?, ?, ?, ?)";
+
+        int copied = 0;
+        List<CompletionStage<AsyncResultSet>> writes = new ArrayList<>();
+        for (Row row : PreparedStatementRegistry.execute(session, selectV1, sessionContext.getReadConsistencyLevel())) {
+            String filename = row.getString("filename");
+            writes.add(PreparedStatementRegistry.executeAsync(session, insertV2, sessionContext.getWriteConsistencyLevel(),
+                    bucket(filename), filename, row.getString(CHECKSUM_COLUMN), row.getInstant("applied_on")));
+            copied++;
+            if (writes.size() == MAX_WRITES_IN_FLIGHT) {
+                writes.forEach(Futures::getUninterruptibly);
+                writes.clear();
+            }
+        }
+        writes.forEach(Futures::getUninterruptibly);
+
+        String insertMarker = "INSERT INTO " + keyspace + "." + SCHEMA_UPDATES_V2_TABLE + " (bucket, filename, applied_on) VALUES (?, ?, toTimestamp(now()))";
+        PreparedStatementRegistry.execute(session, insertMarker, sessionContext.getWriteConsistencyLevel(), UPGRADE_MARKER_BUCKET, UPGRADE_MARKER);
+        LOGGER.info("Copied {} applied files into {} for keyspace {}", copied, SCHEMA_UPDATES_V2_TABLE, keyspace);
+    }
+
+    private boolean tableExists(String table) {
+        TableMetadata tableMetadata = sessionContext.getSession()
+                .getMetadata()
+                .getKeyspace(keyspace)
+                .flatMap(k -> k.getTable(table)).orElse(null);
+        return tableMetadata != null;
+    }
+
+    private class Record {
+        private final String filename;
+        private final String checksum;
+        private final Duration duration;
+        private final Integer statementCount;
+
+        private Record(String filename, String checksum, Duration duration, Integer statementCount) {
+            this.filename = filename;
+            this.checksum = checksum;
+            this.duration = duration;
+            this.statementCount = statementCount;
+        }
+
+        private Object partition() {
+            return layout == SchemaUpdatesLayout.V1 ? filename : bucket(filename);
+        }
+
+        private Object[] values() {
+            if (layout == SchemaUpdatesLayout.V1) {
+                return new Object[]{filename, checksum};
+            }
+            return new Object[]{bucket(filename), filename, checksum, duration == null ? null : duration.toMillis(), statementCount};
+        }
     }
 }
@@ -0,0 +1,22 @@
+package uk.sky.cqlmigrate;
+
+/**
+ * Table layout used to record applied cql files.
+ */
+public enum SchemaUpdatesLayout {
+
+    /**
+     * The schema_updates table, partitioned by filename. Reading the whole history is an unordered scan of every partition.
+     */
+    V1,
+
+    /**
+     * The schema_updates_v2 table, with filenames clustered in a fixed number of buckets so the history can be read,
+     * or read from a given filename onwards, in filename order. Also records how long each file took to apply and how many
+     * statements it held. Any v1 history is copied across when the table is first used.
+     * <p>
+     * Clients still using {@link #V1} do not see files recorded in this layout, so every client of a keyspace
+     * should be switched over together.
+     */
+    V2
+}
@@ -5,19 +5,39 @@ import com.datastax.oss.driver.api.core.ConsistencyLevel;
 import com.datastax.oss.driver.api.core.CqlSession;
 import com.datastax.oss.driver.api.core.session.Session;
 
+import java.util.Optional;
+
 class SessionContext {
 
     private final CqlSession session;
     private final ConsistencyLevel readConsistencyLevel;
     private final ConsistencyLevel writeConsistencyLevel;
     private final ClusterHealth clusterHealth;
+    private final boolean dmlBatching;
+    private final boolean preparedInserts;
+    private final SchemaAgreement schemaAgreement;
     private boolean clusterHealthChecked = false;
 
     SessionContext(CqlSession session, ConsistencyLevel readConsistencyLevel, ConsistencyLevel writeConsistencyLevel, ClusterHealth clusterHealth) {
+        this(session, readConsistencyLevel, writeConsistencyLevel, clusterHealth, false, false, null);
+    }
+
+    /**
+     * @param dmlBatching     whether cql files should have their DML statements batched by partition
+     * @param preparedInserts whether cql files should have their inserts executed as bound statements of their shape
+     * @param schemaAgreement agreement to wait for after groups of schema changes, or null to leave it to the driver
+     * @see DmlBatcher
+     * @see PreparedInserts
+     */
+    SessionContext(CqlSession session, ConsistencyLevel readConsistencyLevel, ConsistencyLevel writeConsistencyLevel, ClusterHealth clusterHealth,
+                   boolean dmlBatching, boolean preparedInserts, SchemaAgreement schemaAgreement) {
         this.session = session;
         this.readConsistencyLevel = readConsistencyLevel;
         this.writeConsistencyLevel = writeConsistencyLevel;
         this.clusterHealth = clusterHealth;
+        this.dmlBatching = dmlBatching;
+        this.preparedInserts = preparedInserts;
+        this.schemaAgreement = schemaAgreement;
     }
 
     public CqlSession getSession() {
@@ -32,6 +52,18 @@ class SessionContext {
         return writeConsistencyLevel;
     }
 
+    public boolean isDmlBatching() {
+        return dmlBatching;
+    }
+
+    public boolean isPreparedInserts() {
+        return preparedInserts;
+    }
+
+    public Optional<SchemaAgreement> getSchemaAgreement() {
+        return Optional.ofNullable(schemaAgreement);
+    }
+
     public void checkClusterHealth() {
         if (!clusterHealthChecked) {
             clusterHealth.check();
@@ -5,6 +5,11 @@ import com.datastax.oss.driver.api.core.CqlSession;
 class SessionContextFactory {
     SessionContext getInstance(CqlSession session, CqlMigratorConfig cqlMigratorConfig) {
         ClusterHealth clusterHealth = new ClusterHealth(session);
-        return new SessionContext(session, cqlMigratorConfig.getReadConsistencyLevel(), cqlMigratorConfig.getWriteConsistencyLevel(), clusterHealth);
+        SchemaAgreement schemaAgreement = cqlMigratorConfig.getSchemaAgreementFilesPerGroup() > 0
+                ? new SchemaAgreement(session, cqlMigratorConfig.getSchemaAgreementFilesPerGroup(), cqlMigratorConfig.getSchemaAgreementTimeout(),
+                cqlMigratorConfig.getSchemaAgreementBackoff())
+                : null;
+        return new SessionContext(session, cqlMigratorConfig.getReadConsistencyLevel(), cqlMigratorConfig.getWriteConsistencyLevel(), clusterHealth,
+                cqlMigratorConfig.isDmlBatching(), cqlMigratorConfig.isPreparedInserts(), schemaAgreement);
     }
 }
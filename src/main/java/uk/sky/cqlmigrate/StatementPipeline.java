@@ -0,0 +1,103 @@
+package uk.sky.cqlmigrate;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Reads the statements of the files of a plan ahead of them being applied, on a single background thread, while the
+ * statements of the file being applied are executed.
+ * <p>
+ * Every file was checksummed, parsed and classified when the plan was made, and the statements of small files kept,
+ * so only files whose statements are streamed from disk are read ahead: the file being applied and the pending ones
+ * among the next {@code depth} files of the plan. The files are read one after another, each holding at most
+ * {@link #STATEMENTS_AHEAD} statements, so memory stays bounded whatever their size. Statements are still executed one
+ * at a time, in order, on the migrating thread, so the outcome is the same as reading each file as it is applied.
+ */
+class StatementPipeline implements Closeable {
+
+    static final int STATEMENTS_AHEAD = 1024;
+
+    private final List<MigrationPlan.Entry> entries;
+    private final int depth;
+    private final ExecutorService executor;
+    private final Map<Integer, PrefetchedStatements> prefetched = new HashMap<>();
+    private int nextToPrefetch;
+
+    /**
+     * @param depth how many files after the one being applied to read ahead, none if 0
+     */
+    StatementPipeline(List<MigrationPlan.Entry> entries, int depth) {
+        this.entries = entries;
+        this.depth = depth;
+        this.executor = depth > 0 ? Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cqlmigrate-statement-pipeline");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+    }
+
+    /**
+     * Hands the statements of a pending file to the loader, taking them from those read ahead if there are any.
+     * Files before it that were read ahead but not applied are abandoned, and reading ahead moves on to the next files.
+     *
+     * @param index position of the file in the plan
+     * @throws IllegalStateException if the file has a non-terminated statement
+     * @throws RuntimeException      if the file cannot be read or is not valid UTF-8
+     */
+    void loadStatements(int index, Consumer<Iterator<CqlStatement>> loader) {
+        advanceTo(index);
+        PrefetchedStatements statements = prefetched.remove(index);
+        if (statements == null) {
+            entries.get(index).getParsedMigration().loadStatements(loader);
+            return;
+        }
+        try {
+            loader.accept(statements);
+        } finally {
+            statements.close();
+        }
+    }
+
+    /**
+     * Stops reading ahead, abandoning any statements read ahead but not applied.
+     */
+    @Override
+    public void close() {
+        prefetched.values().forEach(PrefetchedStatements::close);
+        prefetched.clear();
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Starts reading ahead the files up to {@code depth} after the one at the index, abandoning any before it.
+     *
+     * @param index position in the plan of the file about to be considered for applying
+     */
+    void advanceTo(int index) {
+        if (executor == null) {
+            return;
+        }
+        prefetched.keySet().removeIf(prefetchedIndex -> {
+            if (prefetchedIndex < index) {
+                prefetched.get(prefetchedIndex).close();
+                return true;
+            }
+            return false;
+        });
+        nextToPrefetch = Math.max(nextToPrefetch, index);
+        for (; nextToPrefetch < entries.size() && nextToPrefetch <= index + depth; nextToPrefetch++) {
+            MigrationPlan.Entry entry = entries.get(nextToPrefetch);
+            if (entry.isPending() && !entry.getParsedMigration().isRetained()) {
+                prefetched.put(nextToPrefetch, new PrefetchedStatements(entry.getFilename(), entry.getParsedMigration(), STATEMENTS_AHEAD, executor));
+            }
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package uk.sky.cqlmigrate;
+
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.context.DriverContext;
+import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
+import com.datastax.oss.driver.api.core.cql.SimpleStatement;
+import com.datastax.oss.driver.api.core.cql.Statement;
+import com.datastax.oss.driver.api.core.servererrors.InvalidQueryException;
+import com.datastax.oss.driver.api.core.time.TimestampGenerator;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+import static org.awaitility.Awaitility.await;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AsyncDmlExecutorTest {
+
+    private final CqlSession session = mock(CqlSession.class);
+    private final List<Statement<?>> issued = new CopyOnWriteArrayList<>();
+    private final List<CompletableFuture<AsyncResultSet>> results = new CopyOnWriteArrayList<>();
+    private final AtomicLong clock = new AtomicLong(System.currentTimeMillis() * 1000 + 999);
+
+    @Before
+    public void setUp() {
+        DriverContext context = mock(DriverContext.class);
+        TimestampGenerator timestampGenerator = mock(TimestampGenerator.class);
+        when(session.getContext()).thenReturn(context);
+        when(context.getTimestampGenerator()).thenReturn(timestampGenerator);
+        when(timestampGenerator.next()).thenAnswer(invocation -> clock.incrementAndGet());
+        when(session.executeAsync(any(Statement.class))).thenAnswer(invocation -> {
+            CompletableFuture<AsyncResultSet> result = new CompletableFuture<>();
+            issued.add(invocation.getArgument(0));
+            results.add(result);
+            return result;
+        });
+    }
+
+    @Test
+    public void shouldWaitForAStatementToCompleteOnceTheLimitIsInFlight() {
+        // given
+        AsyncDmlExecutor executor = new AsyncDmlExecutor(session, 2);
+        executor.execute(insert(1), "first");
+        executor.execute(insert(2), "second");
+
+        // when
+        Thread third = new Thread(() -> executor.execute(insert(3), "third"));
+        third.start();
+
+        // then
+        await().during(Duration.ofMillis(200)).atMost(Duration.ofSeconds(1)).until(() -> issued.size() == 2);
+        results.get(0).complete(null);
+        await().atMost(Duration.ofSeconds(5)).until(() -> issued.size() == 3);
+    }
+
+    @Test
+    public void shouldGiveStatementsIncreasingTimestampsInTheOrderIssued() {
+        // given
+        AsyncDmlExecutor executor = new AsyncDmlExecutor(session, 100);
+
+        // when
+        for (int i = 0; i < 50; i++) {
+            executor.execute(insert(i), "insert");
+        }
+
+        // then
+        for (int i = 1; i < issued.size(); i++) {
+            assertThat(issued.get(i).getQueryTimestamp()).isGreaterThan(issued.get(i - 1).getQueryTimestamp());
+        }
+    }
+
+    @Test
+    public void shouldTimestampAnOverwriteAfterASynchronousWriteInTheSameMillisecond() {
+        // given
+        AsyncDmlExecutor executor = new AsyncDmlExecutor(session, 1);
+        // as the driver timestamps a statement executed synchronously
+        long synchronousWrite = session.getContext().getTimestampGenerator().next();
+
+        // when
+        executor.execute(SimpleStatement.newInstance("UPDATE status SET name = 'async' WHERE id = 1"), "overwrite");
+
+        // then
+        assertThat(issued.get(0).getQueryTimestamp()).isGreaterThan(synchronousWrite);
+    }
+
+    @Test
+    public void shouldStopIssuingStatementsOnceOneFails() {
+        // given
+        AsyncDmlExecutor executor = new AsyncDmlExecutor(session, 4);
+        InvalidQueryException failure = mock(InvalidQueryException.class);
+        executor.execute(insert(1), "first");
+        executor.execute(insert(2), "second");
+        results.get(0).completeExceptionally(failure);
+        results.get(1).complete(null);
+
+        // when
+        Throwable thrown = catchThrowable(() -> executor.execute(insert(3), "third"));
+
+        // then
+        assertThat(thrown).isSameAs(failure);
+        assertThat(issued).hasSize(2);
+    }
+
+    @Test
+    public void shouldWaitForStatementsInFlightAtABarrierAndThrowTheFirstFailure() {
+        // given
+        AsyncDmlExecutor executor = new AsyncDmlExecutor(session, 4);
+        InvalidQueryException failure = mock(InvalidQueryException.class);
+        executor.execute(insert(1), "first");
+        executor.execute(insert(2), "second");
+        CompletableFuture<Throwable> barrier = CompletableFuture.supplyAsync(() -> catchThrowable(executor::barrier));
+
+        // when
+        results.get(1).completeExceptionally(failure);
+
+        // then
+        await().during(Duration.ofMillis(200)).atMost(Duration.ofSeconds(1)).until(() -> !barrier.isDone());
+        results.get(0).complete(null);
+        assertThat(barrier.join()).isSameAs(failure);
+    }
+
+    @Test(timeout = 5000)
+    public void shouldNotHoldOnToTheSlotOfAStatementThatFailsToStart() {
+        // given
+        AsyncDmlExecutor executor = new AsyncDmlExecutor(session, 1);
+        IllegalStateException failure = new IllegalStateException("Session is closed");
+        when(session.executeAsync(any(Statement.class))).thenThrow(failure);
+
+        // when
+        Throwable thrown = catchThrowable(() -> executor.execute(insert(1), "first"));
+
+        // then
+        assertThat(thrown).isSameAs(failure);
+        assertThat(catchThrowable(executor::barrier)).isSameAs(failure);
+        executor.drain();
+    }
+
+    @Test
+    public void shouldExecuteTheFallbackWithTheSameTimestampIfTheStatementCannotBePreparedAgain() {
+        // given
+        AsyncDmlExecutor executor = new AsyncDmlExecutor(session, 1);
+        executor.execute(insert(1), () -> insert(2), "first");
+
+        // when
+        results.get(0).completeExceptionally(new IllegalStateException("Unexpected response while re-preparing"));
+        results.get(1).complete(null);
+
+        // then
+        executor.barrier();
+        assertThat(issued).extracting(statement -> ((SimpleStatement) statement).getQuery())
+                .containsExactly("INSERT INTO status (id) VALUES (1)", "INSERT INTO status (id) VALUES (2)");
+        assertThat(issued.get(1).getQueryTimestamp()).isEqualTo(issued.get(0).getQueryTimestamp());
+    }
+
+    @Test
+    public void shouldNotExecuteTheFallbackForOtherFailures() {
+        // given
+        AsyncDmlExecutor executor = new AsyncDmlExecutor(session, 1);
+        InvalidQueryException failure = mock(InvalidQueryException.class);
+        executor.execute(insert(1), () -> insert(2), "first");
+
+        // when
+        results.get(0).completeExceptionally(failure);
+
+        // then
+        assertThat(catchThrowable(executor::barrier)).isSameAs(failure);
+        assertThat(issued).hasSize(1);
+    }
+
+    @Test
+    public void shouldOnlyExecuteUnconditionalDataChangesAsynchronously() {
+        assertThat(AsyncDmlExecutor.canExecuteAsync(CqlStatement.of("INSERT INTO status (id, name) VALUES (1, 'if')"))).isTrue();
+        assertThat(AsyncDmlExecutor.canExecuteAsync(CqlStatement.of("UPDATE status SET m = m + {'a': 1} WHERE id = 1"))).isTrue();
+        assertThat(AsyncDmlExecutor.canExecuteAsync(CqlStatement.of("INSERT INTO status (id) VALUES (1) IF NOT EXISTS"))).isFalse();
+        assertThat(AsyncDmlExecutor.canExecuteAsync(CqlStatement.of("UPDATE status SET name = 'a' WHERE id = 1 if name = 'b'"))).isFalse();
+        assertThat(AsyncDmlExecutor.canExecuteAsync(CqlStatement.of("DELETE FROM status WHERE id = 1 IF EXISTS"))).isFalse();
+        assertThat(AsyncDmlExecutor.canExecuteAsync(CqlStatement.of("CREATE TABLE IF NOT EXISTS status (id int PRIMARY KEY)"))).isFalse();
+        assertThat(AsyncDmlExecutor.canExecuteAsync(CqlStatement.of("SELECT * FROM status"))).isFalse();
+    }
+
+    private static SimpleStatement insert(int id) {
+        return SimpleStatement.newInstance("INSERT INTO status (id) VALUES (" + id + ")");
+    }
+}
@@ -0,0 +1,72 @@
+package uk.sky.cqlmigrate;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ChecksumCacheTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final ChecksumCache checksumCache = new ChecksumCache();
+
+    @Test
+    public void shouldNotReadFileAgainWhileSizeAndModificationTimeAreUnchanged() throws Exception {
+        // given
+        Path path = write("001.cql", "CREATE TABLE a (id int PRIMARY KEY);");
+        FileTime lastModified = Files.getLastModifiedTime(path);
+        String checksum = checksumCache.checksum(path);
+        write("001.cql", "CREATE TABLE b (id int PRIMARY KEY);");
+        Files.setLastModifiedTime(path, lastModified);
+
+        // when
+        String cachedChecksum = checksumCache.checksum(path);
+
+        // then
+        assertThat(cachedChecksum).isEqualTo(checksum);
+    }
+
+    @Test
+    public void shouldReadFileAgainOnceItHasChanged() throws Exception {
+        // given
+        Path path = write("001.cql", "CREATE TABLE a (id int PRIMARY KEY);");
+        String checksum = checksumCache.checksum(path);
+        write("001.cql", "CREATE TABLE a (id int PRIMARY KEY, name text);");
+
+        // when
+        String changedChecksum = checksumCache.checksum(path);
+
+        // then
+        assertThat(changedChecksum)
+                .isNotEqualTo(checksum)
+                .isEqualTo(ChecksumCalculator.calculateChecksum(path));
+    }
+
+    @Test
+    public void shouldCalculateChecksumWithTheAlgorithmOfARecordedChecksum() throws Exception {
+        // given
+        ChecksumCache sha256Cache = new ChecksumCache(ChecksumAlgorithm.SHA_256);
+        Path path = write("001.cql", "CREATE TABLE a (id int PRIMARY KEY);");
+        String recordedChecksum = ChecksumCalculator.calculateChecksum(path);
+
+        // when
+        String checksum = sha256Cache.checksum(path);
+        String checksumLikeRecorded = sha256Cache.checksumLike(path, recordedChecksum);
+
+        // then
+        assertThat(checksum).startsWith("sha256:");
+        assertThat(checksumLikeRecorded).isEqualTo(recordedChecksum);
+    }
+
+    private Path write(String filename, String contents) throws Exception {
+        return Files.write(temporaryFolder.getRoot().toPath().resolve(filename), contents.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -1,17 +1,24 @@
 package uk.sky.cqlmigrate;
 
 import org.assertj.core.api.Assertions;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Random;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static uk.sky.cqlmigrate.ChecksumCalculator.calculateChecksum;
 
 public class ChecksumCalculatorTest {
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     @Test
     public void calculateChecksumThrowsWhenFileDoesNotExist() throws Exception {
         // given
@@ -49,4 +56,43 @@ public class ChecksumCalculatorTest {
         assertThat(checksum).isEqualTo("fa03a30eab18b64b74ee1ea7816e0513f03b4ac7");
     }
 
+    @Test
+    public void calculateChecksumPrefixesChecksumsOfOtherAlgorithmsWithTheirId() throws Exception {
+        // given
+        Path path = Paths.get(ClassLoader.getSystemResource("cql_valid_one/2015-04-01-13:56-create-status-table.cql").toURI());
+
+        // When
+        String sha256 = calculateChecksum(path, ChecksumAlgorithm.SHA_256);
+        String crc32 = calculateChecksum(path, ChecksumAlgorithm.CRC32);
+
+        // then
+        assertThat(sha256).isEqualTo("sha256:4466b788a1630ac38cd0a4993442405e417bc440523b7650b34488c8f4da48a5");
+        assertThat(crc32).isEqualTo("crc32:79c90634");
+    }
+
+    @Test
+    public void algorithmOfRecordedChecksumIsTakenFromItsPrefix() {
+        assertThat(ChecksumCalculator.algorithmOf("fa03a30eab18b64b74ee1ea7816e0513f03b4ac7", ChecksumAlgorithm.CRC32)).isSameAs(ChecksumAlgorithm.SHA_1);
+        assertThat(ChecksumCalculator.algorithmOf("sha256:4466b788", ChecksumAlgorithm.SHA_1)).isSameAs(ChecksumAlgorithm.SHA_256);
+        assertThat(ChecksumCalculator.algorithmOf("crc32:79c90634", ChecksumAlgorithm.SHA_1)).isSameAs(ChecksumAlgorithm.CRC32);
+        assertThat(Assertions.catchThrowable(() -> ChecksumCalculator.algorithmOf("md5:abc", ChecksumAlgorithm.SHA_1)))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessage("Checksum md5:abc was recorded with unknown algorithm md5");
+    }
+
+    @Test
+    public void calculateChecksumOfFileSpanningManyBuffersMatchesChecksumOfItsContents() throws Exception {
+        // given
+        byte[] contents = new byte[1024 * 1024 + 17];
+        new Random(42).nextBytes(contents);
+        Path path = temporaryFolder.newFile("large.cql").toPath();
+        Files.write(path, contents);
+
+        // When
+        String checksum = calculateChecksum(path);
+
+        // then
+        assertThat(checksum).isEqualTo(calculateChecksum(contents));
+    }
+
 }
\ No newline at end of file
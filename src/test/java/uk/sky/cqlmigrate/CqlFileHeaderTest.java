@@ -0,0 +1,79 @@
+package uk.sky.cqlmigrate;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.OptionalInt;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CqlFileHeaderTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void shouldReadTheMaxDmlInFlightFromTheCommentsBeforeTheFirstStatement() throws IOException {
+        // given
+        Path file = write("-- reference data\n\n//  cqlmigrate:  maxDmlInFlight = 32 \nINSERT INTO status (id) VALUES (1);\n");
+
+        // when
+        OptionalInt maxDmlInFlight = CqlFileParser.parse(file, ChecksumAlgorithm.SHA_1).getHeader().getMaxDmlInFlight();
+
+        // then
+        assertThat(maxDmlInFlight).hasValue(32);
+    }
+
+    @Test
+    public void shouldIgnoreDirectivesAfterTheFirstStatement() throws IOException {
+        // given
+        Path file = write("INSERT INTO status (id) VALUES (1);\n-- cqlmigrate: maxDmlInFlight=32\n");
+
+        // when
+        OptionalInt maxDmlInFlight = CqlFileParser.parse(file, ChecksumAlgorithm.SHA_1).getHeader().getMaxDmlInFlight();
+
+        // then
+        assertThat(maxDmlInFlight).isEmpty();
+    }
+
+    @Test
+    public void shouldReadTheHeaderOfStreamedAndMemoryMappedFiles() throws IOException {
+        // given
+        Path file = write("-- cqlmigrate: maxDmlInFlight=8\r\nINSERT INTO status (id) VALUES (1);\n");
+
+        // when
+        ParsedMigration streamed = CqlFileParser.parse(file, ChecksumAlgorithm.SHA_1, 0);
+        ParsedMigration mapped = CqlFileParser.parse(file, ChecksumAlgorithm.SHA_1, 0, true);
+
+        // then
+        assertThat(streamed.isRetained()).isFalse();
+        assertThat(streamed.getHeader().getMaxDmlInFlight()).hasValue(8);
+        assertThat(mapped.getHeader().getMaxDmlInFlight()).hasValue(8);
+    }
+
+    @Test
+    public void shouldFindTheHeaderWhenItIsSplitAcrossBuffers() {
+        // given
+        CqlFileHeader.Scanner scanner = new CqlFileHeader.Scanner();
+
+        // when
+        scanner.accept(StandardCharsets.UTF_8.decode(ByteBuffer.wrap("-- cqlmigrate: maxDml".getBytes(StandardCharsets.UTF_8))));
+        scanner.accept(StandardCharsets.UTF_8.decode(ByteBuffer.wrap("InFlight=4\nINSERT".getBytes(StandardCharsets.UTF_8))));
+
+        // then
+        assertThat(scanner.isComplete()).isTrue();
+        assertThat(scanner.finish().getMaxDmlInFlight()).hasValue(4);
+    }
+
+    private Path write(String contents) throws IOException {
+        Path file = temporaryFolder.newFile().toPath();
+        Files.write(file, contents.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+}
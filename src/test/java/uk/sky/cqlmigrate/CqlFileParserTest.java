@@ -1,16 +1,26 @@
 package uk.sky.cqlmigrate;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class CqlFileParserTest {
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     private Path getResourcePath(String resourcePath) throws URISyntaxException {
         return Paths.get(ClassLoader.getSystemResource(resourcePath).toURI());
     }
@@ -103,4 +113,68 @@ public class CqlFileParserTest {
         assertThat(cqlStatements).hasSize(2);
     }
 
+    @Test
+    public void shouldChecksumTheFileInTheSamePassAsParsingIt() throws Exception {
+        //given
+        Path cqlPath = getResourcePath("cql_rolegraphs_one/2015-08-16-12:05-statement-with-comments.cql");
+
+        //when
+        ParsedMigration parsedMigration = CqlFileParser.parse(cqlPath, ChecksumAlgorithm.SHA_256);
+
+        //then
+        assertThat(parsedMigration.getChecksum()).isEqualTo(ChecksumCalculator.calculateChecksum(cqlPath, ChecksumAlgorithm.SHA_256));
+        assertThat(parsedMigration.getByteSize()).isEqualTo(Files.size(cqlPath));
+        assertThat(parsedMigration.getStatements()).isEqualTo(CqlFileParser.getCqlStatementsFrom(cqlPath));
+        assertThat(parsedMigration.getStatementCount()).isEqualTo(4);
+    }
+
+    @Test
+    public void shouldSplitLinesSpanningBuffers() throws Exception {
+        //given
+        char[] padding = new char[64 * 1024 - 2];
+        Arrays.fill(padding, '-');
+        String contents = new String(padding) + "\r\nCREATE TABLE a (id int PRIMARY KEY, name text);\r\n"
+                + "INSERT INTO a (id, name) VALUES (1, '\u00e9t\u00e9');";
+        Path cqlPath = Files.write(temporaryFolder.getRoot().toPath().resolve("001.cql"), contents.getBytes(StandardCharsets.UTF_8));
+
+        //when
+        ParsedMigration parsedMigration = CqlFileParser.parse(cqlPath, ChecksumAlgorithm.SHA_1);
+
+        //then
+        assertThat(parsedMigration.getChecksum()).isEqualTo(ChecksumCalculator.calculateChecksum(cqlPath));
+        assertThat(parsedMigration.getStatements()).containsExactly(
+                "CREATE TABLE a (id int PRIMARY KEY, name text)",
+                "INSERT INTO a (id, name) VALUES (1, '\u00e9t\u00e9')");
+    }
+
+    @Test
+    public void shouldChecksumFilesThatCannotBeParsed() throws Exception {
+        //given
+        Path cqlPath = getResourcePath("cql_bootstrap_missing_semicolon/bootstrap.cql");
+
+        //when
+        ParsedMigration parsedMigration = CqlFileParser.parse(cqlPath, ChecksumAlgorithm.SHA_1);
+
+        //then
+        assertThat(parsedMigration.getChecksum()).isEqualTo(ChecksumCalculator.calculateChecksum(cqlPath));
+        assertThatThrownBy(parsedMigration::getStatements)
+            .isInstanceOf(IllegalStateException.class)
+            .hasMessage("File had a non-terminated cql line");
+    }
+
+    @Test
+    public void shouldStreamStatementsOfFilesTooLargeToKeep() throws Exception {
+        //given
+        Path cqlPath = getResourcePath("cql_rolegraphs_one/2015-08-16-12:05-statement-with-comments.cql");
+        ParsedMigration parsedMigration = CqlFileParser.parse(cqlPath, ChecksumAlgorithm.SHA_1, 0);
+        List<String> streamed = new ArrayList<>();
+
+        //when
+        parsedMigration.loadStatements(statements -> statements.forEachRemaining(statement -> streamed.add(statement.getCql())));
+
+        //then
+        assertThat(parsedMigration.getStatementCount()).isEqualTo(4);
+        assertThat(parsedMigration.getChecksum()).isEqualTo(ChecksumCalculator.calculateChecksum(cqlPath));
+        assertThat(streamed).isEqualTo(CqlFileParser.getCqlStatementsFrom(cqlPath));
+    }
 }
@@ -0,0 +1,123 @@
+package uk.sky.cqlmigrate;
+
+import org.junit.Test;
+
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+
+public class CqlLexerTest {
+
+    @Test
+    public void shouldSplitEveryFixtureLikeTheLineProcessor() throws Exception {
+        // given
+        Path resources = Paths.get(ClassLoader.getSystemResource("cql_bootstrap").toURI()).getParent();
+        List<Path> fixtures;
+        try (Stream<Path> files = Files.walk(resources)) {
+            fixtures = files.filter(path -> path.toString().endsWith(".cql")).collect(Collectors.toList());
+        }
+
+        for (Path fixture : fixtures) {
+            String cql = new String(Files.readAllBytes(fixture), StandardCharsets.UTF_8);
+
+            // when
+            Throwable lineProcessorFailure = catchThrowable(() -> LineProcessorCqlParser.getCqlStatementsFrom(cql));
+            Throwable lexerFailure = catchThrowable(() -> lex(cql));
+
+            // then
+            if (lineProcessorFailure != null) {
+                assertThat(lexerFailure).as(fixture.toString()).hasMessage(lineProcessorFailure.getMessage());
+                continue;
+            }
+            List<String> expected = LineProcessorCqlParser.getCqlStatementsFrom(cql);
+            List<String> statements = lex(cql);
+            assertThat(statements).as(fixture.toString()).hasSameSizeAs(expected);
+            for (int i = 0; i < statements.size(); i++) {
+                assertThat(statements.get(i)).as(fixture.toString()).isEqualToIgnoringWhitespace(expected.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void shouldOnlyEndStatementsAtSemicolonsOutsideLiteralsAndComments() {
+        // given
+        String cql = "INSERT INTO t (a, \"b;c\") VALUES ('x;--y', 1); -- trailing; comment\n"
+                + "CREATE FUNCTION f() RETURNS NULL ON NULL INPUT RETURNS int LANGUAGE java AS $$ return 1; $$;"
+                + "UPDATE t /* a; */ SET a = 'it''s' WHERE b = 2;";
+
+        // when
+        List<String> statements = lex(cql);
+
+        // then
+        assertThat(statements).containsExactly(
+                "INSERT INTO t (a, \"b;c\") VALUES ('x;--y', 1)",
+                "CREATE FUNCTION f() RETURNS NULL ON NULL INPUT RETURNS int LANGUAGE java AS $$ return 1; $$",
+                "UPDATE t  SET a = 'it''s' WHERE b = 2");
+    }
+
+    @Test
+    public void shouldJoinLinesWithASingleSpaceAndNestBlockComments() {
+        // given
+        String cql = "/* outer /* inner */\nDROP TABLE t;\n*/\n"
+                + "CREATE TABLE t (\n    id int PRIMARY KEY, // key\n    name text\n)\n;\n";
+
+        // when
+        List<String> statements = lex(cql);
+
+        // then
+        assertThat(statements).containsExactly("CREATE TABLE t ( id int PRIMARY KEY, name text )");
+    }
+
+    @Test
+    public void shouldLexTheSameWhereverTheInputIsSplit() {
+        // given
+        String cql = "INSERT INTO t (a) VALUES ('multi\nline;');\r\n-- comment\r\n/* block */ UPDATE t SET a = $$x$y$$ WHERE b = -1;";
+        CqlLexer lexer = new CqlLexer();
+
+        // when
+        for (int i = 0; i < cql.length(); i++) {
+            lexer.accept(CharBuffer.wrap(cql, i, i + 1));
+        }
+
+        // then
+        assertThat(finish(lexer)).isEqualTo(lex(cql)).containsExactly(
+                "INSERT INTO t (a) VALUES ('multi\nline;')",
+                "UPDATE t SET a = $$x$y$$ WHERE b = -1");
+    }
+
+    @Test
+    public void shouldRejectUnterminatedLiterals() {
+        // when
+        Throwable throwable = catchThrowable(() -> lex("INSERT INTO t (a) VALUES ('x);\n"));
+
+        // then
+        assertThat(throwable)
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessage("File had a non-terminated cql line");
+    }
+
+    private static List<String> lex(String cql) {
+        CqlLexer lexer = new CqlLexer();
+        lexer.accept(CharBuffer.wrap(cql.toCharArray()));
+        return finish(lexer);
+    }
+
+    private static List<String> finish(CqlLexer lexer) {
+        lexer.finish();
+        List<String> statements = new ArrayList<>();
+        String statement;
+        while ((statement = lexer.nextStatement()) != null) {
+            statements.add(statement);
+        }
+        return statements;
+    }
+}
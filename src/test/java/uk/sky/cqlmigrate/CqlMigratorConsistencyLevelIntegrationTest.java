@@ -1,6 +1,7 @@
 package uk.sky.cqlmigrate;
 
 import com.datastax.oss.driver.api.core.ConsistencyLevel;
+import com.datastax.oss.protocol.internal.request.Execute;
 import com.datastax.oss.simulacron.common.cluster.ClusterSpec;
 import com.datastax.oss.simulacron.common.cluster.DataCenterSpec;
 import com.datastax.oss.simulacron.common.cluster.QueryLog;
@@ -42,6 +43,9 @@ public class CqlMigratorConsistencyLevelIntegrationTest {
     private static final String password = "cassandra";
     private static final String TEST_KEYSPACE = "cqlmigrate_test";
     private static final String LOCAL_DC = "DC1";
+    private static final String CONSISTENCY_LEVEL_CQL_FILENAME = "2016-02-12-11_30-create-table.cql";
+    private static final String SELECT_SCHEMA_UPDATES_QUERY = "SELECT filename, checksum FROM cqlmigrate_test.schema_updates";
+    private static final String INSERT_SCHEMA_UPDATES_QUERY = "INSERT INTO cqlmigrate_test.schema_updates (filename, checksum, applied_on) VALUES (?, ?, dateof(now()))";
 
     private Collection<Path> cqlPaths;
 
@@ -85,6 +89,13 @@ public class CqlMigratorConsistencyLevelIntegrationTest {
 
         cluster.prime(primeInsertQuery(TEST_KEYSPACE, lockConfig.getClientId(), true));
         cluster.prime(primeDeleteQuery(TEST_KEYSPACE, lockConfig.getClientId(), true, UUID.randomUUID().toString()));
+
+        // schema_updates queries are prepared, so prime them to have their executions logged against the query text
+        cluster.prime(primeSchemaUpdatesQuery(SELECT_SCHEMA_UPDATES_QUERY, new LinkedHashMap<>()));
+        LinkedHashMap<String, Object> insertParams = new LinkedHashMap<>();
+        insertParams.put("filename", CONSISTENCY_LEVEL_CQL_FILENAME);
+        insertParams.put("checksum", ChecksumCalculator.calculateChecksum(getResourcePath("cql_consistency_level/" + CONSISTENCY_LEVEL_CQL_FILENAME)));
+        cluster.prime(primeSchemaUpdatesQuery(INSERT_SCHEMA_UPDATES_QUERY, insertParams));
     }
 
     private Path getResourcePath(String resourcePath) throws URISyntaxException {
@@ -147,14 +158,16 @@ public class CqlMigratorConsistencyLevelIntegrationTest {
 
         // ensure that any reads from schema updates are read at the configured consistency level
         queryLogs = cluster.getLogs().getQueryLogs().stream()
-                .filter(queryLog -> queryLog.getFrame().message.toString().contains("SELECT * FROM cqlmigrate_test.schema_updates where filename = ?"))
+                .filter(queryLog -> queryLog.getFrame().message instanceof Execute)
+                .filter(queryLog -> SELECT_SCHEMA_UPDATES_QUERY.equals(queryLog.getQuery()))
                 .filter(queryLog -> queryLog.getConsistency().equals(toSimulacronConsistencyLevel(expectedReadConsistencyLevel)))
                 .collect(Collectors.toList());
         assertThat(queryLogs.size()).isEqualTo(1);
 
         //ensure that any inserts into schema updates are done at the configured consistency level
         queryLogs = cluster.getLogs().getQueryLogs().stream()
-                .filter(queryLog -> queryLog.getFrame().message.toString().contains("INSERT INTO schema_updates (filename, checksum, applied_on) VALUES (?, ?, dateof(now()));"))
+                .filter(queryLog -> queryLog.getFrame().message instanceof Execute)
+                .filter(queryLog -> INSERT_SCHEMA_UPDATES_QUERY.equals(queryLog.getQuery()))
                 .filter(queryLog -> queryLog.getConsistency().equals(toSimulacronConsistencyLevel(expectedWriteConsistencyLevel)))
                 .collect(Collectors.toList());
         assertThat(queryLogs.size()).isEqualTo(1);
@@ -205,6 +218,18 @@ public class CqlMigratorConsistencyLevelIntegrationTest {
         return primeBuilder;
     }
 
+    private static PrimeDsl.PrimeBuilder primeSchemaUpdatesQuery(String query, LinkedHashMap<String, Object> params) {
+        LinkedHashMap<String, String> paramTypes = new LinkedHashMap<>();
+        params.keySet().forEach(name -> paramTypes.put(name, "varchar"));
+
+        return when(query(
+                query,
+                Arrays.asList(com.datastax.oss.simulacron.common.codec.ConsistencyLevel.values()),
+                params,
+                paramTypes))
+                .then(noRows());
+    }
+
     private void setupKeyspace(String keyspaceName) {
         BoundCluster simulacron = cluster;
         Map<String, String> keyspaceColumns = ImmutableMap.of(
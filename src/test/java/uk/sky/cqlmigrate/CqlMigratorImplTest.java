@@ -223,10 +223,25 @@ public class CqlMigratorImplTest {
         assertThat(resultSet.one()).as("Is lock released").isNull();
     }
 
+    @Test
+    public void shouldReportHowLongTheLockWasHeld() throws Exception {
+        //given
+        Collection<Path> cqlPaths = singletonList(getResourcePath("cql_valid_one"));
+
+        //when
+        MIGRATOR.migrate(session, TEST_KEYSPACE, cqlPaths);
+        Optional<Duration> migrationHoldTime = MIGRATOR.getLastLockHoldTime();
+        MIGRATOR.migrate(session, TEST_KEYSPACE, cqlPaths, true);
+
+        //then
+        assertThat(migrationHoldTime).hasValueSatisfying(holdTime -> assertThat(holdTime).isGreaterThan(Duration.ZERO));
+        assertThat(MIGRATOR.getLastLockHoldTime()).as("Hold time of a migration that did not need the lock").isEmpty();
+    }
+
     @Test
     public void shouldNotRemoveLockAfterMigrationFailed() throws Exception {
         //given
-        Collection<Path> cqlPaths = singletonList(getResourcePath("cql_bootstrap_missing_semicolon"));
+        Collection<Path> cqlPaths = singletonList(getResourcePath("cql_invalid_bootstrap"));
 
         //when
         try {
@@ -247,7 +262,7 @@ public class CqlMigratorImplTest {
                 .withReadConsistencyLevel(ConsistencyLevel.ALL)
                 .withWriteConsistencyLevel(ConsistencyLevel.ALL)
                 .build(), new SessionContextFactory());
-        Collection<Path> cqlPaths = singletonList(getResourcePath("cql_bootstrap_missing_semicolon"));
+        Collection<Path> cqlPaths = singletonList(getResourcePath("cql_invalid_bootstrap"));
 
         //when
         try {
@@ -260,6 +275,20 @@ public class CqlMigratorImplTest {
         assertThat(resultSet.one()).as("Is lock released").isNull();
     }
 
+    @Test
+    public void shouldFailBeforeTakingLockIfCqlCannotBeParsed() throws Exception {
+        //given
+        Collection<Path> cqlPaths = singletonList(getResourcePath("cql_bootstrap_missing_semicolon"));
+
+        //when
+        Throwable throwable = catchThrowable(() -> MIGRATOR.migrate(CASSANDRA_HOSTS, LOCAL_DC, binaryPort, username, password, TEST_KEYSPACE, cqlPaths));
+
+        //then
+        assertThat(throwable).isInstanceOf(IllegalStateException.class).hasMessage("File had a non-terminated cql line");
+        ResultSet resultSet = session.execute(newInstance("SELECT * FROM cqlmigrate.locks WHERE name = ?", LOCK_NAME));
+        assertThat(resultSet.one()).as("Is lock taken").isNull();
+    }
+
     @Test
     public void shouldRetryWhenAcquiringLockIfNotInitiallyAvailable() throws Exception {
         //given
@@ -389,6 +418,134 @@ public class CqlMigratorImplTest {
         }
     }
 
+    @Test
+    public void shouldRecordAppliedFilesInTheV2LayoutWhenConfigured() throws Exception {
+        //given
+        CqlMigratorImpl migrator = new CqlMigratorImpl(CqlMigratorConfig.builder()
+                .withLockConfig(CassandraLockConfig.builder().withTimeout(Duration.ofSeconds(10)).withConsistencyLevel(ConsistencyLevel.ALL).build())
+                .withReadConsistencyLevel(ConsistencyLevel.ALL)
+                .withWriteConsistencyLevel(ConsistencyLevel.ALL)
+                .withSchemaUpdatesLayout(SchemaUpdatesLayout.V2)
+                .build(), new SessionContextFactory());
+        Collection<Path> cqlPaths = asList(getResourcePath("cql_valid_one"), getResourcePath("cql_valid_two"));
+
+        //when
+        migrator.migrate(session, TEST_KEYSPACE, cqlPaths);
+        migrator.migrate(session, TEST_KEYSPACE, cqlPaths);
+
+        //then
+        List<Row> rows = session.execute("select * from " + TEST_KEYSPACE + ".schema_updates_v2").all();
+        assertThat(rows).extracting(row -> row.getString("filename"))
+                .containsExactlyInAnyOrder("2015-04-01-13:56-create-status-table.cql", "2015-04-01-13:57-add-column-to-status-table.cql",
+                        "2015-04-01-13:58-change-waste-of-space-column-to-text.cql", "2015-04-01-13:59-add-reference-data-to-status-table.cql");
+        assertThat(rows).allSatisfy(row -> assertThat(row.getInt("statement_count")).isPositive());
+        assertThat(session.getMetadata().getKeyspace(TEST_KEYSPACE).get().getTable("schema_updates")).isEmpty();
+    }
+
+    @Test
+    public void shouldVerifyAppliedFilesWithTheAlgorithmTheyWereRecordedWith() throws Exception {
+        //given
+        MIGRATOR.migrate(session, TEST_KEYSPACE, singletonList(getResourcePath("cql_valid_one")));
+        CqlMigratorImpl sha256Migrator = new CqlMigratorImpl(CqlMigratorConfig.builder()
+                .withLockConfig(CassandraLockConfig.builder().withTimeout(Duration.ofSeconds(10)).withConsistencyLevel(ConsistencyLevel.ALL).build())
+                .withReadConsistencyLevel(ConsistencyLevel.ALL)
+                .withWriteConsistencyLevel(ConsistencyLevel.ALL)
+                .withChecksumAlgorithm(ChecksumAlgorithm.SHA_256)
+                .build(), new SessionContextFactory());
+
+        //when
+        sha256Migrator.migrate(session, TEST_KEYSPACE, asList(getResourcePath("cql_valid_one"), getResourcePath("cql_valid_two")));
+
+        //then
+        Map<String, String> checksums = new HashMap<>();
+        session.execute("select * from " + TEST_KEYSPACE + ".schema_updates")
+                .forEach(row -> checksums.put(row.getString("filename"), row.getString("checksum")));
+        assertThat(checksums.get("2015-04-01-13:56-create-status-table.cql")).isEqualTo("fa03a30eab18b64b74ee1ea7816e0513f03b4ac7");
+        assertThat(checksums.get("2015-04-01-13:58-change-waste-of-space-column-to-text.cql")).startsWith("sha256:");
+    }
+
+    @Test
+    public void shouldApplyBatchedDataChangesAsIfExecutedOneByOne() throws Exception {
+        //given
+        CqlMigratorImpl migrator = new CqlMigratorImpl(CqlMigratorConfig.builder()
+                .withLockConfig(CassandraLockConfig.builder().withTimeout(Duration.ofSeconds(10)).withConsistencyLevel(ConsistencyLevel.ALL).build())
+                .withReadConsistencyLevel(ConsistencyLevel.ALL)
+                .withWriteConsistencyLevel(ConsistencyLevel.ALL)
+                .withDmlBatching(true)
+                .build(), new SessionContextFactory());
+
+        //when
+        migrator.migrate(session, TEST_KEYSPACE, asList(getResourcePath("cql_bootstrap"), getResourcePath("cql_batched_data")));
+
+        //then
+        List<Row> rows = session.execute("select * from " + TEST_KEYSPACE + ".events").all();
+        assertThat(rows).extracting(row -> row.getString("stream") + ":" + row.getInt("seq") + ":" + row.getString("payload") + ":" + row.getString("source"))
+                .containsExactlyInAnyOrder("a:1:first again:null", "a:3:third:after alter", "b:1:other:null");
+    }
+
+    @Test
+    public void shouldApplyDataChangesExecutedAsynchronouslyInFileOrder() throws Exception {
+        //when
+        MIGRATOR.migrate(session, TEST_KEYSPACE, asList(getResourcePath("cql_bootstrap"), getResourcePath("cql_async_data")));
+
+        //then
+        List<Row> rows = session.execute("select * from " + TEST_KEYSPACE + ".counters_by_name").all();
+        assertThat(rows).hasSize(100);
+        Row last = session.execute("select * from " + TEST_KEYSPACE + ".counters_by_name where name = 'last'").one();
+        assertThat(last.getInt("value")).isEqualTo(100);
+        assertThat(last.getString("note")).isEqualTo("after alter");
+    }
+
+    @Test
+    public void shouldInsertTheSameValuesWhenRepeatedInsertsArePrepared() throws Exception {
+        //given
+        CqlMigratorImpl migrator = new CqlMigratorImpl(CqlMigratorConfig.builder()
+                .withLockConfig(CassandraLockConfig.builder().withTimeout(Duration.ofSeconds(10)).withConsistencyLevel(ConsistencyLevel.ALL).build())
+                .withReadConsistencyLevel(ConsistencyLevel.ALL)
+                .withWriteConsistencyLevel(ConsistencyLevel.ALL)
+                .withPreparedInserts(true)
+                .build(), new SessionContextFactory());
+
+        //when
+        migrator.migrate(session, TEST_KEYSPACE, asList(getResourcePath("cql_bootstrap"), getResourcePath("cql_prepared_data")));
+
+        //then
+        List<Row> rows = session.execute("select * from " + TEST_KEYSPACE + ".products").all();
+        assertThat(rows).hasSize(60);
+        Row row = session.execute("select * from " + TEST_KEYSPACE + ".products where id = 7").one();
+        assertThat(row.getString("name")).isEqualTo("product '7'");
+        assertThat(row.getDouble("price")).isEqualTo(7.25);
+        assertThat(row.getBoolean("available")).isTrue();
+        assertThat(row.getUuid("ref")).isEqualTo(UUID.fromString("00000000-0000-0000-0000-000000000007"));
+        assertThat(row.getByteBuffer("image").getShort()).isEqualTo((short) 7);
+        assertThat(row.getInstant("added")).isEqualTo(Instant.parse("2020-01-01T00:00:00Z"));
+        assertThat(session.execute("select * from " + TEST_KEYSPACE + ".products where id = 60").one().getString("category")).isEqualTo("late");
+    }
+
+    @Test
+    public void shouldApplyAndRecordFilesWaitingForSchemaAgreementOncePerGroup() throws Exception {
+        //given
+        CqlMigratorImpl migrator = new CqlMigratorImpl(CqlMigratorConfig.builder()
+                .withLockConfig(CassandraLockConfig.builder().withTimeout(Duration.ofSeconds(10)).withConsistencyLevel(ConsistencyLevel.ALL).build())
+                .withReadConsistencyLevel(ConsistencyLevel.ALL)
+                .withWriteConsistencyLevel(ConsistencyLevel.ALL)
+                .withSchemaAgreementFilesPerGroup(2)
+                .withSchemaAgreementTimeout(Duration.ofSeconds(30))
+                .build(), new SessionContextFactory());
+        Collection<Path> cqlPaths = asList(getResourcePath("cql_valid_one"), getResourcePath("cql_valid_two"), getResourcePath("cql_batched_data"));
+
+        //when
+        migrator.migrate(CASSANDRA_HOSTS, LOCAL_DC, binaryPort, username, password, TEST_KEYSPACE, cqlPaths);
+
+        //then
+        List<Row> rows = session.execute("select * from " + TEST_KEYSPACE + ".schema_updates").all();
+        assertThat(rows).extracting(row -> row.getString("filename"))
+                .containsExactlyInAnyOrder("2015-04-01-13:56-create-status-table.cql", "2015-04-01-13:57-add-column-to-status-table.cql",
+                        "2015-04-01-13:58-change-waste-of-space-column-to-text.cql", "2015-04-01-13:59-add-reference-data-to-status-table.cql",
+                        "2020-01-01-12:00-create-and-populate-events.cql");
+        assertThat(session.execute("select * from " + TEST_KEYSPACE + ".events").all()).hasSize(3);
+    }
+
     @Test(expected = RuntimeException.class)
     public void shouldFailIfThereAreDuplicateCqlFilenames() throws Exception {
         //given
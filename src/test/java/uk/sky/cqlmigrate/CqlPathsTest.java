@@ -10,8 +10,13 @@ import java.net.URISyntaxException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Collections;
+import java.util.SortedMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
 import static org.junit.Assume.assumeTrue;
 
 public class CqlPathsTest {
@@ -39,6 +44,47 @@ public class CqlPathsTest {
             .isEqualTo(openedFileDescriptors);
     }
 
+    @Test
+    public void shouldMapFilesConcurrentlyInFilenameOrder() throws Exception {
+        // given
+        CqlPaths cqlPaths = CqlPaths.create(Collections.singletonList(getResourcePath("cql_valid_one")));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        // when
+        SortedMap<String, String> checksums;
+        try {
+            checksums = cqlPaths.mapInSortedOrder((filename, path) -> ChecksumCalculator.calculateChecksum(path), executor);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Then
+        assertThat(checksums.keySet()).containsExactly(
+                "2015-04-01-13:56-create-status-table.cql",
+                "2015-04-01-13:57-add-column-to-status-table.cql",
+                "2015-04-01-13:59-add-reference-data-to-status-table.cql");
+        assertThat(checksums).containsEntry("2015-04-01-13:56-create-status-table.cql", "fa03a30eab18b64b74ee1ea7816e0513f03b4ac7");
+    }
+
+    @Test
+    public void shouldRethrowFailureOfFirstFileInFilenameOrder() throws Exception {
+        // given
+        CqlPaths cqlPaths = CqlPaths.create(Collections.singletonList(getResourcePath("cql_valid_one")));
+
+        // when
+        Throwable throwable = catchThrowable(() -> cqlPaths.mapInSortedOrder((filename, path) -> {
+            if (!filename.startsWith("2015-04-01-13:56")) {
+                throw new IllegalStateException("Cannot map " + filename);
+            }
+            return filename;
+        }, ForkJoinPool.commonPool()));
+
+        // Then
+        assertThat(throwable)
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessage("Cannot map 2015-04-01-13:57-add-column-to-status-table.cql");
+    }
+
     private Path getResourcePath(String resourcePath) throws URISyntaxException {
         return Paths.get(ClassLoader.getSystemResource(resourcePath).toURI());
     }
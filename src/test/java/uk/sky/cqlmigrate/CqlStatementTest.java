@@ -0,0 +1,83 @@
+package uk.sky.cqlmigrate;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+public class CqlStatementTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void shouldClassifySchemaChangesWithTheirTargets() {
+        assertClassified("CREATE KEYSPACE IF NOT EXISTS My_Keyspace WITH replication = {'class': 'SimpleStrategy', 'replication_factor': 1}",
+                CqlStatement.Kind.DDL, "my_keyspace", null);
+        assertClassified("create table if not exists ks.\"Status\" (id int PRIMARY KEY)", CqlStatement.Kind.DDL, "ks", "Status");
+        assertClassified("ALTER TABLE status ADD name text", CqlStatement.Kind.DDL, null, "status");
+        assertClassified("DROP MATERIALIZED VIEW IF EXISTS ks.by_name", CqlStatement.Kind.DDL, "ks", "by_name");
+        assertClassified("CREATE CUSTOM INDEX IF NOT EXISTS idx ON ks.status (name) USING 'StorageAttachedIndex'", CqlStatement.Kind.DDL, "ks", "status");
+        assertClassified("CREATE INDEX ON status (name)", CqlStatement.Kind.DDL, null, "status");
+        assertClassified("DROP INDEX ks.idx", CqlStatement.Kind.DDL, "ks", null);
+        assertClassified("CREATE OR REPLACE FUNCTION ks.f (a int) RETURNS NULL ON NULL INPUT RETURNS int LANGUAGE java AS $$ return a; $$",
+                CqlStatement.Kind.DDL, "ks", null);
+        assertClassified("ALTER TYPE address ADD country text", CqlStatement.Kind.DDL, null, null);
+    }
+
+    @Test
+    public void shouldClassifyDataChangesWithTheirTable() {
+        assertClassified("INSERT INTO ks.status (id, name) VALUES (1, 'from')", CqlStatement.Kind.DML, "ks", "status");
+        assertClassified("UPDATE status USING TTL 10 SET name = 'x' WHERE id = 1", CqlStatement.Kind.DML, null, "status");
+        assertClassified("DELETE m['from'], \"from\" FROM Status WHERE id = 1", CqlStatement.Kind.DML, null, "status");
+        assertClassified("BEGIN UNLOGGED BATCH INSERT INTO status (id) VALUES (1); APPLY BATCH", CqlStatement.Kind.DML, null, null);
+    }
+
+    @Test
+    public void shouldClassifyAnythingElseAsOther() {
+        assertClassified("USE ks", CqlStatement.Kind.OTHER, null, null);
+        assertClassified("TRUNCATE status", CqlStatement.Kind.OTHER, null, null);
+        assertClassified("CREATE ROLE IF NOT EXISTS migrator WITH LOGIN = true", CqlStatement.Kind.OTHER, null, null);
+        assertClassified("GRANT SELECT ON ks.status TO migrator", CqlStatement.Kind.OTHER, null, null);
+        assertClassified("SELECT * FROM status", CqlStatement.Kind.OTHER, null, null);
+    }
+
+    @Test
+    public void shouldSkipCommentsLeftInMemoryMappedStatements() {
+        assertClassified("CREATE /* a comment */ TABLE -- another\n ks.status (id int PRIMARY KEY)", CqlStatement.Kind.DDL, "ks", "status");
+    }
+
+    @Test
+    public void shouldParseAndClassifyEveryStatementOfAFile() throws Exception {
+        // given
+        Path cql = Files.write(temporaryFolder.getRoot().toPath().resolve("001.cql"),
+                ("CREATE TABLE status (id int PRIMARY KEY, name text);\n"
+                        + "-- seed\n"
+                        + "INSERT INTO status (id, name) VALUES (1, 'a;b');\n").getBytes(StandardCharsets.UTF_8));
+
+        // when
+        List<CqlStatement> statements = CqlStatement.parse(cql);
+
+        // then
+        assertThat(statements)
+                .extracting(CqlStatement::getKind, CqlStatement::getTable, CqlStatement::getCql)
+                .containsExactly(
+                        tuple(CqlStatement.Kind.DDL, Optional.of("status"), "CREATE TABLE status (id int PRIMARY KEY, name text)"),
+                        tuple(CqlStatement.Kind.DML, Optional.of("status"), "INSERT INTO status (id, name) VALUES (1, 'a;b')"));
+    }
+
+    private static void assertClassified(String cql, CqlStatement.Kind kind, String keyspace, String table) {
+        CqlStatement statement = CqlStatement.of(cql);
+        assertThat(statement.getKind()).as(cql).isEqualTo(kind);
+        assertThat(statement.getKeyspace()).as(cql).isEqualTo(Optional.ofNullable(keyspace));
+        assertThat(statement.getTable()).as(cql).isEqualTo(Optional.ofNullable(table));
+    }
+}
@@ -0,0 +1,195 @@
+package uk.sky.cqlmigrate;
+
+import com.datastax.oss.driver.api.core.type.DataType;
+import com.datastax.oss.driver.api.core.type.DataTypes;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DmlBatcherTest {
+
+    private static final Map<String, DataType> KEY_TYPES = new HashMap<>();
+
+    static {
+        KEY_TYPES.put("id", DataTypes.INT);
+        KEY_TYPES.put("seq", DataTypes.INT);
+        KEY_TYPES.put("ref", DataTypes.UUID);
+        KEY_TYPES.put("at", DataTypes.TIMESTAMP);
+    }
+
+    private static final DmlBatcher.PrimaryKey PRIMARY_KEY = new DmlBatcher.PrimaryKey(Collections.singletonList("id"), Collections.singletonList("seq"), KEY_TYPES);
+
+    private final List<List<String>> executed = new ArrayList<>();
+    private final DmlBatcher batcher = new DmlBatcher(statement -> Optional.of(PRIMARY_KEY),
+            batch -> executed.add(batch.stream().map(CqlStatement::getCql).collect(Collectors.toList())));
+
+    @Test
+    public void shouldBatchConsecutiveRowsOfTheSamePartition() {
+        // when
+        add("INSERT INTO status (id, seq, name) VALUES (1, 1, 'a')",
+                "UPDATE status SET name = 'b' WHERE id = 1 AND seq = 2",
+                "DELETE FROM status WHERE seq = 3 AND id = 1",
+                "INSERT INTO status (id, seq, name) VALUES (2, 1, 'c')");
+        batcher.flush();
+
+        // then
+        assertThat(executed).containsExactly(
+                asList("INSERT INTO status (id, seq, name) VALUES (1, 1, 'a')",
+                        "UPDATE status SET name = 'b' WHERE id = 1 AND seq = 2",
+                        "DELETE FROM status WHERE seq = 3 AND id = 1"),
+                Collections.singletonList("INSERT INTO status (id, seq, name) VALUES (2, 1, 'c')"));
+    }
+
+    @Test
+    public void shouldNotBatchTheSameRowTwice() {
+        // when
+        add("INSERT INTO status (id, seq, name) VALUES (1, 1, 'a')",
+                "UPDATE status SET name = 'b' WHERE id = 1 AND seq = 1");
+        batcher.flush();
+
+        // then
+        assertThat(executed).containsExactly(
+                Collections.singletonList("INSERT INTO status (id, seq, name) VALUES (1, 1, 'a')"),
+                Collections.singletonList("UPDATE status SET name = 'b' WHERE id = 1 AND seq = 1"));
+    }
+
+    @Test
+    public void shouldNotBatchTheSameRowWrittenDifferentlyTwice() {
+        // given
+        DmlBatcher byReference = new DmlBatcher(statement -> Optional.of(new DmlBatcher.PrimaryKey(Collections.singletonList("id"),
+                Collections.singletonList("ref"), KEY_TYPES)), batch -> executed.add(batch.stream().map(CqlStatement::getCql).collect(Collectors.toList())));
+
+        // when
+        add("INSERT INTO status (id, seq, name) VALUES (1, 1, 'a')",
+                "UPDATE status SET name = 'b' WHERE id = 01 AND seq = 1");
+        batcher.flush();
+        byReference.add(CqlStatement.of("INSERT INTO status (id, ref) VALUES (1, 550e8400-e29b-41d4-a716-446655440000)"));
+        byReference.add(CqlStatement.of("INSERT INTO status (id, ref) VALUES (1, 550E8400-E29B-41D4-A716-446655440000)"));
+        byReference.flush();
+
+        // then
+        assertThat(executed).extracting(List::size).containsExactly(1, 1, 1, 1);
+    }
+
+    @Test
+    public void shouldNotBatchRowsWhoseKeysCannotBeComparedByValue() {
+        // given
+        DmlBatcher byTime = new DmlBatcher(statement -> Optional.of(new DmlBatcher.PrimaryKey(Collections.singletonList("id"),
+                Collections.singletonList("at"), KEY_TYPES)), batch -> executed.add(Collections.emptyList()));
+
+        // when
+        boolean added = byTime.add(CqlStatement.of("INSERT INTO status (id, at) VALUES (1, '2020-01-01 00:00:00')"));
+
+        // then
+        assertThat(added).isFalse();
+    }
+
+    @Test
+    public void shouldNotBatchTheSameValuesOfDifferentTables() {
+        // when
+        add("INSERT INTO status (id, seq) VALUES (1, 1)",
+                "INSERT INTO ks.status (id, seq) VALUES (1, 2)");
+        batcher.flush();
+
+        // then
+        assertThat(executed).hasSize(2);
+    }
+
+    @Test
+    public void shouldRejectStatementsThatCouldBehaveDifferentlyInABatch() {
+        // given
+        List<String> statements = asList(
+                "INSERT INTO status (id, seq) VALUES (1, 1) IF NOT EXISTS",
+                "INSERT INTO status (id, seq) VALUES (1, 2) USING TIMESTAMP 100",
+                "UPDATE status USING TTL 10 AND TIMESTAMP 100 SET name = 'a' WHERE id = 1 AND seq = 3",
+                "UPDATE status SET name = 'a' WHERE id = 1 AND seq = 4 IF name = 'b'",
+                "DELETE FROM status WHERE id = 1 AND seq IN (5, 6)",
+                "DELETE FROM status WHERE id = 1",
+                "INSERT INTO status (id, seq) VALUES (1, now())",
+                "INSERT INTO status JSON '{\"id\": 1, \"seq\": 7}'",
+                "SELECT * FROM status WHERE id = 1 AND seq = 8",
+                "CREATE TABLE other (id int PRIMARY KEY)");
+
+        // when
+        List<String> added = statements.stream()
+                .filter(statement -> batcher.add(CqlStatement.of(statement)))
+                .collect(Collectors.toList());
+
+        // then
+        assertThat(added).isEmpty();
+        assertThat(executed).isEmpty();
+    }
+
+    @Test
+    public void shouldAcceptTimeToLiveAndCollectionValues() {
+        // when
+        add("INSERT INTO status (id, seq, tags) VALUES (1, 1, {'a', 'b'}) USING TTL 10",
+                "UPDATE status USING TTL 10 SET tags = tags + {'c'} WHERE id = 1 AND seq = 2");
+        batcher.flush();
+
+        // then
+        assertThat(executed).hasSize(1);
+        assertThat(executed.get(0)).hasSize(2);
+    }
+
+    @Test
+    public void shouldKeepBatchesWithinTheSizeLimit() {
+        // given
+        String padding = String.join("", Collections.nCopies(1000, "x"));
+
+        // when
+        for (int seq = 0; seq < 12; seq++) {
+            add("INSERT INTO status (id, seq, name) VALUES (1, " + seq + ", '" + padding + "')");
+        }
+        batcher.flush();
+
+        // then
+        assertThat(executed).extracting(List::size).containsExactly(4, 4, 4);
+    }
+
+    @Test
+    public void shouldNotBatchTablesWithoutAPrimaryKey() {
+        // given
+        DmlBatcher unbatched = new DmlBatcher(statement -> Optional.empty(), batch -> executed.add(Collections.emptyList()));
+
+        // when
+        boolean added = unbatched.add(CqlStatement.of("INSERT INTO status (id, seq) VALUES (1, 1)"));
+
+        // then
+        assertThat(added).isFalse();
+    }
+
+    @Test
+    public void shouldLookUpPrimaryKeysAgainAfterForgettingTables() {
+        // given
+        List<CqlStatement> lookups = new ArrayList<>();
+        DmlBatcher counting = new DmlBatcher(statement -> {
+            lookups.add(statement);
+            return Optional.of(PRIMARY_KEY);
+        }, batch -> executed.add(Collections.emptyList()));
+
+        // when
+        counting.add(CqlStatement.of("INSERT INTO status (id, seq) VALUES (1, 1)"));
+        counting.add(CqlStatement.of("INSERT INTO status (id, seq) VALUES (1, 2)"));
+        counting.forgetTables();
+        counting.add(CqlStatement.of("INSERT INTO status (id, seq) VALUES (1, 3)"));
+
+        // then
+        assertThat(lookups).hasSize(2);
+        assertThat(executed).hasSize(1);
+    }
+
+    private void add(String... statements) {
+        Arrays.stream(statements).forEach(statement -> assertThat(batcher.add(CqlStatement.of(statement))).as(statement).isTrue());
+    }
+}
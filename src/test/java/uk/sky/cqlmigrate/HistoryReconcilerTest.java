@@ -0,0 +1,108 @@
+package uk.sky.cqlmigrate;
+
+import org.junit.Test;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+
+public class HistoryReconcilerTest {
+
+    private final List<String> events = new ArrayList<>();
+    private final Map<String, String> localChecksums = new HashMap<>();
+
+    @Test
+    public void shouldReportEveryFileAndHistoryEntryInFilenameOrder() {
+        // given
+        localChecksums.put("001.cql", "a");
+        localChecksums.put("002.cql", "b");
+        localChecksums.put("004.cql", "d");
+        localChecksums.put("005.cql", "e");
+        Map<String, String> history = new TreeMap<>();
+        history.put("001.cql", "a");
+        history.put("002.cql", "changed");
+        history.put("003.cql", "c");
+
+        // when
+        reconcile(new TreeMap<>(localChecksums).keySet().iterator(), history.entrySet().iterator());
+
+        // then
+        assertThat(events).containsExactly(
+                "applied 001.cql",
+                "changed 002.cql changed b",
+                "orphaned 003.cql c",
+                "pending 004.cql",
+                "pending 005.cql");
+    }
+
+    @Test
+    public void shouldOnlyChecksumFilesThatHaveBeenRecorded() {
+        // given
+        Map<String, String> history = Collections.singletonMap("002.cql", "b");
+
+        // when
+        HistoryReconciler.reconcile(Arrays.asList("001.cql", "002.cql", "003.cql").iterator(), (filename, recordedChecksum) -> {
+            events.add("checksum " + filename);
+            return "b";
+        }, history.entrySet().iterator(), recordingVisitor());
+
+        // then
+        assertThat(events).containsExactly("pending 001.cql", "checksum 002.cql", "applied 002.cql", "pending 003.cql");
+    }
+
+    @Test
+    public void shouldRejectUnsortedHistory() {
+        // given
+        Iterator<Map.Entry<String, String>> unsorted = Arrays.asList(
+                entry("002.cql", "b"), entry("001.cql", "a")).iterator();
+
+        // when
+        Throwable throwable = catchThrowable(() -> reconcile(Collections.<String>emptyList().iterator(), unsorted));
+
+        // then
+        assertThat(throwable)
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("History is not sorted by filename: 001.cql after 002.cql");
+    }
+
+    private void reconcile(Iterator<String> localFilenames, Iterator<Map.Entry<String, String>> history) {
+        HistoryReconciler.reconcile(localFilenames, (filename, recordedChecksum) -> localChecksums.get(filename), history, recordingVisitor());
+    }
+
+    private HistoryReconciler.Visitor recordingVisitor() {
+        return new HistoryReconciler.Visitor() {
+            @Override
+            public void applied(String filename, String checksum) {
+                events.add("applied " + filename);
+            }
+
+            @Override
+            public void pending(String filename) {
+                events.add("pending " + filename);
+            }
+
+            @Override
+            public void changed(String filename, String recordedChecksum, String localChecksum) {
+                events.add("changed " + filename + " " + recordedChecksum + " " + localChecksum);
+            }
+
+            @Override
+            public void orphaned(String filename, String recordedChecksum) {
+                events.add("orphaned " + filename + " " + recordedChecksum);
+            }
+        };
+    }
+
+    private static Map.Entry<String, String> entry(String filename, String checksum) {
+        return new AbstractMap.SimpleImmutableEntry<>(filename, checksum);
+    }
+}
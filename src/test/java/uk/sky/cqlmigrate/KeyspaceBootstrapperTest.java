@@ -15,7 +15,7 @@ public class KeyspaceBootstrapperTest {
     private static final String KEYSPACE = "keyspace";
 
     private final SessionContext sessionContext = mock(SessionContext.class);
-    private final CqlPaths paths = mock(CqlPaths.class);
+    private final MigrationPlan plan = mock(MigrationPlan.class);
     private final CqlSession cqlSession = mock(CqlSession.class);
 
     private KeyspaceBootstrapper keyspaceBootstrapper;
@@ -23,7 +23,7 @@ public class KeyspaceBootstrapperTest {
     @Before
     public void setUp() {
         when(sessionContext.getSession()).thenReturn(cqlSession);
-        keyspaceBootstrapper = new KeyspaceBootstrapper(sessionContext, KEYSPACE, paths);
+        keyspaceBootstrapper = new KeyspaceBootstrapper(sessionContext, KEYSPACE);
     }
 
     @Test
@@ -34,10 +34,10 @@ public class KeyspaceBootstrapperTest {
         when(metadata.getKeyspace(KEYSPACE)).thenReturn(Optional.empty());
 
         // when
-        keyspaceBootstrapper.bootstrap();
+        keyspaceBootstrapper.bootstrap(plan);
 
         // then
-        verify(paths, times(1)).applyBootstrap(any());
+        verify(plan, times(1)).getBootstrapStatements();
     }
 
     @Test
@@ -49,9 +49,9 @@ public class KeyspaceBootstrapperTest {
         when(metadata.getKeyspace(KEYSPACE)).thenReturn(Optional.of(keyspaceMetadata));
 
         // when
-        keyspaceBootstrapper.bootstrap();
+        keyspaceBootstrapper.bootstrap(plan);
 
         // then
-        verify(paths, times(0)).applyBootstrap(any());
+        verify(plan, times(0)).getBootstrapStatements();
     }
 }
@@ -115,6 +115,21 @@ public class LockTest {
         assertThat(Thread.interrupted()).isTrue();
     }
 
+    @Test
+    public void reportsHowLongTheLockWasHeldOnceUnlocked() throws Throwable {
+        //given
+        given(lockingMechanism.acquire(LOCK_CONFIG.getClientId())).willReturn(true);
+        given(lockingMechanism.release(LOCK_CONFIG.getClientId())).willReturn(true);
+        lock.lock();
+        Thread.sleep(POLLING_MILLIS);
+
+        //when
+        lock.unlock(false);
+
+        //then
+        assertThat(lock.getHoldTime()).isGreaterThanOrEqualTo(Duration.ofMillis(POLLING_MILLIS));
+    }
+
     @Test
     public void usesLockingMechanismToReleaseLock() throws Throwable {
         //given
@@ -0,0 +1,165 @@
+package uk.sky.cqlmigrate;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.function.BiFunction;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ManifestTreeTest {
+
+    @Test
+    public void shouldFindNoDivergentFilesWhenTreesMatch() {
+        // given
+        ManifestTree stored = ManifestTree.of(checksums(13));
+        ManifestTree local = ManifestTree.of(checksums(13));
+        List<Integer> lookups = new ArrayList<>();
+
+        // when
+        Optional<List<String>> divergentFiles = local.divergentFiles(storedDigests(stored, lookups), 100);
+
+        // then
+        assertThat(local.rootDigest()).isEqualTo(stored.rootDigest());
+        assertThat(divergentFiles).contains(new ArrayList<>());
+        assertThat(lookups).containsExactly(local.height());
+    }
+
+    @Test
+    public void shouldFindChangedFileWithOneLookupPerLevel() {
+        // given
+        ManifestTree stored = ManifestTree.of(checksums(100));
+        SortedMap<String, String> changed = checksums(100);
+        changed.put(filename(42), "changed");
+        ManifestTree local = ManifestTree.of(changed);
+        List<Integer> lookups = new ArrayList<>();
+
+        // when
+        Optional<List<String>> divergentFiles = local.divergentFiles(storedDigests(stored, lookups), 100);
+
+        // then
+        assertThat(divergentFiles).contains(listOf(filename(42)));
+        assertThat(lookups).hasSize(local.height() + 1);
+    }
+
+    @Test
+    public void shouldFindAppendedFilesWithoutDescendingIntoNewBlocks() {
+        // given
+        ManifestTree stored = ManifestTree.of(checksums(8));
+        ManifestTree local = ManifestTree.of(checksums(11));
+        List<Integer> lookups = new ArrayList<>();
+
+        // when
+        Optional<List<String>> divergentFiles = local.divergentFiles(storedDigests(stored, lookups), 100);
+
+        // then
+        assertThat(divergentFiles).contains(listOf(filename(8), filename(9), filename(10)));
+        assertThat(lookups).containsExactly(4, 3);
+    }
+
+    @Test
+    public void shouldFindNoDivergentFilesWhenLocalFilesAreASubsetOfStoredOnes() {
+        // given
+        ManifestTree stored = ManifestTree.of(checksums(6));
+        ManifestTree local = ManifestTree.of(checksums(4));
+
+        // when
+        Optional<List<String>> divergentFiles = local.divergentFiles(storedDigests(stored, new ArrayList<>()), 100);
+
+        // then
+        assertThat(local.rootDigest()).isNotEqualTo(stored.rootDigest());
+        assertThat(divergentFiles).contains(new ArrayList<>());
+    }
+
+    @Test
+    public void shouldGiveUpWhenTooManyNodesDiffer() {
+        // given
+        ManifestTree stored = ManifestTree.of(checksums(16));
+        SortedMap<String, String> changed = new TreeMap<>();
+        checksums(16).forEach((filename, checksum) -> changed.put(filename, checksum + "-changed"));
+        ManifestTree local = ManifestTree.of(changed);
+
+        // when
+        Optional<List<String>> divergentFiles = local.divergentFiles(storedDigests(stored, new ArrayList<>()), 4);
+
+        // then
+        assertThat(divergentFiles).isEmpty();
+    }
+
+    @Test
+    public void shouldHaveStableRootDigestForEmptyTree() {
+        // given
+        ManifestTree empty = ManifestTree.of(new TreeMap<>());
+
+        // then
+        assertThat(empty.rootDigest()).isEqualTo(ChecksumCalculator.calculateChecksum(new byte[0]));
+        assertThat(empty.divergentFiles((level, indexes) -> new HashMap<>(), 1)).contains(new ArrayList<>());
+    }
+
+    @Test
+    public void shouldKeepPrefixDigestWhenFilesAreAppended() {
+        // given
+        ManifestTree stored = ManifestTree.of(checksums(8));
+        ManifestTree local = ManifestTree.of(checksums(11));
+
+        // then
+        assertThat(stored.lastFilename()).contains(filename(7));
+        assertThat(local.prefixDigest(filename(7))).isEqualTo(stored.prefixDigest(filename(7)));
+        assertThat(local.filenamesAfter(filename(7))).containsExactly(filename(8), filename(9), filename(10));
+    }
+
+    @Test
+    public void shouldChangePrefixDigestWhenAnEarlierFileChangesOrIsRemoved() {
+        // given
+        ManifestTree stored = ManifestTree.of(checksums(8));
+        SortedMap<String, String> changed = checksums(11);
+        changed.put(filename(3), "changed");
+        SortedMap<String, String> removed = checksums(11);
+        removed.remove(filename(3));
+
+        // then
+        assertThat(ManifestTree.of(changed).prefixDigest(filename(7))).isNotEqualTo(stored.prefixDigest(filename(7)));
+        assertThat(ManifestTree.of(removed).prefixDigest(filename(7))).isNotEqualTo(stored.prefixDigest(filename(7)));
+        assertThat(ManifestTree.of(checksums(5)).prefixDigest(filename(7))).isEmpty();
+    }
+
+    private static BiFunction<Integer, Collection<Integer>, Map<Integer, String>> storedDigests(ManifestTree stored, List<Integer> lookups) {
+        return (level, indexes) -> {
+            lookups.add(level);
+            Map<Integer, String> digests = new HashMap<>();
+            if (level <= stored.height()) {
+                indexes.stream()
+                        .filter(idx -> idx < stored.width(level))
+                        .forEach(idx -> digests.put(idx, stored.digest(level, idx)));
+            }
+            return digests;
+        };
+    }
+
+    private static SortedMap<String, String> checksums(int count) {
+        SortedMap<String, String> checksums = new TreeMap<>();
+        for (int i = 0; i < count; i++) {
+            checksums.put(filename(i), "checksum-" + i);
+        }
+        return checksums;
+    }
+
+    private static String filename(int i) {
+        return String.format("%03d-migration.cql", i);
+    }
+
+    private static List<String> listOf(String... filenames) {
+        List<String> list = new ArrayList<>();
+        for (String filename : filenames) {
+            list.add(filename);
+        }
+        return list;
+    }
+}
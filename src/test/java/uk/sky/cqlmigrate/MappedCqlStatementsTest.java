@@ -0,0 +1,89 @@
+package uk.sky.cqlmigrate;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+
+public class MappedCqlStatementsTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void shouldHandOverStatementsAsWrittenWithoutCommentsBetweenThem() {
+        // given
+        String cql = "-- reference data\n"
+                + "INSERT INTO t (a, \"b;c\") VALUES ('x;--y', 1);\n"
+                + "/* outer /* inner */ ; */\n"
+                + "INSERT INTO t (a, b) -- inline;\n  VALUES ('caf\u00e9', $$ 2; $$) ; // trailing\n";
+
+        // when
+        List<String> statements = statementsOf(cql);
+
+        // then
+        assertThat(statements).containsExactly(
+                "INSERT INTO t (a, \"b;c\") VALUES ('x;--y', 1)",
+                "INSERT INTO t (a, b) -- inline;\n  VALUES ('caf\u00e9', $$ 2; $$)");
+    }
+
+    @Test
+    public void shouldCountStatementsWithoutDecodingThem() {
+        // given
+        MappedCqlStatements statements = new MappedCqlStatements(bytesOf("INSERT INTO t (a) VALUES (1);;\nINSERT INTO t (a) VALUES (2);\n"));
+
+        // when
+        int count = statements.skipRemaining();
+
+        // then
+        assertThat(count).isEqualTo(2);
+        assertThat(statements.hasNext()).isFalse();
+    }
+
+    @Test
+    public void shouldRejectNonTerminatedStatements() {
+        // when
+        Throwable throwable = catchThrowable(() -> statementsOf("INSERT INTO t (a) VALUES (1);\nINSERT INTO t (a) VALUES (2)"));
+
+        // then
+        assertThat(throwable)
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessage("File had a non-terminated cql line");
+    }
+
+    @Test
+    public void shouldParseLargeFilesFromAMemoryMapping() throws Exception {
+        // given
+        Path path = Files.write(temporaryFolder.getRoot().toPath().resolve("001.cql"),
+                "INSERT INTO t (a) VALUES (1);\n-- comment\nINSERT INTO t (a) VALUES (2);\n".getBytes(StandardCharsets.UTF_8));
+        List<String> statements = new ArrayList<>();
+
+        // when
+        ParsedMigration parsedMigration = CqlFileParser.parse(path, ChecksumAlgorithm.SHA_256, 0, true);
+        parsedMigration.loadStatements(iterator -> iterator.forEachRemaining(statement -> statements.add(statement.getCql())));
+
+        // then
+        assertThat(parsedMigration.getChecksum()).isEqualTo(ChecksumCalculator.calculateChecksum(path, ChecksumAlgorithm.SHA_256));
+        assertThat(parsedMigration.getStatementCount()).isEqualTo(2);
+        assertThat(statements).containsExactly("INSERT INTO t (a) VALUES (1)", "INSERT INTO t (a) VALUES (2)");
+    }
+
+    private static List<String> statementsOf(String cql) {
+        List<String> statements = new ArrayList<>();
+        new MappedCqlStatements(bytesOf(cql)).forEachRemaining(statements::add);
+        return statements;
+    }
+
+    private static ByteBuffer bytesOf(String cql) {
+        return ByteBuffer.wrap(cql.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,146 @@
+package uk.sky.cqlmigrate;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ParsedStatementCacheTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void shouldKeepTheStatementsOfParsedFilesForLaterRuns() throws Exception {
+        // given
+        Path cacheDirectory = temporaryFolder.newFolder("cache").toPath();
+        Path cql = write("001.cql", "CREATE TABLE t (a int PRIMARY KEY);\nINSERT INTO t (a) VALUES (1);\n");
+        new ParsedStatementCache(cacheDirectory).parse(cql, ChecksumAlgorithm.SHA_256, CqlFileParser.MAX_RETAINED_BYTES);
+
+        // when
+        ParsedMigration parsed = new ParsedStatementCache(cacheDirectory).parse(cql, ChecksumAlgorithm.SHA_256, CqlFileParser.MAX_RETAINED_BYTES);
+
+        // then
+        String checksum = ChecksumCalculator.calculateChecksum(cql, ChecksumAlgorithm.SHA_256);
+        assertThat(cacheDirectory.resolve("v" + CqlLexer.VERSION).resolve(checksum.replace(':', '-'))).exists();
+        assertThat(parsed.getChecksum()).isEqualTo(checksum);
+        assertThat(parsed.getByteSize()).isEqualTo(Files.size(cql));
+        assertThat(parsed.getStatements()).containsExactly("CREATE TABLE t (a int PRIMARY KEY)", "INSERT INTO t (a) VALUES (1)");
+    }
+
+    @Test
+    public void shouldKeepTheHeaderOfParsedFiles() throws Exception {
+        // given
+        Path cacheDirectory = temporaryFolder.newFolder("cache").toPath();
+        Path cql = write("001.cql", "-- cqlmigrate: maxDmlInFlight=16\nINSERT INTO t (a) VALUES (1);\n");
+        new ParsedStatementCache(cacheDirectory).parse(cql, ChecksumAlgorithm.SHA_256, CqlFileParser.MAX_RETAINED_BYTES);
+
+        // when
+        ParsedMigration parsed = new ParsedStatementCache(cacheDirectory).parse(cql, ChecksumAlgorithm.SHA_256, 0);
+
+        // then
+        assertThat(parsed.isRetained()).isFalse();
+        assertThat(parsed.getHeader().getMaxDmlInFlight()).hasValue(16);
+    }
+
+    @Test
+    public void shouldNotParseFilesFoundInTheCache() throws Exception {
+        // given
+        Path cacheDirectory = temporaryFolder.newFolder("cache").toPath();
+        Path cql = write("001.cql", "INSERT INTO t (a) VALUES (1);\n");
+        String checksum = ChecksumCalculator.calculateChecksum(cql);
+        Path entry = Files.createDirectories(cacheDirectory.resolve("v" + CqlLexer.VERSION)).resolve(checksum);
+        writeEntry(entry, Files.size(cql), "INSERT INTO t (a) VALUES (2)");
+
+        // when
+        ParsedMigration parsed = new ParsedStatementCache(cacheDirectory).parse(cql, ChecksumAlgorithm.SHA_1, CqlFileParser.MAX_RETAINED_BYTES);
+
+        // then
+        assertThat(parsed.getStatements()).containsExactly("INSERT INTO t (a) VALUES (2)");
+    }
+
+    @Test
+    public void shouldParseAgainAndReplaceUnreadableEntries() throws Exception {
+        // given
+        Path cacheDirectory = temporaryFolder.newFolder("cache").toPath();
+        Path cql = write("001.cql", "INSERT INTO t (a) VALUES (1);\n");
+        Path entry = Files.createDirectories(cacheDirectory.resolve("v" + CqlLexer.VERSION)).resolve(ChecksumCalculator.calculateChecksum(cql));
+        Files.write(entry, new byte[]{0x43, 0x51});
+
+        // when
+        ParsedMigration parsed = new ParsedStatementCache(cacheDirectory).parse(cql, ChecksumAlgorithm.SHA_1, CqlFileParser.MAX_RETAINED_BYTES);
+
+        // then
+        assertThat(parsed.getStatements()).containsExactly("INSERT INTO t (a) VALUES (1)");
+        assertThat(Files.size(entry)).isGreaterThan(2);
+        assertThat(temporaryFiles(cacheDirectory)).isZero();
+    }
+
+    @Test
+    public void shouldNotCacheFilesThatCannotBeParsed() throws Exception {
+        // given
+        Path cacheDirectory = temporaryFolder.newFolder("cache").toPath();
+        Path cql = write("001.cql", "INSERT INTO t (a) VALUES (1)\n");
+
+        // when
+        ParsedMigration parsed = new ParsedStatementCache(cacheDirectory).parse(cql, ChecksumAlgorithm.SHA_1, CqlFileParser.MAX_RETAINED_BYTES);
+
+        // then
+        assertThat(parsed.isParseable()).isFalse();
+        assertThat(cacheDirectory.resolve("v" + CqlLexer.VERSION).resolve(ChecksumCalculator.calculateChecksum(cql))).doesNotExist();
+    }
+
+    @Test
+    public void shouldOnlyCountTheStatementsOfLargeFiles() throws Exception {
+        // given
+        Path cacheDirectory = temporaryFolder.newFolder("cache").toPath();
+        Path cql = write("001.cql", "INSERT INTO t (a) VALUES (1);\nINSERT INTO t (a) VALUES (2);\n");
+        new ParsedStatementCache(cacheDirectory).parse(cql, ChecksumAlgorithm.SHA_1, 0);
+
+        // when
+        ParsedMigration parsed = new ParsedStatementCache(cacheDirectory).parse(cql, ChecksumAlgorithm.SHA_1, 0);
+
+        // then
+        assertThat(parsed.isRetained()).isFalse();
+        assertThat(parsed.getStatementCount()).isEqualTo(2);
+        assertThat(parsed.getStatements()).containsExactly("INSERT INTO t (a) VALUES (1)", "INSERT INTO t (a) VALUES (2)");
+    }
+
+    @Test
+    public void shouldNotCacheByCollisionProneChecksums() {
+        assertThat(ParsedStatementCache.canKeyBy(ChecksumAlgorithm.SHA_1)).isTrue();
+        assertThat(ParsedStatementCache.canKeyBy(ChecksumAlgorithm.CRC32)).isFalse();
+    }
+
+    private Path write(String filename, String cql) throws Exception {
+        return Files.write(temporaryFolder.getRoot().toPath().resolve(filename), cql.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void writeEntry(Path entry, long byteSize, String statement) throws Exception {
+        byte[] bytes = statement.getBytes(StandardCharsets.UTF_8);
+        try (OutputStream output = Files.newOutputStream(entry);
+             DataOutputStream data = new DataOutputStream(output)) {
+            data.writeInt(0x43514c48);
+            data.writeLong(byteSize);
+            data.writeInt(-1);
+            data.writeInt(1);
+            data.writeBoolean(true);
+            data.writeInt(bytes.length);
+            data.write(bytes);
+        }
+    }
+
+    private static long temporaryFiles(Path cacheDirectory) throws Exception {
+        try (Stream<Path> files = Files.list(cacheDirectory.resolve("v" + CqlLexer.VERSION))) {
+            return files.filter(path -> path.toString().endsWith(".tmp")).count();
+        }
+    }
+}
@@ -18,12 +18,14 @@ import java.net.URISyntaxException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
 
 public class PreMigrationCheckerIntegrationTest {
 
@@ -147,6 +149,104 @@ public class PreMigrationCheckerIntegrationTest {
         assertThat(migrationIsNeeded).isTrue();
     }
 
+    @Test
+    public void shouldOnlyReadManifestDuringPrechecks() throws Exception {
+        //given
+        givenAllSchemaUpdatesAppliedWithManifestTable();
+        SessionContext sessionContext = new SessionContext(session, ConsistencyLevel.ALL, ConsistencyLevel.ALL, clusterHealth);
+        CqlPaths cqlPaths = CqlPaths.create(Collections.singletonList(getResourcePath("cql_valid_one")));
+
+        //when
+        boolean migrationIsNeeded = new PreMigrationChecker(sessionContext, TEST_KEYSPACE, new SchemaChecker(sessionContext, TEST_KEYSPACE), cqlPaths).migrationIsNeeded();
+
+        //then
+        assertThat(migrationIsNeeded).isFalse();
+        assertThat(session.execute("SELECT digest FROM " + TEST_KEYSPACE + ".schema_manifest").one()).isNull();
+    }
+
+    @Test
+    public void shouldSkipMigrationThroughStoredManifest() throws Exception {
+        //given
+        givenAllSchemaUpdatesAppliedWithManifestTable();
+        SessionContext sessionContext = new SessionContext(session, ConsistencyLevel.ALL, ConsistencyLevel.ALL, clusterHealth);
+        CqlPaths cqlPaths = CqlPaths.create(Collections.singletonList(getResourcePath("cql_valid_one")));
+        storeManifest(sessionContext, cqlPaths);
+
+        //when
+        boolean migrationIsNeeded = new PreMigrationChecker(sessionContext, TEST_KEYSPACE, new SchemaChecker(sessionContext, TEST_KEYSPACE), cqlPaths).migrationIsNeeded();
+
+        //then
+        assertThat(migrationIsNeeded).isFalse();
+        assertThat(session.execute("SELECT digest FROM " + TEST_KEYSPACE + ".schema_manifest WHERE level = -1 AND idx = 0").one().getString("digest"))
+                .isEqualTo(ManifestTree.of(cqlPaths).rootDigest());
+    }
+
+    @Test
+    public void shouldFindNewFilesThroughStoredManifest() throws Exception {
+        //given
+        givenAllSchemaUpdatesAppliedWithManifestTable();
+        SessionContext sessionContext = new SessionContext(session, ConsistencyLevel.ALL, ConsistencyLevel.ALL, clusterHealth);
+        storeManifest(sessionContext, CqlPaths.create(Collections.singletonList(getResourcePath("cql_valid_one"))));
+
+        PreMigrationChecker preMigrationChecker = new PreMigrationChecker(sessionContext, TEST_KEYSPACE, new SchemaChecker(sessionContext, TEST_KEYSPACE),
+                CqlPaths.create(Arrays.asList(getResourcePath("cql_valid_one"), getResourcePath("cql_valid_two"))));
+
+        //when
+        boolean migrationIsNeeded = preMigrationChecker.migrationIsNeeded();
+
+        //then
+        assertThat(migrationIsNeeded).isTrue();
+    }
+
+    @Test
+    public void shouldStoreWatermarkWithManifest() throws Exception {
+        //given
+        givenAllSchemaUpdatesAppliedWithManifestTable();
+        SessionContext sessionContext = new SessionContext(session, ConsistencyLevel.ALL, ConsistencyLevel.ALL, clusterHealth);
+        CqlPaths cqlPaths = CqlPaths.create(Collections.singletonList(getResourcePath("cql_valid_one")));
+        ManifestTree manifestTree = ManifestTree.of(cqlPaths);
+
+        //when
+        storeManifest(sessionContext, cqlPaths);
+
+        //then
+        assertThat(session.execute("SELECT digest FROM " + TEST_KEYSPACE + ".schema_manifest WHERE level = -2 AND idx = 0").one().getString("digest"))
+                .isEqualTo("2015-04-01-13:59-add-reference-data-to-status-table.cql");
+        assertThat(session.execute("SELECT digest FROM " + TEST_KEYSPACE + ".schema_manifest WHERE level = -2 AND idx = 1").one().getString("digest"))
+                .isEqualTo(manifestTree.prefixDigest("2015-04-01-13:59-add-reference-data-to-status-table.cql").get());
+    }
+
+    @Test
+    public void shouldDetectChangedContentsThroughStoredManifest() throws Exception {
+        //given
+        givenAllSchemaUpdatesAppliedWithManifestTable();
+        SessionContext sessionContext = new SessionContext(session, ConsistencyLevel.ALL, ConsistencyLevel.ALL, clusterHealth);
+        storeManifest(sessionContext, CqlPaths.create(Collections.singletonList(getResourcePath("cql_valid_one"))));
+        insertSchemaUpdate(TEST_KEYSPACE, new Tuple("2015-04-01-13:58-change-waste-of-space-column-to-text.cql", "not-the-checksum"));
+
+        PreMigrationChecker preMigrationChecker = new PreMigrationChecker(sessionContext, TEST_KEYSPACE, new SchemaChecker(sessionContext, TEST_KEYSPACE),
+                CqlPaths.create(Arrays.asList(getResourcePath("cql_valid_one"), getResourcePath("cql_valid_two"))));
+
+        //when
+        Throwable throwable = catchThrowable(preMigrationChecker::migrationIsNeeded);
+
+        //then
+        assertThat(throwable)
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("contents have changed for 2015-04-01-13:58-change-waste-of-space-column-to-text.cql");
+    }
+
+    private void storeManifest(SessionContext sessionContext, CqlPaths cqlPaths) {
+        new SchemaManifest(sessionContext, TEST_KEYSPACE, new NoOpTableChecker()).update(ManifestTree.of(cqlPaths));
+    }
+
+    private void givenAllSchemaUpdatesAppliedWithManifestTable() {
+        createKeyspace(TEST_KEYSPACE);
+        createSchemaUpdatesTable(TEST_KEYSPACE);
+        allSchemaUpdates.forEach(t -> insertSchemaUpdate(TEST_KEYSPACE, t));
+        session.execute("CREATE TABLE " + TEST_KEYSPACE + ".schema_manifest (level int, idx int, digest text, PRIMARY KEY (level, idx));");
+    }
+
     private Path getResourcePath(String resourcePath) throws URISyntaxException {
         return Paths.get(ClassLoader.getSystemResource(resourcePath).toURI());
     }
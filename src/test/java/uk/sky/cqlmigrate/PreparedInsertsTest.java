@@ -0,0 +1,116 @@
+package uk.sky.cqlmigrate;
+
+import com.datastax.oss.driver.api.core.CqlIdentifier;
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.datastax.oss.driver.api.core.type.DataType;
+import com.datastax.oss.driver.api.core.type.DataTypes;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class PreparedInsertsTest {
+
+    private static final Map<String, DataType> COLUMN_TYPES = new HashMap<>();
+
+    static {
+        COLUMN_TYPES.put("id", DataTypes.INT);
+        COLUMN_TYPES.put("name", DataTypes.TEXT);
+        COLUMN_TYPES.put("Active", DataTypes.BOOLEAN);
+        COLUMN_TYPES.put("ref", DataTypes.UUID);
+        COLUMN_TYPES.put("data", DataTypes.BLOB);
+        COLUMN_TYPES.put("score", DataTypes.DOUBLE);
+        COLUMN_TYPES.put("created", DataTypes.TIMESTAMP);
+        COLUMN_TYPES.put("tags", DataTypes.listOf(DataTypes.TEXT));
+    }
+
+    @Test
+    public void shouldReplaceLiteralsReadTheSameByTheDriverWithBindMarkers() {
+        // when
+        Optional<PreparedInserts.Shape> shape = shapeOf("INSERT INTO ks.status (id, name, \"Active\", ref, data, score) "
+                + "VALUES (-1, 'it''s', TRUE, 550e8400-e29b-41d4-a716-446655440000, 0xcafe, 1.5e3) USING TTL 60");
+
+        // then
+        assertThat(shape).hasValueSatisfying(s -> {
+            assertThat(s.getQuery()).isEqualTo("INSERT INTO ks.status (id, name, \"Active\", ref, data, score) VALUES (?, ?, ?, ?, ?, ?) USING TTL 60");
+            assertThat(s.getLiterals()).containsExactly("-1", "'it''s'", "TRUE", "550e8400-e29b-41d4-a716-446655440000", "0xcafe", "1.5e3");
+        });
+    }
+
+    @Test
+    public void shouldLeaveValuesTheDriverCouldReadDifferentlyAsWritten() {
+        // when
+        Optional<PreparedInserts.Shape> shape = shapeOf("INSERT INTO status (id, created, tags, name, score) "
+                + "VALUES (1, '2020-01-01 00:00:00', ['a', 'b'], $$text$$, 1d)");
+
+        // then
+        assertThat(shape).hasValueSatisfying(s -> {
+            assertThat(s.getQuery()).isEqualTo("INSERT INTO status (id, created, tags, name, score) VALUES (?, '2020-01-01 00:00:00', ['a', 'b'], $$text$$, 1d)");
+            assertThat(s.getLiterals()).containsExactly("1");
+        });
+    }
+
+    @Test
+    public void shouldGiveStatementsDifferingOnlyInLiteralsTheSameShape() {
+        // when
+        Optional<PreparedInserts.Shape> first = shapeOf("INSERT INTO status (id, name) VALUES (1, 'one')");
+        Optional<PreparedInserts.Shape> second = shapeOf("INSERT INTO status (id, name) VALUES (2, 'two')");
+
+        // then
+        assertThat(first.get().getQuery()).isEqualTo(second.get().getQuery());
+    }
+
+    @Test
+    public void shouldNotShapeStatementsWithoutLiteralsToExtract() {
+        assertThat(shapeOf("INSERT INTO status (id, name) VALUES (1, 'one', 'extra')")).isEmpty();
+        assertThat(shapeOf("INSERT INTO status (id, name) VALUES (now(), null)")).isEmpty();
+        assertThat(shapeOf("INSERT INTO status (id, name) VALUES ('1', 2)")).isEmpty();
+        assertThat(shapeOf("INSERT INTO status JSON '{\"id\": 1}'")).isEmpty();
+        assertThat(shapeOf("UPDATE status SET name = 'one' WHERE id = 1")).isEmpty();
+    }
+
+    @Test
+    public void shouldOnlyForgetTheShapesPreparedInItsOwnKeyspace() {
+        // given
+        CqlSession session = mock(CqlSession.class);
+        PreparedStatement preparedStatement = mock(PreparedStatement.class, RETURNS_DEEP_STUBS);
+        given(preparedStatement.getVariableDefinitions().size()).willReturn(2);
+        given(preparedStatement.getVariableDefinitions().get(0).getType()).willReturn(DataTypes.INT);
+        given(preparedStatement.getVariableDefinitions().get(1).getType()).willReturn(DataTypes.TEXT);
+        given(preparedStatement.bind(any())).willReturn(mock(BoundStatement.class));
+        given(session.prepare(anyString())).willReturn(preparedStatement);
+        PreparedInserts other = new PreparedInserts(session, statement -> Optional.of(COLUMN_TYPES));
+        PreparedInserts inserts = new PreparedInserts(session, statement -> Optional.of(COLUMN_TYPES));
+        given(session.getKeyspace()).willReturn(Optional.of(CqlIdentifier.fromInternal("other")));
+        other.bind(CqlStatement.of("INSERT INTO status (id, name) VALUES (1, 'one')"));
+        other.bind(CqlStatement.of("INSERT INTO status (id, name) VALUES (2, 'two')"));
+        given(session.getKeyspace()).willReturn(Optional.of(CqlIdentifier.fromInternal("mine")));
+        inserts.bind(CqlStatement.of("INSERT INTO status (id, name) VALUES (1, 'one')"));
+        inserts.bind(CqlStatement.of("INSERT INTO status (id, name) VALUES (2, 'two')"));
+
+        // when
+        inserts.forgetTables();
+
+        // then
+        assertThat(inserts.bind(CqlStatement.of("INSERT INTO status (id, name) VALUES (3, 'three')"))).isEmpty();
+        given(session.getKeyspace()).willReturn(Optional.of(CqlIdentifier.fromInternal("other")));
+        assertThat(other.bind(CqlStatement.of("INSERT INTO status (id, name) VALUES (3, 'three')"))).isPresent();
+        verify(session, times(2)).prepare(anyString());
+    }
+
+    private static Optional<PreparedInserts.Shape> shapeOf(String cql) {
+        return PreparedInserts.Shape.of(CqlStatement.of(cql), COLUMN_TYPES);
+    }
+}
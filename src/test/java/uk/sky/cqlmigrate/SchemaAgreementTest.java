@@ -0,0 +1,61 @@
+package uk.sky.cqlmigrate;
+
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.config.DefaultDriverOption;
+import org.junit.Before;
+import org.junit.Test;
+import uk.sky.cqlmigrate.exception.ClusterUnhealthyException;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.*;
+
+public class SchemaAgreementTest {
+
+    private final CqlSession session = mock(CqlSession.class, RETURNS_DEEP_STUBS);
+    private final SchemaAgreement schemaAgreement = new SchemaAgreement(session, 1, Duration.ofMillis(500), Duration.ofMillis(10));
+
+    @Before
+    public void setUp() {
+        when(session.getContext().getConfig().getDefaultProfile().getDuration(DefaultDriverOption.CONTROL_CONNECTION_AGREEMENT_TIMEOUT))
+                .thenReturn(Duration.ofSeconds(10));
+    }
+
+    @Test
+    public void shouldNotCheckAgreementIfTheSchemaHasNotChanged() {
+        // when
+        schemaAgreement.await();
+
+        // then
+        verify(session, never()).checkSchemaAgreementAsync();
+    }
+
+    @Test
+    public void shouldCheckAgainUntilTheSchemaIsInAgreement() {
+        // given
+        when(session.checkSchemaAgreementAsync()).thenReturn(
+                CompletableFuture.completedFuture(false), CompletableFuture.completedFuture(false), CompletableFuture.completedFuture(true));
+        schemaAgreement.schemaChanged();
+
+        // when
+        schemaAgreement.await();
+        schemaAgreement.await();
+
+        // then
+        verify(session, times(3)).checkSchemaAgreementAsync();
+    }
+
+    @Test
+    public void shouldFailIfTheSchemaIsNotInAgreementWithinTheTimeout() {
+        // given
+        when(session.checkSchemaAgreementAsync()).thenReturn(CompletableFuture.completedFuture(false));
+        schemaAgreement.schemaChanged();
+
+        // when / then
+        assertThatThrownBy(schemaAgreement::await)
+                .isInstanceOf(ClusterUnhealthyException.class)
+                .hasMessageStartingWith("Schema not in agreement after");
+    }
+}
@@ -0,0 +1,168 @@
+package uk.sky.cqlmigrate;
+
+import com.datastax.oss.driver.api.core.ConsistencyLevel;
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.datastax.oss.driver.api.core.cql.ResultSet;
+import com.datastax.oss.driver.api.core.cql.Row;
+import com.datastax.oss.driver.api.core.cql.Statement;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class SchemaCheckerTest {
+
+    private static final String KEYSPACE = "keyspace";
+    private static final String FILENAME = "2015-04-01-13:56-create-status-table.cql";
+
+    private final SessionContext sessionContext = mock(SessionContext.class);
+    private final CqlSession cqlSession = mock(CqlSession.class);
+
+    private final BoundStatement boundStatement = mock(BoundStatement.class);
+
+    private SchemaChecker schemaChecker;
+
+    @Before
+    public void setUp() {
+        PreparedStatement preparedStatement = mock(PreparedStatement.class);
+        when(cqlSession.prepare(anyString())).thenReturn(preparedStatement);
+        when(preparedStatement.bind(any())).thenReturn(boundStatement);
+        when(boundStatement.setConsistencyLevel(any())).thenReturn(boundStatement);
+
+        when(sessionContext.getSession()).thenReturn(cqlSession);
+        when(sessionContext.getReadConsistencyLevel()).thenReturn(ConsistencyLevel.LOCAL_ONE);
+        schemaChecker = new SchemaChecker(sessionContext, KEYSPACE);
+    }
+
+    @Test
+    public void shouldReadHistoryOnceForAllLookups() throws Exception {
+        // given
+        givenHistory(row(FILENAME, "fa03a30eab18b64b74ee1ea7816e0513f03b4ac7"));
+        Path path = Paths.get(ClassLoader.getSystemResource("cql_valid_one/" + FILENAME).toURI());
+
+        // when
+        boolean applied = schemaChecker.alreadyApplied(FILENAME);
+        boolean different = !new ChecksumCache().checksumLike(path, schemaChecker.getAppliedChecksums().get(FILENAME))
+                .equals(schemaChecker.getAppliedChecksums().get(FILENAME));
+        boolean otherApplied = schemaChecker.alreadyApplied("2015-04-01-13:57-add-column-to-status-table.cql");
+
+        // then
+        assertThat(applied).isTrue();
+        assertThat(different).isFalse();
+        assertThat(otherApplied).isFalse();
+        verify(cqlSession, times(1)).execute(any(Statement.class));
+    }
+
+    @Test
+    public void shouldPrepareHistoryQueryOncePerSession() {
+        // given
+        givenHistory();
+        schemaChecker.loadHistory();
+
+        // when
+        new SchemaChecker(sessionContext, KEYSPACE).loadHistory();
+
+        // then
+        verify(cqlSession, times(1)).prepare("SELECT filename, checksum FROM keyspace.schema_updates");
+        verify(cqlSession, times(2)).execute(any(Statement.class));
+    }
+
+    @Test
+    public void shouldReplaceHistoryWhenReloaded() {
+        // given
+        givenHistory();
+        assertThat(schemaChecker.alreadyApplied(FILENAME)).isFalse();
+        givenHistory(row(FILENAME, "fa03a30eab18b64b74ee1ea7816e0513f03b4ac7"));
+
+        // when
+        schemaChecker.loadHistory();
+
+        // then
+        assertThat(schemaChecker.alreadyApplied(FILENAME)).isTrue();
+        verify(cqlSession, times(2)).execute(any(Statement.class));
+    }
+
+    @Test
+    public void shouldOnlyReadTheGivenFilesWhenReloadingOverAKnownHistory() {
+        // given
+        AsyncResultSet lookup = mock(AsyncResultSet.class);
+        Row row = row(FILENAME, "fa03a30eab18b64b74ee1ea7816e0513f03b4ac7");
+        when(lookup.one()).thenReturn(row);
+        when(cqlSession.executeAsync(any(Statement.class))).thenReturn(CompletableFuture.completedFuture(lookup));
+
+        // when
+        schemaChecker.loadHistory(Collections.singletonMap("2015-04-01-13:55-create-keyspace.cql", "abc"), Collections.singletonList(FILENAME));
+
+        // then
+        assertThat(schemaChecker.getAppliedChecksums())
+                .containsEntry("2015-04-01-13:55-create-keyspace.cql", "abc")
+                .containsEntry(FILENAME, "fa03a30eab18b64b74ee1ea7816e0513f03b4ac7")
+                .hasSize(2);
+        verify(cqlSession, times(1)).executeAsync(any(Statement.class));
+        verify(cqlSession, never()).execute(any(Statement.class));
+    }
+
+    @Test
+    public void shouldReadHistoryAtLocalOneAndEscalateOnlySuspectFiles() {
+        // given
+        when(sessionContext.getReadConsistencyLevel()).thenReturn(ConsistencyLevel.QUORUM);
+        SchemaChecker tieredChecker = new SchemaChecker(sessionContext, KEYSPACE, SchemaUpdatesLayout.V1, true);
+        givenHistory();
+        AsyncResultSet lookup = mock(AsyncResultSet.class);
+        Row row = row(FILENAME, "fa03a30eab18b64b74ee1ea7816e0513f03b4ac7");
+        when(lookup.one()).thenReturn(row);
+        when(cqlSession.executeAsync(any(Statement.class))).thenReturn(CompletableFuture.completedFuture(lookup));
+        assertThat(tieredChecker.alreadyApplied(FILENAME)).isFalse();
+
+        // when
+        Map<String, String> confirmed = tieredChecker.escalate(Collections.singletonMap(FILENAME, null));
+
+        // then
+        assertThat(confirmed).containsEntry(FILENAME, "fa03a30eab18b64b74ee1ea7816e0513f03b4ac7");
+        assertThat(tieredChecker.alreadyApplied(FILENAME)).isTrue();
+        assertThat(tieredChecker.getEscalatedReads()).isEqualTo(1);
+        assertThat(tieredChecker.getCorrectedReads()).isEqualTo(1);
+        verify(boundStatement).setConsistencyLevel(ConsistencyLevel.LOCAL_ONE);
+        verify(boundStatement).setConsistencyLevel(ConsistencyLevel.QUORUM);
+    }
+
+    @Test
+    public void shouldNotEscalateWithoutTieredReads() {
+        // given
+        Map<String, String> suspect = Collections.singletonMap(FILENAME, null);
+
+        // when
+        Map<String, String> confirmed = schemaChecker.escalate(suspect);
+
+        // then
+        assertThat(confirmed).isSameAs(suspect);
+        assertThat(schemaChecker.getEscalatedReads()).isZero();
+        verify(cqlSession, never()).executeAsync(any(Statement.class));
+    }
+
+    private void givenHistory(Row... rows) {
+        ResultSet resultSet = mock(ResultSet.class);
+        when(resultSet.iterator()).thenReturn(Arrays.asList(rows).iterator());
+        when(cqlSession.execute(any(Statement.class))).thenReturn(resultSet);
+    }
+
+    private static Row row(String filename, String checksum) {
+        Row row = mock(Row.class);
+        when(row.getString("filename")).thenReturn(filename);
+        when(row.getString("checksum")).thenReturn(checksum);
+        return row;
+    }
+}
@@ -5,16 +5,30 @@ import org.assertj.core.api.Assertions;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
+import uk.sky.cqlmigrate.exception.ClusterUnhealthyException;
 
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
 
 import static org.assertj.core.api.Assertions.catchThrowable;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.willThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -37,88 +51,159 @@ public class SchemaLoaderTest {
     @Mock
     private static ClusterHealth clusterHealth;
 
-    private CqlPaths cqlPaths;
-
     private SchemaLoader schemaLoader;
 
     @Before
     public void setUp() {
         given(sessionContext.getSession()).willReturn(session);
+        schemaLoader = new SchemaLoader(sessionContext, TEST_KEYSPACE, schemaUpdates, schemaChecker, tableChecker);
     }
 
     @Test
     public void shouldLoadCqls() {
         //given
-        given(schemaChecker.alreadyApplied(FILENAME)).willReturn(false);
-        cqlPaths = new CqlPaths(new HashMap<String, Path>() {{
-            put(FILENAME, Paths.get(ClassLoader.getSystemResource("cql_bootstrap/bootstrap.cql").getPath()));
-        }});
-        schemaLoader = new SchemaLoader(sessionContext, TEST_KEYSPACE, schemaUpdates, schemaChecker, tableChecker, cqlPaths);
+        MigrationPlan plan = givenPlanFor(Paths.get(ClassLoader.getSystemResource("cql_bootstrap/bootstrap.cql").getPath()));
+        given(schemaChecker.getAppliedChecksums()).willReturn(Collections.emptyMap());
 
         //when
-        schemaLoader.load();
+        schemaLoader.load(plan);
 
         //then
         verify(tableChecker).check(session, TEST_KEYSPACE);
+        verify(schemaUpdates).journal(eq(FILENAME), any());
+        verify(schemaUpdates).record(eq(FILENAME), eq(plan.getManifestTree().checksum(FILENAME)), any(), eq(1));
+        verify(schemaUpdates).flush();
     }
 
     @Test
-    public void shouldNotLoadCqlsWithWrongExtension() {
+    public void shouldNotPlanCqlsWithWrongExtension() {
         //given
-        given(schemaChecker.alreadyApplied(FILENAME)).willReturn(false);
-        cqlPaths = new CqlPaths(new HashMap<String, Path>() {{
+        CqlPaths cqlPaths = new CqlPaths(new HashMap<String, Path>() {{
             put(FILENAME, Paths.get("cql_bootstrap/bootstrap.cql1"));
         }});
-        schemaLoader = new SchemaLoader(sessionContext, TEST_KEYSPACE, schemaUpdates, schemaChecker, tableChecker, cqlPaths);
 
         //when
-        Throwable throwable = catchThrowable(schemaLoader::load);
+        Throwable throwable = catchThrowable(() -> MigrationPlan.create(cqlPaths, ManifestTree.of(new TreeMap<>()), Collections.emptyMap()));
 
         //then
         Assertions.assertThat(throwable).isNotNull();
         Assertions.assertThat(throwable).isInstanceOf(IllegalArgumentException.class);
         Assertions.assertThat(throwable).hasMessage("Unrecognised file type: cql_bootstrap/bootstrap.cql1");
-        verify(tableChecker, never()).check(session, TEST_KEYSPACE);
     }
 
     @Test
     public void shouldNotLoadCqlsWithWrongContent() {
         //given
-        Path path = Paths.get("cql_bootstrap/bootstrap.cql");
-        given(schemaChecker.alreadyApplied(FILENAME)).willReturn(true);
-        given(schemaChecker.contentsAreDifferent(FILENAME, path)).willReturn(true);
-        cqlPaths = new CqlPaths(new HashMap<String, Path>() {{
-            put(FILENAME, path);
-        }});
-        schemaLoader = new SchemaLoader(sessionContext, TEST_KEYSPACE, schemaUpdates, schemaChecker, tableChecker, cqlPaths);
+        Path path = Paths.get(ClassLoader.getSystemResource("cql_bootstrap/bootstrap.cql").getPath());
+        MigrationPlan plan = givenPlanFor(path);
+        given(schemaChecker.getAppliedChecksums()).willReturn(Collections.singletonMap(FILENAME, "another checksum"));
 
         //when
-        Throwable throwable = catchThrowable(schemaLoader::load);
+        Throwable throwable = catchThrowable(() -> schemaLoader.load(plan));
 
         //then
         Assertions.assertThat(throwable).isNotNull();
         Assertions.assertThat(throwable).isInstanceOf(IllegalStateException.class);
-        Assertions.assertThat(throwable).hasMessage("Contents have changed for test at cql_bootstrap/bootstrap.cql");
+        Assertions.assertThat(throwable).hasMessage("Contents have changed for test at " + path);
         verify(tableChecker, never()).check(session, TEST_KEYSPACE);
+        verify(schemaUpdates).flush();
+    }
+
+    @Test
+    public void shouldNotHideTheMigrationFailureIfRecordingAlsoFails() {
+        //given
+        Path path = Paths.get(ClassLoader.getSystemResource("cql_bootstrap/bootstrap.cql").getPath());
+        MigrationPlan plan = givenPlanFor(path);
+        given(schemaChecker.getAppliedChecksums()).willReturn(Collections.singletonMap(FILENAME, "another checksum"));
+        IllegalStateException recordingFailure = new IllegalStateException("Could not record every applied file in " + TEST_KEYSPACE);
+        willThrow(recordingFailure).given(schemaUpdates).flush();
+
+        //when
+        Throwable throwable = catchThrowable(() -> schemaLoader.load(plan));
+
+        //then
+        Assertions.assertThat(throwable).hasMessage("Contents have changed for test at " + path);
+        Assertions.assertThat(throwable.getSuppressed()).containsExactly(recordingFailure);
     }
 
     @Test
     public void shouldSkipLoadCqls() {
         //given
-        Path path = Paths.get("cql_bootstrap/bootstrap.cql");
-        given(schemaChecker.alreadyApplied(FILENAME)).willReturn(true);
-        given(schemaChecker.contentsAreDifferent(FILENAME, path)).willReturn(false);
-        cqlPaths = new CqlPaths(new HashMap<String, Path>() {{
-            put(FILENAME, path);
-        }});
-        schemaLoader = new SchemaLoader(sessionContext, TEST_KEYSPACE, schemaUpdates, schemaChecker, tableChecker, cqlPaths);
+        MigrationPlan plan = givenPlanFor(Paths.get(ClassLoader.getSystemResource("cql_bootstrap/bootstrap.cql").getPath()));
+        given(schemaChecker.getAppliedChecksums()).willReturn(Collections.singletonMap(FILENAME, plan.getManifestTree().checksum(FILENAME)));
 
         //when
-        Throwable throwable = catchThrowable(schemaLoader::load);
+        Throwable throwable = catchThrowable(() -> schemaLoader.load(plan));
 
         //then
         Assertions.assertThat(throwable).isNull();
-        ;
         verify(tableChecker, never()).check(session, TEST_KEYSPACE);
+        verify(schemaUpdates, never()).record(any(), anyString(), any(), any());
+    }
+
+    @Test
+    public void shouldNotCheckFilesAgainWhenHistoryIsUnchangedSinceThePlan() {
+        //given
+        Path path = Paths.get(ClassLoader.getSystemResource("cql_bootstrap/bootstrap.cql").getPath());
+        CqlPaths cqlPaths = new CqlPaths(Collections.singletonMap(FILENAME, path));
+        ManifestTree manifestTree = ManifestTree.of(cqlPaths);
+        Map<String, String> history = Collections.singletonMap(FILENAME, manifestTree.checksum(FILENAME));
+        MigrationPlan plan = MigrationPlan.create(cqlPaths, manifestTree, history);
+        given(schemaChecker.getAppliedChecksums()).willReturn(history);
+
+        //when
+        schemaLoader.load(plan);
+
+        //then
+        Assertions.assertThat(plan.getEntries().get(0).isPending()).isFalse();
+        verify(tableChecker, never()).check(session, TEST_KEYSPACE);
+        verify(schemaUpdates, never()).record(any(), anyString(), any(), any());
+    }
+
+    @Test
+    public void shouldParseFileNoLongerRecordedAsAppliedWithThePlansChecksumCache() {
+        //given
+        Path path = Paths.get(ClassLoader.getSystemResource("cql_bootstrap/bootstrap.cql").getPath());
+        CqlPaths cqlPaths = new CqlPaths(Collections.singletonMap(FILENAME, path));
+        ChecksumCache checksumCache = spy(new ChecksumCache(ChecksumAlgorithm.SHA_256));
+        ManifestTree manifestTree = ManifestTree.of(cqlPaths, checksumCache, Runnable::run);
+        MigrationPlan plan = MigrationPlan.create(cqlPaths, manifestTree, Collections.singletonMap(FILENAME, manifestTree.checksum(FILENAME)),
+                checksumCache, Runnable::run);
+        given(schemaChecker.getAppliedChecksums()).willReturn(Collections.emptyMap());
+
+        //when
+        schemaLoader.load(plan);
+
+        //then
+        verify(checksumCache, times(2)).parse(path);
+        verify(schemaUpdates).record(eq(FILENAME), eq(manifestTree.checksum(FILENAME)), any(), eq(1));
+    }
+
+    @Test
+    public void shouldKeepTheJournalIfAppliedFilesCannotBeRecordedAsTheSchemaIsNotInAgreement() {
+        //given
+        MigrationPlan plan = givenPlanFor(Paths.get(ClassLoader.getSystemResource("cql_bootstrap/bootstrap.cql").getPath()));
+        given(schemaChecker.getAppliedChecksums()).willReturn(Collections.emptyMap());
+        SchemaAgreement schemaAgreement = mock(SchemaAgreement.class);
+        given(schemaAgreement.getFilesPerGroup()).willReturn(2);
+        ClusterUnhealthyException failure = new ClusterUnhealthyException("Schema not in agreement");
+        willThrow(failure).given(schemaAgreement).await();
+        given(sessionContext.getSchemaAgreement()).willReturn(Optional.of(schemaAgreement));
+
+        //when
+        Throwable thrown = catchThrowable(() -> schemaLoader.load(plan));
+
+        //then
+        Assertions.assertThat(thrown).isSameAs(failure);
+        verify(tableChecker).check(session, TEST_KEYSPACE);
+        verify(schemaUpdates, never()).record(any(), anyString(), any(), any());
+        InOrder inOrder = inOrder(schemaUpdates);
+        inOrder.verify(schemaUpdates).keepJournal();
+        inOrder.verify(schemaUpdates).flush();
+    }
+
+    private MigrationPlan givenPlanFor(Path path) {
+        CqlPaths cqlPaths = new CqlPaths(Collections.singletonMap(FILENAME, path));
+        return MigrationPlan.create(cqlPaths, ManifestTree.of(cqlPaths), Collections.emptyMap());
     }
 }
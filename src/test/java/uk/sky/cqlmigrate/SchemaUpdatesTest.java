@@ -3,6 +3,7 @@ package uk.sky.cqlmigrate;
 import com.datastax.oss.driver.api.core.ConsistencyLevel;
 import com.datastax.oss.driver.api.core.CqlSession;
 import com.datastax.oss.driver.api.core.cql.ResultSet;
+import com.datastax.oss.driver.api.core.cql.Row;
 import com.datastax.oss.driver.api.core.metadata.schema.KeyspaceMetadata;
 import com.datastax.oss.driver.api.core.servererrors.AlreadyExistsException;
 import com.google.common.hash.Hashing;
@@ -15,11 +16,17 @@ import org.junit.*;
 import java.io.IOException;
 import java.net.URL;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.TimeUnit;
 
 import static com.google.common.util.concurrent.Uninterruptibles.sleepUninterruptibly;
 import static org.assertj.core.api.Assertions.fail;
+import static org.awaitility.Awaitility.await;
 import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
@@ -28,6 +35,7 @@ public class SchemaUpdatesTest {
 
     private static final String TEST_KEYSPACE = "cqlmigrate_test";
     private static final String SCHEMA_UPDATES_TABLE = "schema_updates";
+    private static final String SCHEMA_UPDATES_V2_TABLE = "schema_updates_v2";
 
     private static CqlSession session;
     private static ClusterHealth clusterHealth;
@@ -113,10 +121,7 @@ public class SchemaUpdatesTest {
         schemaUpdates.initialise();
 
         //when
-        schemaUpdates.add(
-                filename,
-                Paths.get(cqlResource.toURI())
-        );
+        schemaUpdates.add(filename, new ChecksumCache().checksum(Paths.get(cqlResource.toURI())), null, null);
 
         //then
         final String guavaSha1Hash = Resources.asByteSource(cqlResource).hash(Hashing.sha1()).toString();
@@ -129,4 +134,142 @@ public class SchemaUpdatesTest {
                             .isEqualTo(guavaSha1Hash);
                 });
     }
+
+    @Test
+    public void v2LayoutRecordsFilesInTheirBucketWithDurationAndStatementCount() {
+        //given
+        SessionContext sessionContext = new SessionContext(session, ConsistencyLevel.ALL, ConsistencyLevel.ALL, clusterHealth);
+        SchemaUpdates schemaUpdates = new SchemaUpdates(sessionContext, TEST_KEYSPACE, tableChecker, SchemaUpdatesLayout.V2);
+        schemaUpdates.initialise();
+
+        //when
+        schemaUpdates.add("001.cql", "abc", Duration.ofMillis(25), 3);
+
+        //then
+        assertThat(session.getMetadata().getKeyspace(TEST_KEYSPACE).get().getTable(SCHEMA_UPDATES_TABLE)).isEmpty();
+        Row row = session.execute("SELECT * FROM " + TEST_KEYSPACE + "." + SCHEMA_UPDATES_V2_TABLE
+                + " WHERE bucket = " + SchemaUpdates.bucket("001.cql") + " AND filename = '001.cql'").one();
+        assertThat(row).isNotNull();
+        assertThat(row.getString("checksum")).isEqualTo("abc");
+        assertThat(row.getLong("duration")).isEqualTo(25L);
+        assertThat(row.getInt("statement_count")).isEqualTo(3);
+        assertThat(row.getInstant("applied_on")).isNotNull();
+    }
+
+    @Test
+    public void v2LayoutCopiesTheV1HistoryOnlyOnce() {
+        //given
+        SessionContext sessionContext = new SessionContext(session, ConsistencyLevel.ALL, ConsistencyLevel.ALL, clusterHealth);
+        SchemaUpdates v1 = new SchemaUpdates(sessionContext, TEST_KEYSPACE, tableChecker);
+        v1.initialise();
+        v1.add("001.cql", "abc", null, null);
+        v1.add("002.cql", "def", null, null);
+        SchemaUpdates v2 = new SchemaUpdates(sessionContext, TEST_KEYSPACE, tableChecker, SchemaUpdatesLayout.V2);
+
+        //when
+        v2.initialise();
+        v1.add("003.cql", "ghi", null, null);
+        v2.initialise();
+
+        //then
+        SchemaChecker schemaChecker = new SchemaChecker(sessionContext, TEST_KEYSPACE, SchemaUpdatesLayout.V2);
+        List<String> history = new ArrayList<>();
+        schemaChecker.historyInFilenameOrder().forEachRemaining(entry -> history.add(entry.getKey() + "=" + entry.getValue()));
+        Assertions.assertThat(history).containsExactly("001.cql=abc", "002.cql=def");
+    }
+
+    @Test
+    public void recordedFilesAreWrittenAndJournalClearedOnFlush() {
+        //given
+        SessionContext sessionContext = new SessionContext(session, ConsistencyLevel.ALL, ConsistencyLevel.ALL, clusterHealth);
+        SchemaUpdates schemaUpdates = new SchemaUpdates(sessionContext, TEST_KEYSPACE, tableChecker, SchemaUpdatesLayout.V2);
+        schemaUpdates.initialise();
+
+        //when
+        schemaUpdates.journal("001.cql", Collections.emptyList());
+        schemaUpdates.record("001.cql", "abc", Duration.ofMillis(1), 1);
+        schemaUpdates.journal("002.cql", Collections.emptyList());
+        schemaUpdates.record("002.cql", "def", Duration.ofMillis(2), 2);
+        schemaUpdates.journal("003.cql", Collections.emptyList());
+        schemaUpdates.record("003.cql", "ghi", Duration.ofMillis(3), 3);
+        schemaUpdates.flush();
+
+        //then
+        SchemaChecker schemaChecker = new SchemaChecker(sessionContext, TEST_KEYSPACE, SchemaUpdatesLayout.V2);
+        Assertions.assertThat(schemaChecker.getAppliedChecksums())
+                .containsOnlyKeys("001.cql", "002.cql", "003.cql")
+                .containsEntry("003.cql", "ghi");
+        Assertions.assertThat(schemaUpdates.unrecordedFiles()).isEmpty();
+    }
+
+    @Test
+    public void recordsQueuedWhileEarlierWritesAreInFlightAreWrittenWithoutFlush() {
+        //given
+        SessionContext sessionContext = new SessionContext(session, ConsistencyLevel.ALL, ConsistencyLevel.ALL, clusterHealth);
+        SchemaUpdates schemaUpdates = new SchemaUpdates(sessionContext, TEST_KEYSPACE, tableChecker, SchemaUpdatesLayout.V2);
+        schemaUpdates.initialise();
+
+        //when
+        schemaUpdates.record("001.cql", "abc", Duration.ofMillis(1), 1);
+        schemaUpdates.record("002.cql", "def", Duration.ofMillis(2), 2);
+        schemaUpdates.record("003.cql", "ghi", Duration.ofMillis(3), 3);
+
+        //then
+        await().atMost(5, TimeUnit.SECONDS).untilAsserted(() -> Assertions.assertThat(session.execute("SELECT filename FROM " + TEST_KEYSPACE + "." + SCHEMA_UPDATES_V2_TABLE).all())
+                .extracting(row -> row.getString("filename"))
+                .containsExactlyInAnyOrder("001.cql", "002.cql", "003.cql"));
+    }
+
+    @Test
+    public void journalledFilesAreReportedIfRecordingWasNotFlushed() {
+        //given
+        SessionContext sessionContext = new SessionContext(session, ConsistencyLevel.ALL, ConsistencyLevel.ALL, clusterHealth);
+        SchemaUpdates crashedRun = new SchemaUpdates(sessionContext, TEST_KEYSPACE, tableChecker);
+        crashedRun.initialise();
+        crashedRun.journal("001.cql", Collections.emptyList());
+        crashedRun.journal("002.cql", Collections.emptyList());
+        SchemaUpdates nextRun = new SchemaUpdates(sessionContext, TEST_KEYSPACE, tableChecker);
+
+        //when
+        nextRun.initialise();
+
+        //then
+        Assertions.assertThat(nextRun.unrecordedFiles()).containsExactly("001.cql", "002.cql");
+        nextRun.flush();
+        Assertions.assertThat(nextRun.unrecordedFiles()).isEmpty();
+    }
+
+    @Test
+    public void upcomingFilesAreJournalledWithTheFirstFileOfTheWindow() {
+        //given
+        SessionContext sessionContext = new SessionContext(session, ConsistencyLevel.ALL, ConsistencyLevel.ALL, clusterHealth);
+        SchemaUpdates crashedRun = new SchemaUpdates(sessionContext, TEST_KEYSPACE, tableChecker);
+        crashedRun.initialise();
+
+        //when
+        crashedRun.journal("001.cql", Arrays.asList("002.cql", "003.cql"));
+        session.execute("DELETE FROM " + TEST_KEYSPACE + "." + SchemaUpdates.SCHEMA_UPDATES_JOURNAL_TABLE + " WHERE journal = 0 AND filename = '003.cql'");
+        crashedRun.journal("002.cql", Collections.singletonList("003.cql"));
+
+        //then
+        SchemaUpdates nextRun = new SchemaUpdates(sessionContext, TEST_KEYSPACE, tableChecker);
+        Assertions.assertThat(nextRun.unrecordedFiles()).containsExactly("001.cql", "002.cql");
+    }
+
+    @Test
+    public void journalRowsAreRemovedOnceTheirRecordsAreWritten() {
+        //given
+        SessionContext sessionContext = new SessionContext(session, ConsistencyLevel.ALL, ConsistencyLevel.ALL, clusterHealth);
+        SchemaUpdates crashedRun = new SchemaUpdates(sessionContext, TEST_KEYSPACE, tableChecker);
+        crashedRun.initialise();
+
+        //when
+        crashedRun.journal("001.cql", Collections.emptyList());
+        crashedRun.record("001.cql", "abc", null, null);
+        crashedRun.journal("002.cql", Collections.emptyList());
+
+        //then
+        SchemaUpdates nextRun = new SchemaUpdates(sessionContext, TEST_KEYSPACE, tableChecker);
+        await().atMost(5, TimeUnit.SECONDS).untilAsserted(() -> Assertions.assertThat(nextRun.unrecordedFiles()).containsExactly("002.cql"));
+    }
 }
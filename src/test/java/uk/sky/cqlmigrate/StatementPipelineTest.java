@@ -0,0 +1,105 @@
+package uk.sky.cqlmigrate;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+
+public class StatementPipelineTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void shouldHandOverTheSameStatementsAsReadingEachFileWhenApplied() throws Exception {
+        // given
+        List<MigrationPlan.Entry> entries = Arrays.asList(
+                streamed("001.cql", statements(1, 3000)),
+                new MigrationPlan.Entry("002.cql", temporaryFolder.getRoot().toPath().resolve("002.cql"), "applied", null),
+                streamed("003.cql", statements(3000, 3500)),
+                streamed("004.cql", statements(3500, 6000)));
+
+        try (StatementPipeline pipeline = new StatementPipeline(entries, 2)) {
+            for (int i = 0; i < entries.size(); i++) {
+                MigrationPlan.Entry entry = entries.get(i);
+                pipeline.advanceTo(i);
+                if (!entry.isPending()) {
+                    continue;
+                }
+
+                // when
+                List<String> loaded = load(pipeline, i);
+
+                // then
+                assertThat(loaded).isEqualTo(entry.getParsedMigration().getStatements());
+            }
+        }
+    }
+
+    @Test
+    public void shouldAbandonFilesReadAheadButNotApplied() throws Exception {
+        // given
+        List<MigrationPlan.Entry> entries = Arrays.asList(
+                streamed("001.cql", statements(1, 5000)),
+                streamed("002.cql", statements(5000, 5002)));
+
+        try (StatementPipeline pipeline = new StatementPipeline(entries, 1)) {
+            pipeline.advanceTo(0);
+
+            // when
+            List<String> loaded = load(pipeline, 1);
+
+            // then
+            assertThat(loaded).containsExactly("INSERT INTO t (a) VALUES (5000)", "INSERT INTO t (a) VALUES (5001)");
+        }
+    }
+
+    @Test
+    public void shouldReportAFailureOnlyAfterTheStatementsBeforeIt() throws Exception {
+        // given
+        MigrationPlan.Entry entry = streamed("001.cql", statements(1, 3));
+        Files.write(entry.getPath(), "INSERT INTO t (a) VALUES (1);\nINSERT INTO t (a) VALUES (2)".getBytes(StandardCharsets.UTF_8));
+        List<String> loaded = new ArrayList<>();
+
+        try (StatementPipeline pipeline = new StatementPipeline(Arrays.asList(entry), 1)) {
+            // when
+            Throwable throwable = catchThrowable(() -> pipeline.loadStatements(0,
+                    statements -> statements.forEachRemaining(statement -> loaded.add(statement.getCql()))));
+
+            // then
+            assertThat(loaded).containsExactly("INSERT INTO t (a) VALUES (1)");
+            assertThat(throwable)
+                    .isInstanceOf(IllegalStateException.class)
+                    .hasMessage("File had a non-terminated cql line");
+        }
+    }
+
+    private MigrationPlan.Entry streamed(String filename, String cql) throws Exception {
+        Path path = Files.write(temporaryFolder.getRoot().toPath().resolve(filename), cql.getBytes(StandardCharsets.UTF_8));
+        ParsedMigration parsedMigration = CqlFileParser.parse(path, ChecksumAlgorithm.SHA_1, 0);
+        return new MigrationPlan.Entry(filename, path, parsedMigration.getChecksum(), parsedMigration);
+    }
+
+    private static String statements(int from, int to) {
+        StringBuilder cql = new StringBuilder();
+        for (int i = from; i < to; i++) {
+            cql.append("INSERT INTO t (a) VALUES (").append(i).append(");\n");
+        }
+        return cql.toString();
+    }
+
+    private static List<String> load(StatementPipeline pipeline, int index) {
+        List<String> loaded = new ArrayList<>();
+        pipeline.loadStatements(index, statements -> statements.forEachRemaining(statement -> loaded.add(statement.getCql())));
+        return loaded;
+    }
+}